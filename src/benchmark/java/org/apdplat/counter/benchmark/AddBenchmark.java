@@ -0,0 +1,54 @@
+package org.apdplat.counter.benchmark;
+
+import org.apdplat.counter.valve.AtomicCounter;
+import org.apdplat.counter.valve.CounterHandle;
+import org.apdplat.counter.valve.Metric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单线程计数: 同步、异步、异步合并, 分别使用Zookeeper和内存存储
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AddBenchmark {
+    @Param({"sync", "async", "coalesce"})
+    public String mode;
+
+    @Param({"zookeeper", "memory"})
+    public String store;
+
+    private CounterHandle handle;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Benchmarks.configure(mode, store);
+        handle = AtomicCounter.handle(Metric.RESPONSE_SUCCESS, Benchmarks.API_TYPE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Benchmarks.tearDown();
+    }
+
+    @Benchmark
+    public void add(){
+        handle.add(1);
+    }
+
+    @Benchmark
+    public void responseSuccess(){
+        AtomicCounter.responseSuccess(1, Benchmarks.API_TYPE);
+    }
+}
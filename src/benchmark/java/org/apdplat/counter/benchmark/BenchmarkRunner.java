@@ -0,0 +1,33 @@
+package org.apdplat.counter.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * 运行基准测试
+ *
+ * 报告吞吐量(Throughput)、延迟分布(SampleTime, 包括p99)和内存分配速率(gc.alloc.rate.norm),
+ * 结果同时保存到当前目录下的 jmh-result.json
+ * 用法: java -cp counter-jar-with-dependencies.jar org.apdplat.counter.benchmark.BenchmarkRunner [基准测试名称的正则表达式]
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .forks(1)
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(2))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(2))
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json")
+                .build();
+        new Runner(options).run();
+    }
+}
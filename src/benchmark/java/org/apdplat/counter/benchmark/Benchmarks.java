@@ -0,0 +1,55 @@
+package org.apdplat.counter.benchmark;
+
+import org.apache.curator.test.TestingServer;
+import org.apdplat.counter.util.ConfUtils;
+
+/**
+ * 基准测试的公共设置
+ *
+ * 计数器的配置在类加载时读取, 所以必须在第一次使用 AtomicCounter 和 CountLimit 之前调用 configure,
+ * JMH 为每组参数启动单独的JVM, 每组参数的配置互不影响
+ * 使用Zookeeper存储时, 每个基准测试的状态在 setup 中调用 configure 启动自己的Zookeeper测试服务器,
+ * 在 tearDown 中关闭, 不同状态之间不共享服务器
+ */
+public class Benchmarks {
+    public static final String API_TYPE = "bench";
+    /**
+     * 足够大但不是 Long.MAX_VALUE 的限制值, 保证 tryAcquire 走租借配额的逻辑
+     */
+    public static final long LIMIT = 9000000000000000000L;
+
+    private static TestingServer server;
+
+    /**
+     * @param mode sync: 同步计数, async: 异步队列, coalesce: 异步队列并合并增量
+     * @param store zookeeper 或 memory, zookeeper 时启动新的Zookeeper测试服务器
+     * @throws Exception
+     */
+    public static synchronized void configure(String mode, String store) throws Exception {
+        if("zookeeper".equals(store)){
+            startZookeeper();
+        }
+        ConfUtils.set("counter.store", store);
+        ConfUtils.set("limit.store", store);
+        ConfUtils.set("api.call.count.limit", API_TYPE + ":" + LIMIT);
+        ConfUtils.set("async", String.valueOf(!"sync".equals(mode)));
+        ConfUtils.set("async.coalesce", String.valueOf("coalesce".equals(mode)));
+    }
+
+    /**
+     * 关闭 configure 启动的Zookeeper测试服务器, 在状态的 @TearDown 中调用
+     * @throws Exception
+     */
+    public static synchronized void tearDown() throws Exception {
+        if(server != null){
+            server.close();
+            server = null;
+        }
+    }
+
+    private static void startZookeeper() throws Exception {
+        tearDown();
+        server = new TestingServer(true);
+        ConfUtils.set("atomic.counter.zookeeper.connect", server.getConnectString());
+    }
+}
@@ -0,0 +1,68 @@
+package org.apdplat.counter.benchmark;
+
+import org.apdplat.counter.valve.AtomicCounter;
+import org.apdplat.counter.valve.CounterHandle;
+import org.apdplat.counter.valve.Metric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程计数: 所有线程写同一个计数器, 或者每个线程写不同的计数器
+ */
+@Threads(8)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContendedAddBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Config {
+        @Param({"same", "different"})
+        public String paths;
+
+        @Param({"sync", "async", "coalesce"})
+        public String mode;
+
+        @Param({"zookeeper", "memory"})
+        public String store;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            Benchmarks.configure(mode, store);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            Benchmarks.tearDown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Handle {
+        private CounterHandle handle;
+
+        @Setup(Level.Trial)
+        public void setup(Config config, ThreadParams threadParams){
+            String apiType = "same".equals(config.paths)
+                    ? Benchmarks.API_TYPE
+                    : Benchmarks.API_TYPE + "_" + threadParams.getThreadIndex();
+            handle = AtomicCounter.handle(Metric.RESPONSE_SUCCESS, apiType);
+        }
+    }
+
+    @Benchmark
+    public void add(Handle handle){
+        handle.handle.add(1);
+    }
+}
@@ -0,0 +1,58 @@
+package org.apdplat.counter.benchmark;
+
+import org.apdplat.counter.util.DayClock;
+import org.apdplat.counter.valve.AtomicCounter;
+import org.apdplat.counter.valve.CounterHandle;
+import org.apdplat.counter.valve.Metric;
+import org.apdplat.counter.valve.Zookeeper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 构造计数器路径: 每次格式化日期并拼接字符串, 使用 DayClock, 使用计数器句柄
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class KeyBenchmark {
+    private String prefix;
+    private CounterHandle handle;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Benchmarks.configure("sync", "memory");
+        prefix = Zookeeper.getCounterPrefix() + "/" + Metric.RESPONSE_SUCCESS.getNodeName();
+        handle = AtomicCounter.handle(Metric.RESPONSE_SUCCESS, Benchmarks.API_TYPE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Benchmarks.tearDown();
+    }
+
+    @Benchmark
+    public String formatAndConcat(){
+        return prefix + "_" + new SimpleDateFormat("yyyyMMdd").format(new Date()) + "_" + Benchmarks.API_TYPE;
+    }
+
+    @Benchmark
+    public String dayClock(){
+        return Metric.RESPONSE_SUCCESS.path(DayClock.today(), Benchmarks.API_TYPE);
+    }
+
+    @Benchmark
+    public String handle(){
+        return handle.getPath();
+    }
+}
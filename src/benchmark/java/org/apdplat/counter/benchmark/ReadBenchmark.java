@@ -0,0 +1,67 @@
+package org.apdplat.counter.benchmark;
+
+import org.apdplat.counter.util.ConfUtils;
+import org.apdplat.counter.valve.AtomicCounter;
+import org.apdplat.counter.valve.CountLimit;
+import org.apdplat.counter.valve.Metric;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 读取计数和限额: getValue、get*Count、CountLimit.getLimit 和 CountLimit.tryAcquire
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReadBenchmark {
+    @Param({"false", "true"})
+    public String cache;
+
+    @Param({"zookeeper", "memory"})
+    public String store;
+
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Benchmarks.configure("sync", store);
+        ConfUtils.set("counter.read.cache.enabled", cache);
+        AtomicCounter.responseSuccess(1, Benchmarks.API_TYPE);
+        path = AtomicCounter.handle(Metric.RESPONSE_SUCCESS, Benchmarks.API_TYPE).getPath();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Benchmarks.tearDown();
+    }
+
+    @Benchmark
+    public long getValue(){
+        return AtomicCounter.getValue(path);
+    }
+
+    @Benchmark
+    public long getResponseSuccessCount(){
+        return AtomicCounter.getResponseSuccessCount(Benchmarks.API_TYPE);
+    }
+
+    @Benchmark
+    public Long getLimit(){
+        return CountLimit.getLimit(Benchmarks.API_TYPE);
+    }
+
+    @Benchmark
+    public boolean tryAcquire(){
+        return CountLimit.tryAcquire(Benchmarks.API_TYPE, 1);
+    }
+}
@@ -0,0 +1,83 @@
+package org.apdplat.counter.load;
+
+import org.apdplat.counter.valve.Metric;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 负载测试发出的计数, 按天记录, 测试结束后和存储中的计数比较
+ * apiType、产品和电视用从0开始的编号表示
+ */
+public class ExpectedCounts {
+    private final int apiTypeCount;
+    private final int productCount;
+    private final int tvCount;
+    private final Map<String, DayCounts> days = new ConcurrentHashMap<>();
+
+    public ExpectedCounts(int apiTypeCount, int productCount, int tvCount) {
+        this.apiTypeCount = apiTypeCount;
+        this.productCount = productCount;
+        this.tvCount = tvCount;
+    }
+
+    public void add(String day, Metric metric, int apiType, long delta){
+        day(day).metrics[metric.ordinal()][apiType].add(delta);
+    }
+
+    /**
+     * 按产品和电视细分的成功计数, 同时计入成功计数
+     */
+    public void addDimension(String day, int apiType, int product, int tv, long delta){
+        DayCounts counts = day(day);
+        counts.metrics[Metric.RESPONSE_SUCCESS.ordinal()][apiType].add(delta);
+        counts.products[apiType][product].add(delta);
+        counts.tvs[apiType][tv].add(delta);
+    }
+
+    public Set<String> getDays(){
+        return new TreeSet<>(days.keySet());
+    }
+
+    public long get(String day, Metric metric, int apiType){
+        DayCounts counts = days.get(day);
+        return counts == null ? 0 : counts.metrics[metric.ordinal()][apiType].sum();
+    }
+
+    public long getProduct(String day, int apiType, int product){
+        DayCounts counts = days.get(day);
+        return counts == null ? 0 : counts.products[apiType][product].sum();
+    }
+
+    public long getTv(String day, int apiType, int tv){
+        DayCounts counts = days.get(day);
+        return counts == null ? 0 : counts.tvs[apiType][tv].sum();
+    }
+
+    private DayCounts day(String day){
+        DayCounts counts = days.get(day);
+        if(counts == null){
+            counts = days.computeIfAbsent(day, k -> new DayCounts());
+        }
+        return counts;
+    }
+
+    private class DayCounts {
+        private final LongAdder[][] metrics = create(Metric.values().length, apiTypeCount);
+        private final LongAdder[][] products = create(apiTypeCount, productCount);
+        private final LongAdder[][] tvs = create(apiTypeCount, tvCount);
+    }
+
+    private static LongAdder[][] create(int rows, int columns){
+        LongAdder[][] adders = new LongAdder[rows][columns];
+        for(int i=0; i<rows; i++){
+            for(int j=0; j<columns; j++){
+                adders[i][j] = new LongAdder();
+            }
+        }
+        return adders;
+    }
+}
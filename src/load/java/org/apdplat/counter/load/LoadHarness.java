@@ -0,0 +1,481 @@
+package org.apdplat.counter.load;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apdplat.counter.metrics.CounterMetrics;
+import org.apdplat.counter.metrics.LatencyHistogram;
+import org.apdplat.counter.util.ConfUtils;
+import org.apdplat.counter.util.DayClock;
+import org.apdplat.counter.valve.CounterClient;
+import org.apdplat.counter.valve.CounterStore;
+import org.apdplat.counter.valve.LimitStore;
+import org.apdplat.counter.valve.MemoryCounterStore;
+import org.apdplat.counter.valve.MemoryLimitStore;
+import org.apdplat.counter.valve.Metric;
+import org.apdplat.counter.valve.Zookeeper;
+import org.apdplat.counter.valve.ZookeeperCounterStore;
+import org.apdplat.counter.valve.ZookeeperLimitStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 负载和长时间稳定性测试
+ *
+ * 在一个JVM中模拟多个节点, 每个节点是一个独立的 CounterClient, 使用Zookeeper存储时每个节点有自己的Zookeeper连接和配额租借,
+ * 多个线程按 load.mix 指定的比例执行计数、获取配额、检查限制值和修改限制值等操作, 总的目标吞吐量为 load.qps,
+ * 延迟从计划的开始时间算起, 服务变慢时排队等待的时间也计入延迟
+ * 运行期间每隔 load.report.interval.seconds 秒输出一次进度, 结束后关闭所有节点把增量写完,
+ * 再把存储中的计数和发出的计数逐一比较, 报告吞吐量、延迟百分位数、Zookeeper操作数目和计数准确性, 计数不准确时退出码为1
+ *
+ * 用法: java -cp counter-jar-with-dependencies.jar org.apdplat.counter.load.LoadHarness [key=value ...]
+ * 参数覆盖 conf.txt 中的配置, 也可以指定计数器本身的配置, 如 async=true, 负载测试的配置项:
+ *     load.zookeeper.connect      Zookeeper集群地址, 为空时启动内嵌的Zookeeper服务器, 默认为空
+ *     load.store                  zookeeper 或 memory, 默认 zookeeper
+ *     load.duration.seconds       运行时间, 默认 60
+ *     load.qps                    目标吞吐量, 小于等于0表示不限速, 默认 10000
+ *     load.threads                线程数目, 平均分配到各个节点, 默认 16
+ *     load.nodes                  模拟的节点数目, 默认 3
+ *     load.api.types              apiType数目, 每次运行使用新的apiType, 默认 4
+ *     load.products               产品数目, 默认 100
+ *     load.tvs                    电视数目, 默认 100
+ *     load.limit                  每个apiType的初始限制值, 默认 1000000000000
+ *     load.limit.min              修改限制值时的最小值, 默认 1000
+ *     load.mix                    操作比例, 见 LoadMix
+ *     load.report.interval.seconds 进度报告间隔, 默认 10
+ */
+public class LoadHarness {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadHarness.class);
+    private static final String DEFAULT_MIX = "acquire:50,check:5,success:10,dimension:10,noResponse:5,wrongContent:5,exception:5,beyond:5,setLimit:0.01";
+
+    private final int threadCount = ConfUtils.getInt("load.threads", 16);
+    private final int nodeCount = ConfUtils.getInt("load.nodes", 3);
+    private final int apiTypeCount = ConfUtils.getInt("load.api.types", 4);
+    private final int productCount = ConfUtils.getInt("load.products", 100);
+    private final int tvCount = ConfUtils.getInt("load.tvs", 100);
+    private final long durationSeconds = ConfUtils.getLong("load.duration.seconds", 60);
+    private final long qps = ConfUtils.getLong("load.qps", 10000);
+    private final long limit = ConfUtils.getLong("load.limit", 1000000000000L);
+    private final long limitMin = ConfUtils.getLong("load.limit.min", 1000);
+    private final long reportIntervalSeconds = ConfUtils.getLong("load.report.interval.seconds", 10);
+    private final LoadMix mix = LoadMix.parse(ConfUtils.get("load.mix", DEFAULT_MIX));
+    private final boolean zookeeper = !"memory".equals(ConfUtils.get("load.store", "zookeeper").trim());
+
+    private final String[] apiTypes = new String[apiTypeCount];
+    private final ExpectedCounts expected = new ExpectedCounts(apiTypeCount, productCount, tvCount);
+    private final Map<LoadOperation, LatencyHistogram> latencies = new EnumMap<>(LoadOperation.class);
+    private final Map<LoadOperation, LongAdder> errors = new EnumMap<>(LoadOperation.class);
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private final List<CuratorFramework> curatorFrameworks = new ArrayList<>();
+    private final List<CounterClient> clients = new ArrayList<>();
+    private String connectString;
+    private volatile boolean running = true;
+
+    private LoadHarness() {
+        //每次运行使用新的apiType, 不受Zookeeper中已有计数的影响
+        String runId = Long.toString(System.currentTimeMillis() % 100000000L, 36);
+        for(int i=0; i<apiTypeCount; i++){
+            apiTypes[i] = "load" + runId + "n" + i;
+        }
+        for(LoadOperation operation : LoadOperation.values()){
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new LongAdder());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(String arg : args){
+            int index = arg.indexOf('=');
+            if(index <= 0){
+                System.err.println("参数格式为 key=value: "+arg);
+                System.exit(2);
+            }
+            ConfUtils.set(arg.substring(0, index).trim(), arg.substring(index + 1).trim());
+        }
+        TestingServer server = null;
+        String connect = ConfUtils.get("load.zookeeper.connect", "");
+        if(!"memory".equals(ConfUtils.get("load.store", "zookeeper").trim())){
+            if(connect.trim().isEmpty()){
+                server = new TestingServer(true);
+                connect = server.getConnectString();
+            }
+            ConfUtils.set("atomic.counter.zookeeper.connect", connect);
+        }
+        boolean accurate;
+        try {
+            LoadHarness harness = new LoadHarness();
+            harness.connectString = connect;
+            accurate = harness.run();
+        }finally {
+            if(server != null){
+                server.close();
+            }
+        }
+        System.exit(accurate ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        System.out.println("负载测试: 节点 " + nodeCount + ", 线程 " + threadCount + ", 目标QPS " + (qps > 0 ? qps : "不限")
+                + ", 运行 " + durationSeconds + " 秒, 存储 " + (zookeeper ? connectString : "memory")
+                + ", 异步 " + ConfUtils.getBoolean("async", false) + ", 合并 " + ConfUtils.getBoolean("async.coalesce", false)
+                + ", apiType " + Arrays.toString(apiTypes) + ", 操作比例 " + mix);
+        startNodes();
+        Map<String, Long> zookeeperBefore = zookeeperStats();
+        Map<String, Long> serverBefore = serverStats();
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        List<Thread> workers = new ArrayList<>();
+        for(int i=0; i<threadCount; i++){
+            CounterClient client = clients.get(i % clients.size());
+            Thread worker = new Thread(() -> drive(client, deadline), "load-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        report(start, deadline);
+        running = false;
+        for(Thread worker : workers){
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long closeStart = System.nanoTime();
+        boolean drained = true;
+        for(CounterClient client : clients){
+            drained &= client.close(ConfUtils.getLong("async.shutdown.timeout.ms", 10000));
+        }
+        long closeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - closeStart);
+
+        Map<String, Long> zookeeperAfter = zookeeperStats();
+        Map<String, Long> serverAfter = serverStats();
+        printLatencies(elapsed);
+        printZookeeper(zookeeperBefore, zookeeperAfter, serverBefore, serverAfter, elapsed);
+        System.out.println("配额: 获取成功 " + acquired.sum() + ", 超出配额 " + rejected.sum()
+                + ", 关闭耗时 " + closeMillis + " 毫秒, 增量是否全部写入 " + drained);
+        boolean accurate = verify();
+        for(CuratorFramework curatorFramework : curatorFrameworks){
+            curatorFramework.close();
+        }
+        return accurate;
+    }
+
+    /**
+     * 创建模拟的节点, 使用Zookeeper存储时每个节点有自己的连接, 使用内存存储时所有节点共享一个存储
+     */
+    private void startNodes() throws Exception {
+        Map<String, Long> limits = new LinkedHashMap<>();
+        for(String apiType : apiTypes){
+            limits.put(apiType, limit);
+        }
+        CounterStore sharedCounterStore = zookeeper ? null : new MemoryCounterStore();
+        LimitStore sharedLimitStore = zookeeper ? null : new MemoryLimitStore();
+        int timeout = ConfUtils.getInt("zookeeper.connection.timeout.ms", 3000);
+        for(int i=0; i<nodeCount; i++){
+            CounterClient.Builder builder = CounterClient.builder().limits(limits).warmUp(apiTypes);
+            if(zookeeper){
+                CuratorFramework curatorFramework = CuratorFrameworkFactory.newClient(connectString, timeout, timeout,
+                        new ExponentialBackoffRetry(1000, 3));
+                curatorFramework.start();
+                curatorFrameworks.add(curatorFramework);
+                builder.counterStore(new ZookeeperCounterStore(curatorFramework,
+                                ConfUtils.getBoolean("counter.sharded", false),
+                                "load-node-" + i,
+                                ConfUtils.getBoolean("async.batch.flush", false),
+                                ConfUtils.getInt("async.batch.flush.size", 100)))
+                        .limitStore(new ZookeeperLimitStore(curatorFramework, Zookeeper.getApiCallCountPrefix()));
+            }else{
+                builder.counterStore(sharedCounterStore).limitStore(sharedLimitStore);
+            }
+            clients.add(builder.build());
+        }
+        long start = System.currentTimeMillis();
+        for(CounterClient client : clients){
+            client.ready().get(60, TimeUnit.SECONDS);
+        }
+        System.out.println("所有节点启动完成, 耗时 " + (System.currentTimeMillis() - start) + " 毫秒");
+    }
+
+    /**
+     * 一个线程的负载, 限速时按固定间隔计划每次操作的开始时间
+     */
+    private void drive(CounterClient client, long deadline){
+        long interval = qps > 0 ? TimeUnit.SECONDS.toNanos(threadCount) / qps : 0;
+        long scheduled = System.nanoTime();
+        while (running){
+            long now = System.nanoTime();
+            if(now >= deadline){
+                return;
+            }
+            if(interval > 0){
+                scheduled += interval;
+                if(scheduled > now){
+                    LockSupport.parkNanos(scheduled - now);
+                }
+            }else{
+                scheduled = now;
+            }
+            LoadOperation operation = mix.next();
+            try {
+                execute(client, operation);
+            }catch (Throwable e){
+                errors.get(operation).increment();
+                LOGGER.error("执行操作出错: "+operation.getName(), e);
+            }
+            latencies.get(operation).recordSince(scheduled);
+        }
+    }
+
+    private void execute(CounterClient client, LoadOperation operation){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int index = random.nextInt(apiTypeCount);
+        String apiType = apiTypes[index];
+        String day = DayClock.today();
+        switch (operation){
+            case ACQUIRE:
+                if(client.tryAcquire(apiType, 1)){
+                    acquired.increment();
+                    success(client, day, index);
+                }else{
+                    rejected.increment();
+                    beyond(client, day, index);
+                }
+                break;
+            case CHECK:
+                if(client.getResponseSuccessCount(apiType) < client.getLimit(apiType)){
+                    success(client, day, index);
+                }else{
+                    beyond(client, day, index);
+                }
+                break;
+            case SUCCESS:
+                success(client, day, index);
+                break;
+            case DIMENSION:
+                int product = random.nextInt(productCount);
+                int tv = random.nextInt(tvCount);
+                client.responseSuccess(1, apiType, product + 1, tv + 1);
+                expected.addDimension(day, index, product, tv, 1);
+                break;
+            case NO_RESPONSE:
+                client.noResponse(1, apiType);
+                expected.add(day, Metric.NO_RESPONSE, index, 1);
+                break;
+            case WRONG_CONTENT:
+                client.wrongContent(1, apiType);
+                expected.add(day, Metric.WRONG_CONTENT, index, 1);
+                break;
+            case EXCEPTION:
+                client.exception(1, apiType);
+                expected.add(day, Metric.EXCEPTION, index, 1);
+                break;
+            case BEYOND:
+                beyond(client, day, index);
+                break;
+            case SET_LIMIT:
+                client.setLimit(apiType, limitMin + random.nextLong(Math.max(1, limit - limitMin)));
+                break;
+        }
+    }
+
+    private void success(CounterClient client, String day, int index){
+        client.responseSuccess(1, apiTypes[index]);
+        expected.add(day, Metric.RESPONSE_SUCCESS, index, 1);
+    }
+
+    private void beyond(CounterClient client, String day, int index){
+        client.beyond(1, apiTypes[index]);
+        expected.add(day, Metric.BEYOND, index, 1);
+    }
+
+    /**
+     * 运行期间每隔 reportIntervalSeconds 秒输出一次进度, 直到运行结束
+     */
+    private void report(long start, long deadline) throws InterruptedException {
+        long last = start;
+        long lastCount = 0;
+        CounterMetrics metrics = CounterMetrics.get();
+        while (true){
+            long now = System.nanoTime();
+            if(now >= deadline){
+                return;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(deadline - now, TimeUnit.SECONDS.toNanos(Math.max(1, reportIntervalSeconds))));
+            now = System.nanoTime();
+            long count = totalCount();
+            double seconds = (now - last) / 1e9;
+            System.out.println(String.format("%6d秒 操作 %d, 吞吐量 %.0f/秒, 总体p99 %d微秒, 队列深度 %d, 合并待刷新 %d, 丢弃 %d, 写入失败 %d, 堆内存 %dMB",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), count, (count - lastCount) / seconds, overallPercentileMicros(99),
+                    metrics.getQueueDepth(), metrics.getCoalescePending(), metrics.getDroppedDeltaCount(), metrics.getFailedDeltaCount(),
+                    (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1024 / 1024));
+            last = now;
+            lastCount = count;
+        }
+    }
+
+    private long totalCount(){
+        long count = 0;
+        for(LatencyHistogram histogram : latencies.values()){
+            count += histogram.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * 所有操作合并后的百分位数, 取各个操作百分位数的最大值作为上界
+     */
+    private long overallPercentileMicros(double percentile){
+        long max = 0;
+        for(LatencyHistogram histogram : latencies.values()){
+            if(histogram.getCount() > 0){
+                max = Math.max(max, histogram.getPercentileNanos(percentile) / 1000);
+            }
+        }
+        return max;
+    }
+
+    private void printLatencies(long elapsedNanos){
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("================ 负载测试结果 ================");
+        System.out.println(String.format("运行 %.1f 秒, 操作 %d, 吞吐量 %.0f/秒", seconds, totalCount(), totalCount() / seconds));
+        System.out.println(String.format("%-14s %12s %8s %10s %10s %10s %10s %10s %10s %10s",
+                "操作", "次数", "错误", "吞吐量/秒", "平均微秒", "p50", "p90", "p99", "p99.9", "最大"));
+        for(Map.Entry<LoadOperation, LatencyHistogram> entry : latencies.entrySet()){
+            LatencyHistogram histogram = entry.getValue();
+            if(histogram.getCount() == 0){
+                continue;
+            }
+            System.out.println(String.format("%-14s %12d %8d %10.0f %10d %10d %10d %10d %10d %10d",
+                    entry.getKey().getName(), histogram.getCount(), errors.get(entry.getKey()).sum(), histogram.getCount() / seconds,
+                    histogram.getMeanMicros(), histogram.getP50Micros(), histogram.getP90Micros(), histogram.getP99Micros(),
+                    histogram.getPercentileNanos(99.9) / 1000, histogram.getMaxMicros()));
+        }
+    }
+
+    private void printZookeeper(Map<String, Long> before, Map<String, Long> after,
+                                Map<String, Long> serverBefore, Map<String, Long> serverAfter, long elapsedNanos){
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder text = new StringBuilder("Zookeeper操作:");
+        for(Map.Entry<String, Long> entry : after.entrySet()){
+            long delta = entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+            text.append(' ').append(entry.getKey()).append(' ').append(delta);
+        }
+        if(!serverBefore.isEmpty() && !serverAfter.isEmpty()){
+            long received = serverAfter.get("Received") - serverBefore.get("Received");
+            text.append(String.format(", 服务器收到的请求 %d (%.0f/秒)", received, received / seconds));
+        }
+        System.out.println(text);
+    }
+
+    /**
+     * 本进程发出的Zookeeper操作数目, 来自 CounterMetrics
+     */
+    private static Map<String, Long> zookeeperStats(){
+        CounterMetrics metrics = CounterMetrics.get();
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("写入", metrics.zookeeperWrite().getCount());
+        stats.put("读取", metrics.zookeeperRead().getCount());
+        stats.put("CAS重试", metrics.getCasRetryCount());
+        stats.put("错误", metrics.getZookeeperErrorCount());
+        return stats;
+    }
+
+    /**
+     * 用四字命令 srvr 读取Zookeeper服务器收到和发出的数据包数目, 包括所有客户端的请求, 读取失败时返回空表
+     */
+    private Map<String, Long> serverStats(){
+        Map<String, Long> stats = new HashMap<>();
+        if(!zookeeper){
+            return stats;
+        }
+        String server = connectString.split(",")[0];
+        int chroot = server.indexOf('/');
+        if(chroot != -1){
+            server = server.substring(0, chroot);
+        }
+        int colon = server.lastIndexOf(':');
+        String host = colon == -1 ? server : server.substring(0, colon);
+        int port = colon == -1 ? 2181 : Integer.parseInt(server.substring(colon + 1));
+        try(Socket socket = new Socket()){
+            socket.connect(new InetSocketAddress(host, port), 3000);
+            socket.setSoTimeout(3000);
+            OutputStream out = socket.getOutputStream();
+            out.write("srvr".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null){
+                String[] field = line.split(":");
+                if(field.length == 2 && ("Received".equals(field[0]) || "Sent".equals(field[0]))){
+                    stats.put(field[0], Long.parseLong(field[1].trim()));
+                }
+            }
+        }catch (Exception e){
+            LOGGER.warn("读取Zookeeper服务器统计信息失败: "+server, e);
+        }
+        return stats.containsKey("Received") ? stats : new HashMap<>();
+    }
+
+    /**
+     * 比较存储中的计数和发出的计数, 细分近似计数模式下细分计数只要求不小于发出的计数
+     * @return 是否全部准确
+     */
+    private boolean verify(){
+        CounterClient client = clients.get(0);
+        boolean sketch = "sketch".equals(ConfUtils.get("dimension.counter.mode", "exact").trim());
+        boolean accurate = true;
+        System.out.println(String.format("%-10s %-18s %-18s %14s %14s %10s", "日期", "apiType", "指标", "发出", "存储", "差值"));
+        for(String day : expected.getDays()){
+            for(int i=0; i<apiTypeCount; i++){
+                for(Metric metric : Metric.values()){
+                    long want = expected.get(day, metric, i);
+                    long actual = client.getValue(metric.path(day, apiTypes[i]));
+                    accurate &= actual == want;
+                    System.out.println(String.format("%-10s %-18s %-18s %14d %14d %10d",
+                            day, apiTypes[i], metric.name(), want, actual, actual - want));
+                }
+                long productError = 0;
+                long tvError = 0;
+                boolean dimensionAccurate = true;
+                for(int p=0; p<productCount; p++){
+                    long want = expected.getProduct(day, i, p);
+                    long actual = client.getResponseSuccessCountForProduct(day, apiTypes[i], p + 1);
+                    productError += Math.abs(actual - want);
+                    dimensionAccurate &= sketch ? actual >= want : actual == want;
+                }
+                for(int t=0; t<tvCount; t++){
+                    long want = expected.getTv(day, i, t);
+                    long actual = client.getResponseSuccessCountForTv(day, apiTypes[i], t + 1);
+                    tvError += Math.abs(actual - want);
+                    dimensionAccurate &= sketch ? actual >= want : actual == want;
+                }
+                accurate &= dimensionAccurate;
+                System.out.println(String.format("%-10s %-18s 产品细分误差合计 %d, 电视细分误差合计 %d%s",
+                        day, apiTypes[i], productError, tvError, dimensionAccurate ? "" : ", 不准确"));
+            }
+        }
+        System.out.println("计数准确性: " + (accurate ? "准确" : "不准确"));
+        return accurate;
+    }
+}
@@ -0,0 +1,73 @@
+package org.apdplat.counter.load;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 操作的比例
+ *
+ * 格式为 操作:权重, 用逗号分隔, 如 acquire:60,dimension:10,setLimit:0.01, 权重可以是小数, 不需要加起来等于100
+ */
+public class LoadMix {
+    private final LoadOperation[] operations;
+    //累积权重, 按权重随机选择操作时二分查找
+    private final double[] cumulative;
+    private final Map<LoadOperation, Double> weights;
+
+    private LoadMix(Map<LoadOperation, Double> weights) {
+        this.weights = weights;
+        this.operations = new LoadOperation[weights.size()];
+        this.cumulative = new double[weights.size()];
+        double total = 0;
+        int i = 0;
+        for(Map.Entry<LoadOperation, Double> entry : weights.entrySet()){
+            total += entry.getValue();
+            operations[i] = entry.getKey();
+            cumulative[i] = total;
+            i++;
+        }
+    }
+
+    public static LoadMix parse(String mix){
+        Map<LoadOperation, Double> weights = new EnumMap<>(LoadOperation.class);
+        for(String attr : mix.split(",")){
+            String[] field = attr.split(":");
+            if(field.length != 2){
+                throw new IllegalArgumentException("操作比例配置错误: "+attr+", 格式为 操作:权重");
+            }
+            double weight = Double.parseDouble(field[1].trim());
+            if(weight > 0){
+                weights.merge(LoadOperation.of(field[0]), weight, Double::sum);
+            }
+        }
+        if(weights.isEmpty()){
+            throw new IllegalArgumentException("没有权重大于0的操作: "+mix);
+        }
+        return new LoadMix(weights);
+    }
+
+    /**
+     * 按权重随机选择一个操作
+     * @return
+     */
+    public LoadOperation next(){
+        double value = ThreadLocalRandom.current().nextDouble(cumulative[cumulative.length - 1]);
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if(cumulative[middle] <= value){
+                low = middle + 1;
+            }else{
+                high = middle;
+            }
+        }
+        return operations[low];
+    }
+
+    @Override
+    public String toString() {
+        return weights.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package org.apdplat.counter.load;
+
+/**
+ * 负载测试中的一种操作
+ */
+public enum LoadOperation {
+    //获取一次配额, 获取到时计为成功, 否则计为超出配额, 和 README 中推荐的用法相同
+    ACQUIRE("acquire"),
+    //先读取当天的成功计数和限制值, 没有超过时计为成功, 否则计为超出配额
+    CHECK("check"),
+    //成功计数
+    SUCCESS("success"),
+    //按产品和电视细分的成功计数
+    DIMENSION("dimension"),
+    NO_RESPONSE("noResponse"),
+    WRONG_CONTENT("wrongContent"),
+    EXCEPTION("exception"),
+    BEYOND("beyond"),
+    //修改限制值
+    SET_LIMIT("setLimit");
+
+    private final String name;
+
+    LoadOperation(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public static LoadOperation of(String name){
+        for(LoadOperation operation : values()){
+            if(operation.name.equals(name.trim())){
+                return operation;
+            }
+        }
+        throw new IllegalArgumentException("未知的操作: "+name);
+    }
+}
@@ -0,0 +1,307 @@
+package org.apdplat.counter.metrics;
+
+import org.apache.commons.lang.StringUtils;
+import org.apdplat.counter.util.ConfUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 计数器运行指标
+ *
+ * 计数的热路径上只做 LongAdder 累加和直方图分桶, 不加锁
+ * 配置 metrics.jmx.enabled=true 时注册为JMX MBean:
+ *     org.apdplat.counter:type=CounterMetrics
+ *     org.apdplat.counter:type=CounterMetrics,name=enqueue 等延迟直方图
+ * 配置 metrics.reporters 时按 metrics.report.interval.ms 的间隔把指标交给上报器
+ */
+public class CounterMetrics implements CounterMetricsMBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CounterMetrics.class);
+
+    public static final String OBJECT_NAME = "org.apdplat.counter:type=CounterMetrics";
+
+    private static final CounterMetrics INSTANCE = new CounterMetrics();
+
+    static {
+        if(ConfUtils.getBoolean("metrics.jmx.enabled", true)){
+            INSTANCE.registerMBeans();
+        }
+        for(String name : ConfUtils.get("metrics.reporters", "").split(",")){
+            if(StringUtils.isNotBlank(name)){
+                MetricsReporter reporter = createReporter(name.trim());
+                if(reporter != null) {
+                    INSTANCE.addReporter(reporter);
+                }
+            }
+        }
+    }
+
+    //调用方把增量放入异步队列的耗时, 队列满时包含阻塞的时间
+    private final LatencyHistogram enqueue = new LatencyHistogram();
+    //增量从放入队列到被工作线程取出的时间
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    //工作线程写入一批合并后增量的耗时
+    private final LatencyHistogram flush = new LatencyHistogram();
+    //写Zookeeper的往返时间
+    private final LatencyHistogram zookeeperWrite = new LatencyHistogram();
+    //读Zookeeper的往返时间
+    private final LatencyHistogram zookeeperRead = new LatencyHistogram();
+
+    private final LongAdder casRetries = new LongAdder();
+    private final LongAdder zookeeperErrors = new LongAdder();
+    private final LongAdder failedDeltas = new LongAdder();
+    private final LongAdder droppedDeltas = new LongAdder();
+    private final LongAdder readFailures = new LongAdder();
+
+    private volatile LongSupplier queueDepth = () -> 0;
+    private volatile long queueCapacity;
+    private volatile LongSupplier coalescePending = () -> 0;
+
+    private final List<MetricsReporter> reporters = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService reportScheduler;
+
+    private CounterMetrics() {
+    }
+
+    public static CounterMetrics get(){
+        return INSTANCE;
+    }
+
+    public LatencyHistogram enqueue() {
+        return enqueue;
+    }
+
+    public LatencyHistogram queueWait() {
+        return queueWait;
+    }
+
+    public LatencyHistogram flush() {
+        return flush;
+    }
+
+    public LatencyHistogram zookeeperWrite() {
+        return zookeeperWrite;
+    }
+
+    public LatencyHistogram zookeeperRead() {
+        return zookeeperRead;
+    }
+
+    /**
+     * 乐观锁(版本号)冲突后的重试
+     * @param n 重试次数
+     */
+    public void casRetry(long n){
+        if(n > 0) {
+            casRetries.add(n);
+        }
+    }
+
+    public void zookeeperError(){
+        zookeeperErrors.increment();
+    }
+
+    /**
+     * 写入失败的增量
+     * @param n 增量数目
+     */
+    public void failedDelta(long n){
+        failedDeltas.add(n);
+    }
+
+    /**
+     * 没有放入队列或者关闭时还没写入而丢弃的增量
+     * @param n 增量数目
+     */
+    public void droppedDelta(long n){
+        droppedDeltas.add(n);
+    }
+
+    /**
+     * 读取失败返回-1
+     */
+    public void readFailure(){
+        readFailures.increment();
+    }
+
+    /**
+     * @param depth 异步队列中等待写入的增量数目
+     * @param capacity 异步队列的总容量
+     */
+    public void setQueueGauge(LongSupplier depth, long capacity){
+        this.queueDepth = depth;
+        this.queueCapacity = capacity;
+    }
+
+    /**
+     * @param pending 增量合并器中等待刷新的计数器数目
+     */
+    public void setCoalescePendingGauge(LongSupplier pending){
+        this.coalescePending = pending;
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueue.getCount();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queueDepth.getAsLong();
+    }
+
+    @Override
+    public long getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    @Override
+    public long getCoalescePending() {
+        return coalescePending.getAsLong();
+    }
+
+    @Override
+    public long getCasRetryCount() {
+        return casRetries.sum();
+    }
+
+    @Override
+    public long getZookeeperErrorCount() {
+        return zookeeperErrors.sum();
+    }
+
+    @Override
+    public long getFailedDeltaCount() {
+        return failedDeltas.sum();
+    }
+
+    @Override
+    public long getDroppedDeltaCount() {
+        return droppedDeltas.sum();
+    }
+
+    @Override
+    public long getReadFailureCount() {
+        return readFailures.sum();
+    }
+
+    /**
+     * 当前所有指标的值, 耗时类指标单位为微秒
+     * @return
+     */
+    public Map<String, Long> snapshot(){
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("enqueued", getEnqueuedCount());
+        metrics.put("queue.depth", getQueueDepth());
+        metrics.put("queue.capacity", getQueueCapacity());
+        metrics.put("coalesce.pending", getCoalescePending());
+        metrics.put("cas.retries", getCasRetryCount());
+        metrics.put("zookeeper.errors", getZookeeperErrorCount());
+        metrics.put("deltas.failed", getFailedDeltaCount());
+        metrics.put("deltas.dropped", getDroppedDeltaCount());
+        metrics.put("read.failures", getReadFailureCount());
+        for(Map.Entry<String, LatencyHistogram> entry : histograms().entrySet()){
+            String name = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            metrics.put(name+".count", histogram.getCount());
+            metrics.put(name+".mean.us", histogram.getMeanMicros());
+            metrics.put(name+".p50.us", histogram.getP50Micros());
+            metrics.put(name+".p99.us", histogram.getP99Micros());
+            metrics.put(name+".max.us", histogram.getMaxMicros());
+        }
+        return metrics;
+    }
+
+    /**
+     * 增加上报器, 第一个上报器加入时启动上报线程
+     * @param reporter
+     */
+    public synchronized void addReporter(MetricsReporter reporter){
+        reporters.add(reporter);
+        if(reportScheduler == null){
+            long interval = ConfUtils.getLong("metrics.report.interval.ms", 60000);
+            reportScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "counter-metrics-reporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reportScheduler.scheduleWithFixedDelay(this::report, interval, interval, TimeUnit.MILLISECONDS);
+            LOGGER.info("启动指标上报, 间隔: {} 毫秒", interval);
+        }
+    }
+
+    public void removeReporter(MetricsReporter reporter){
+        reporters.remove(reporter);
+    }
+
+    private void report(){
+        Map<String, Long> metrics = snapshot();
+        for(MetricsReporter reporter : reporters){
+            try {
+                reporter.report(metrics);
+            }catch (Throwable e){
+                LOGGER.error("上报指标出错: "+reporter.getClass().getName(), e);
+            }
+        }
+    }
+
+    private Map<String, LatencyHistogram> histograms(){
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        histograms.put("enqueue", enqueue);
+        histograms.put("queue.wait", queueWait);
+        histograms.put("flush", flush);
+        histograms.put("zookeeper.write", zookeeperWrite);
+        histograms.put("zookeeper.read", zookeeperRead);
+        return histograms;
+    }
+
+    private void registerMBeans(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            register(server, new ObjectName(OBJECT_NAME), this);
+            for(Map.Entry<String, LatencyHistogram> entry : histograms().entrySet()){
+                register(server, new ObjectName(OBJECT_NAME+",name="+entry.getKey()), entry.getValue());
+            }
+            LOGGER.info("注册JMX MBean: {}", OBJECT_NAME);
+        }catch (Exception e){
+            LOGGER.error("注册JMX MBean失败", e);
+        }
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object mbean) throws Exception {
+        if(server.isRegistered(name)){
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(mbean, name);
+    }
+
+    /**
+     * 创建配置的上报器
+     * 在静态初始化中调用, 配置错误只记录日志并跳过该上报器, 不能让计数器类加载失败
+     * @param name logging 或者上报器的类名
+     * @return 无法创建时返回null
+     */
+    private static MetricsReporter createReporter(String name){
+        if("logging".equals(name)){
+            return new LoggingMetricsReporter();
+        }
+        try {
+            return (MetricsReporter)Class.forName(name).getDeclaredConstructor().newInstance();
+        }catch (Exception | LinkageError e){
+            LOGGER.error("无法创建指标上报器: "+name+", 需要实现 "+MetricsReporter.class.getName()+" 并且有无参构造函数, 跳过该上报器", e);
+            return null;
+        }
+    }
+}
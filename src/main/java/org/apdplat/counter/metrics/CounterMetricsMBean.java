@@ -0,0 +1,16 @@
+package org.apdplat.counter.metrics;
+
+/**
+ * 计数器运行指标的JMX接口
+ */
+public interface CounterMetricsMBean {
+    long getEnqueuedCount();
+    long getQueueDepth();
+    long getQueueCapacity();
+    long getCoalescePending();
+    long getCasRetryCount();
+    long getZookeeperErrorCount();
+    long getFailedDeltaCount();
+    long getDroppedDeltaCount();
+    long getReadFailureCount();
+}
@@ -0,0 +1,107 @@
+package org.apdplat.counter.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图
+ *
+ * 按纳秒数的二进制位数分桶, 第i个桶记录 [2^i, 2^(i+1)) 纳秒的样本, 每个桶是一个 LongAdder,
+ * 记录一个样本只需一次位运算和一次无锁累加, 适合在计数的热路径上使用
+ * 百分位数取样本所在桶的上界, 误差不超过一倍
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for(int i=0; i<BUCKETS; i++){
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一个样本
+     * @param nanos 耗时, 纳秒
+     */
+    public void record(long nanos){
+        if(nanos < 0){
+            nanos = 0;
+        }
+        buckets[63 - Long.numberOfLeadingZeros(nanos | 1)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * 记录从 startNanos 到现在的耗时
+     * @param startNanos System.nanoTime() 的返回值
+     */
+    public void recordSince(long startNanos){
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 百分位数
+     * @param percentile 0到100之间
+     * @return 纳秒
+     */
+    public long getPercentileNanos(double percentile){
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for(int i=0; i<BUCKETS; i++){
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if(total == 0){
+            return 0;
+        }
+        long rank = (long)Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int i=0; i<BUCKETS; i++){
+            seen += counts[i];
+            if(seen >= rank){
+                long upper = i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public long getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(sum.sum() / n);
+    }
+
+    @Override
+    public long getP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(50));
+    }
+
+    @Override
+    public long getP90Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(90));
+    }
+
+    @Override
+    public long getP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getPercentileNanos(99));
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(max.get());
+    }
+}
@@ -0,0 +1,13 @@
+package org.apdplat.counter.metrics;
+
+/**
+ * 延迟直方图的JMX接口, 时间单位为微秒
+ */
+public interface LatencyHistogramMBean {
+    long getCount();
+    long getMeanMicros();
+    long getP50Micros();
+    long getP90Micros();
+    long getP99Micros();
+    long getMaxMicros();
+}
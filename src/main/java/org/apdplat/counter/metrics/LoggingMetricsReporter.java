@@ -0,0 +1,18 @@
+package org.apdplat.counter.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * 把指标输出到日志
+ */
+public class LoggingMetricsReporter implements MetricsReporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoggingMetricsReporter.class);
+
+    @Override
+    public void report(Map<String, Long> metrics) {
+        LOGGER.info("计数器指标: {}", metrics);
+    }
+}
@@ -0,0 +1,16 @@
+package org.apdplat.counter.metrics;
+
+import java.util.Map;
+
+/**
+ * 指标上报接口
+ *
+ * 按 metrics.report.interval.ms 配置的间隔被调用, 可以把指标推送到外部监控系统
+ * 实现类需要有无参构造函数才能通过 metrics.reporters 配置
+ */
+public interface MetricsReporter {
+    /**
+     * @param metrics key为指标名称, value为指标值, 耗时类指标单位为微秒
+     */
+    void report(Map<String, Long> metrics);
+}
@@ -4,9 +4,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.util.HashMap;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
 
 /**
  * 配置工具
@@ -18,18 +33,46 @@ import java.util.concurrent.atomic.AtomicInteger;
  *         可以用系统属性覆盖以上两个文件的配置
  *         以 # 号开始的行为注释
  *         K 和 V 之间用 = 号连接
+ *         所有配置项保存在一个不可变的快照中, 重新加载时先构造新的快照再整体替换, 读取配置不会看到加载了一半的配置
+ *         set 和 forceOverride 指定的值在重新加载后仍然有效
+ *         配置 conf.watch.interval.ms 大于0时每隔该毫秒数检查一次配置文件, 文件修改后自动重新加载
+ *         可以用 addListener 监听配置项的变化, 重新加载后值发生变化时在重新加载的线程中回调
  * Created by ysc on 1/9/2017.
  */
 public class ConfUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConfUtils.class);
 
-    private static final Map<String, String> CONF = new HashMap<>();
+    private static final String[] CONF_FILES = {"conf/conf.txt", "conf/conf.production.txt", "configure.properties"};
+
+    private static volatile Map<String, String> CONF = Collections.emptyMap();
+    //set 指定的值, 重新加载后覆盖配置文件中的值
+    private static final Map<String, String> OVERRIDES = new LinkedHashMap<>();
+    //forceOverride 指定的配置文件, 重新加载时再次加载
+    private static final List<File> FORCED_FILES = new CopyOnWriteArrayList<>();
+    private static final Map<String, List<Consumer<String>>> LISTENERS = new ConcurrentHashMap<>();
+    //监视的配置文件最后修改时间, 只能监视文件系统中的配置文件, jar包中的配置文件不监视
+    private static final Map<File, Long> WATCHED = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService watcher;
 
     public static void set(String key, String value){
-        CONF.put(key, value);
+        synchronized (ConfUtils.class) {
+            if (value == null) {
+                OVERRIDES.remove(key);
+            } else {
+                OVERRIDES.put(key, value);
+            }
+            Map<String, String> conf = new LinkedHashMap<>(CONF);
+            if (value == null) {
+                conf.remove(key);
+            } else {
+                conf.put(key, value);
+            }
+            swap(conf);
+        }
     }
     public static boolean getBoolean(String key, boolean defaultValue){
-        String value = CONF.get(key) == null ? Boolean.valueOf(defaultValue).toString() : CONF.get(key);
+        String configured = CONF.get(key);
+        String value = configured == null ? Boolean.valueOf(defaultValue).toString() : configured;
         if(LOGGER.isDebugEnabled()) {
             LOGGER.debug("获取配置项：" + key + "=" + value);
         }
@@ -39,7 +82,8 @@ public class ConfUtils {
         return getBoolean(key, false);
     }
     public static int getInt(String key, int defaultValue){
-        int value = CONF.get(key) == null ? defaultValue : Integer.parseInt(CONF.get(key).trim());
+        String configured = CONF.get(key);
+        int value = configured == null ? defaultValue : Integer.parseInt(configured.trim());
         if(LOGGER.isDebugEnabled()) {
             LOGGER.debug("获取配置项：" + key + "=" + value);
         }
@@ -48,8 +92,28 @@ public class ConfUtils {
     public static int getInt(String key){
         return getInt(key, -1);
     }
+    public static long getLong(String key, long defaultValue){
+        String configured = CONF.get(key);
+        long value = configured == null ? defaultValue : Long.parseLong(configured.trim());
+        if(LOGGER.isDebugEnabled()) {
+            LOGGER.debug("获取配置项：" + key + "=" + value);
+        }
+        return value;
+    }
+    public static long getLong(String key){
+        return getLong(key, -1);
+    }
+    public static double getDouble(String key, double defaultValue){
+        String configured = CONF.get(key);
+        double value = configured == null ? defaultValue : Double.parseDouble(configured.trim());
+        if(LOGGER.isDebugEnabled()) {
+            LOGGER.debug("获取配置项：" + key + "=" + value);
+        }
+        return value;
+    }
     public static String get(String key, String defaultValue){
-        String value = CONF.get(key) == null ? defaultValue : CONF.get(key);
+        String configured = CONF.get(key);
+        String value = configured == null ? defaultValue : configured;
         if(LOGGER.isDebugEnabled()) {
             LOGGER.debug("获取配置项：" + key + "=" + value);
         }
@@ -62,79 +126,236 @@ public class ConfUtils {
         }
         return value;
     }
+
+    /**
+     * 监听配置项的变化
+     * @param key 配置项
+     * @param listener 参数为新的值, 配置项被删除时为null
+     * @return 调用后取消监听
+     */
+    public static Runnable addListener(String key, Consumer<String> listener){
+        LISTENERS.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(listener);
+        return () -> {
+            List<Consumer<String>> listeners = LISTENERS.get(key);
+            if(listeners != null){
+                listeners.remove(listener);
+            }
+        };
+    }
+
+    /**
+     * 监听整数配置项的变化, 新的值不是整数时记录错误并忽略
+     * @param key 配置项
+     * @param defaultValue 配置项被删除时使用的值
+     * @param listener 参数为新的值
+     * @return 调用后取消监听
+     */
+    public static Runnable addIntListener(String key, int defaultValue, IntConsumer listener){
+        return addListener(key, value -> {
+            try {
+                listener.accept(value == null ? defaultValue : Integer.parseInt(value.trim()));
+            }catch (NumberFormatException e){
+                LOGGER.error("配置项不是整数, 忽略修改：" + key + "=" + value);
+            }
+        });
+    }
+
+    /**
+     * 监听长整数配置项的变化, 新的值不是整数时记录错误并忽略
+     * @param key 配置项
+     * @param defaultValue 配置项被删除时使用的值
+     * @param listener 参数为新的值
+     * @return 调用后取消监听
+     */
+    public static Runnable addLongListener(String key, long defaultValue, LongConsumer listener){
+        return addListener(key, value -> {
+            try {
+                listener.accept(value == null ? defaultValue : Long.parseLong(value.trim()));
+            }catch (NumberFormatException e){
+                LOGGER.error("配置项不是整数, 忽略修改：" + key + "=" + value);
+            }
+        });
+    }
+
+    /**
+     * 监听布尔配置项的变化
+     * @param key 配置项
+     * @param defaultValue 配置项被删除时使用的值
+     * @param listener 参数为新的值
+     * @return 调用后取消监听
+     */
+    public static Runnable addBooleanListener(String key, boolean defaultValue, Consumer<Boolean> listener){
+        return addListener(key, value -> listener.accept(value == null ? defaultValue : value.contains("true")));
+    }
+
     static{
         reload();
+        long interval = getLong("conf.watch.interval.ms", 0);
+        if(interval > 0){
+            watch(interval);
+        }
     }
     /**
      * 重新加载配置文件
      */
     public static void reload(){
-        CONF.clear();
-        LOGGER.info("开始加载配置文件");
-        long start = System.currentTimeMillis();
-        loadConf("conf/conf.txt");
-        loadConf("conf/conf.production.txt");
-        loadConf("configure.properties");
-        checkSystemProperties();
-        long cost = System.currentTimeMillis() - start;
-        LOGGER.info("配置文件加载完毕，耗时" + cost + " 毫秒，配置项数目：" + CONF.size());
-        LOGGER.info("配置信息：");
-        AtomicInteger i = new AtomicInteger();
-        for(String key : CONF.keySet()){
-            LOGGER.info(i.incrementAndGet() + "、" + key + "=" + CONF.get(key));
+        synchronized (ConfUtils.class) {
+            LOGGER.info("开始加载配置文件");
+            long start = System.currentTimeMillis();
+            Map<String, String> conf = new LinkedHashMap<>();
+            for (String confFile : CONF_FILES) {
+                loadConf(confFile, conf);
+            }
+            checkSystemProperties(conf);
+            for (File confFile : FORCED_FILES) {
+                loadConf(confFile, conf);
+            }
+            conf.putAll(OVERRIDES);
+            swap(conf);
+            long cost = System.currentTimeMillis() - start;
+            LOGGER.info("配置文件加载完毕，耗时" + cost + " 毫秒，配置项数目：" + conf.size());
+            LOGGER.info("配置信息：");
+            AtomicInteger i = new AtomicInteger();
+            for (Map.Entry<String, String> entry : conf.entrySet()) {
+                LOGGER.info(i.incrementAndGet() + "、" + entry.getKey() + "=" + entry.getValue());
+            }
         }
     }
     /**
-     * 强制覆盖默认配置
+     * 强制覆盖默认配置, 重新加载时再次覆盖
      * @param confFile 配置文件
      */
     public static void forceOverride(File confFile) {
-        try(InputStream in = new FileInputStream(confFile)){
-            LOGGER.info("使用配置文件 {} 强制覆盖默认配置", confFile.getAbsolutePath());
-            loadConf(in);
-        } catch (Exception ex) {
-            LOGGER.error("强制覆盖默认配置失败：", ex);
-        }
-        int i=1;
-        for(String key : CONF.keySet()){
-            LOGGER.info((i++)+"、"+key+"="+ CONF.get(key));
+        synchronized (ConfUtils.class) {
+            Map<String, String> conf = new LinkedHashMap<>(CONF);
+            if(!loadConf(confFile, conf)){
+                return;
+            }
+            FORCED_FILES.add(confFile);
+            conf.putAll(OVERRIDES);
+            swap(conf);
+            int i = 1;
+            for (Map.Entry<String, String> entry : conf.entrySet()) {
+                LOGGER.info((i++) + "、" + entry.getKey() + "=" + entry.getValue());
+            }
         }
     }
     /**
-     * 强制覆盖默认配置
+     * 强制覆盖默认配置, 重新加载时再次覆盖
      * @param confFile 配置文件路径
      */
     public static void forceOverride(String confFile) {
-        File file = new File(confFile);
-        try(InputStream in = new FileInputStream(file)){
-            LOGGER.info("使用配置文件 {} 强制覆盖默认配置", file.getAbsolutePath());
-            loadConf(in);
-        } catch (Exception ex) {
-            LOGGER.error("强制覆盖默认配置失败：", ex);
+        forceOverride(new File(confFile));
+    }
+
+    /**
+     * 每隔 intervalMs 毫秒检查一次配置文件, 文件修改后重新加载, 多次调用只启动一次
+     * @param intervalMs 检查间隔, 毫秒
+     */
+    public static synchronized void watch(long intervalMs){
+        if(watcher != null){
+            return;
         }
-        int i=1;
-        for(String key : CONF.keySet()){
-            LOGGER.info((i++)+"、"+key+"="+ CONF.get(key));
+        watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "conf-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(ConfUtils::checkModified, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        LOGGER.info("每隔 {} 毫秒检查一次配置文件是否修改, 监视的文件: {}", intervalMs, WATCHED.keySet());
+    }
+
+    private static void checkModified(){
+        try {
+            for (Map.Entry<File, Long> entry : WATCHED.entrySet()) {
+                if (entry.getKey().lastModified() != entry.getValue()) {
+                    LOGGER.info("配置文件 {} 已修改, 重新加载", entry.getKey().getAbsolutePath());
+                    reload();
+                    return;
+                }
+            }
+        }catch (Throwable e){
+            LOGGER.error("检查配置文件是否修改出错", e);
+        }
+    }
+
+    /**
+     * 替换配置快照, 通知值发生变化的配置项的监听器
+     */
+    private static void swap(Map<String, String> conf){
+        Map<String, String> old = CONF;
+        CONF = Collections.unmodifiableMap(conf);
+        if(LISTENERS.isEmpty()){
+            return;
+        }
+        Set<String> keys = new HashSet<>(old.keySet());
+        keys.addAll(conf.keySet());
+        for(String key : keys){
+            String value = conf.get(key);
+            if(Objects.equals(old.get(key), value)){
+                continue;
+            }
+            List<Consumer<String>> listeners = LISTENERS.get(key);
+            if(listeners == null){
+                continue;
+            }
+            LOGGER.info("配置项已修改：" + key + "=" + value);
+            for(Consumer<String> listener : new ArrayList<>(listeners)){
+                try {
+                    listener.accept(value);
+                }catch (Throwable e){
+                    LOGGER.error("配置项监听器出错：" + key + "=" + value, e);
+                }
+            }
         }
     }
     /**
      * 加载配置文件
      * @param confFile 类路径下的配置文件
      */
-    private static void loadConf(String confFile) {
-        InputStream in = ConfUtils.class.getClassLoader().getResourceAsStream(confFile);
-        if(in == null){
+    private static void loadConf(String confFile, Map<String, String> conf) {
+        URL url = ConfUtils.class.getClassLoader().getResource(confFile);
+        if(url == null){
             LOGGER.info("未找到配置文件："+confFile);
             return;
         }
+        if("file".equals(url.getProtocol())){
+            try {
+                File file = new File(url.toURI());
+                WATCHED.put(file, file.lastModified());
+            }catch (Exception e){
+                LOGGER.debug("无法监视配置文件："+url, e);
+            }
+        }
         LOGGER.info("加载配置文件："+confFile);
-        loadConf(in);
+        try(InputStream in = url.openStream()){
+            loadConf(in, conf);
+        } catch (IOException ex) {
+            System.err.println("配置文件加载失败:"+ex.getMessage());
+            throw new RuntimeException(ex);
+        }
+    }
+    /**
+     * 加载文件系统中的配置文件
+     * @param confFile 配置文件
+     * @return 是否加载成功
+     */
+    private static boolean loadConf(File confFile, Map<String, String> conf) {
+        try(InputStream in = new FileInputStream(confFile)){
+            LOGGER.info("使用配置文件 {} 强制覆盖默认配置", confFile.getAbsolutePath());
+            WATCHED.put(confFile, confFile.lastModified());
+            loadConf(in, conf);
+            return true;
+        } catch (Exception ex) {
+            LOGGER.error("强制覆盖默认配置失败：", ex);
+            return false;
+        }
     }
     /**
      * 加载配置文件
      * @param in 文件输入流
      */
-    private static void loadConf(InputStream in) {
+    private static void loadConf(InputStream in, Map<String, String> conf) {
         try(BufferedReader reader = new BufferedReader(new InputStreamReader(in, "utf-8"))){
             String line;
             while((line = reader.readLine()) != null){
@@ -151,12 +372,12 @@ public class ConfUtils {
                 if(index>0 && line.length()>index+1) {
                     String key = line.substring(0, index).trim();
                     String value = line.substring(index + 1, line.length()).trim();
-                    CONF.put(key, value);
+                    conf.put(key, value);
                 }
                 //有K无V
                 else if(index>0 && line.length()==index+1) {
                     String key = line.substring(0, index).trim();
-                    CONF.put(key, "");
+                    conf.put(key, "");
                 }else{
                     LOGGER.error("错误的配置："+line);
                 }
@@ -169,11 +390,11 @@ public class ConfUtils {
     /**
      * 使用系统属性覆盖配置文件
      */
-    private static void checkSystemProperties() {
-        for(String key : CONF.keySet()){
+    private static void checkSystemProperties(Map<String, String> conf) {
+        for(String key : conf.keySet()){
             String value = System.getProperty(key);
             if(value != null){
-                CONF.put(key, value);
+                conf.put(key, value);
                 LOGGER.info("系统属性覆盖默认配置："+key+"="+value);
             }
         }
@@ -181,4 +402,4 @@ public class ConfUtils {
     public static void main(String[] args){
         System.out.println(get("atomic.counter.zookeeper.connect"));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package org.apdplat.counter.util;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 按天分桶的时钟
+ *
+ * 当天的日期字符串(yyyyMMdd)只格式化一次, 过了零点后原子地切换到新的一天,
+ * 获取当天日期时只需要比较一次当前时间, 不创建任何对象
+ */
+public class DayClock {
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private static final AtomicReference<Day> CURRENT = new AtomicReference<>(Day.of(LocalDate.now()));
+
+    /**
+     * 当天
+     * @return
+     */
+    public static Day current(){
+        Day day = CURRENT.get();
+        if(System.currentTimeMillis() >= day.getEndMillis()){
+            Day next = Day.of(LocalDate.now());
+            if(!CURRENT.compareAndSet(day, next)){
+                next = CURRENT.get();
+            }
+            day = next;
+        }
+        return day;
+    }
+
+    /**
+     * 当天的日期字符串, 格式为yyyyMMdd
+     * @return
+     */
+    public static String today(){
+        return current().getName();
+    }
+
+    public static class Day {
+        private final String name;
+        private final long startMillis;
+        private final long endMillis;
+
+        private Day(String name, long startMillis, long endMillis) {
+            this.name = name;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+
+        public static Day of(LocalDate date){
+            ZoneId zone = ZoneId.systemDefault();
+            return new Day(date.format(DAY_FORMATTER),
+                    date.atStartOfDay(zone).toInstant().toEpochMilli(),
+                    date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli());
+        }
+
+        /**
+         * 解析日期字符串
+         * @param name 格式为yyyyMMdd
+         * @return
+         */
+        public static Day parse(String name){
+            return of(LocalDate.parse(name, DAY_FORMATTER));
+        }
+
+        /**
+         * 日期字符串, 格式为yyyyMMdd
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public boolean isExpired(){
+            return System.currentTimeMillis() >= endMillis;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
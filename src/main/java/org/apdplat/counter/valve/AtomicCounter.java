@@ -1,187 +1,247 @@
 package org.apdplat.counter.valve;
 
-import org.apache.curator.framework.CuratorFramework;
-import org.apache.curator.framework.recipes.atomic.AtomicValue;
-import org.apache.curator.framework.recipes.atomic.DistributedAtomicLong;
-import org.apache.curator.retry.RetryNTimes;
-import org.apache.curator.utils.ZKPaths;
-import org.apdplat.counter.util.ConfUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 
 /**
+ * 默认计数客户端的静态入口
+ *
+ * 所有方法都委托给 CounterClient.getDefault(), 第一次调用时按配置文件创建并启动默认客户端,
+ * 需要显式控制启动、就绪和关闭时直接使用 CounterClient
  * Created by ysc on 1/9/2017.
  */
 public class AtomicCounter {
-    private static final Logger LOGGER = LoggerFactory.getLogger(AtomicCounter.class);
-
-    private static final String NO_RESPONSE_COUNT = Zookeeper.getCounterPrefix()+"/api_call_atomic_counter_zookeeper_no_response";
-    private static final String WRONG_CONTENT_COUNT = Zookeeper.getCounterPrefix()+"/api_call_atomic_counter_zookeeper_wrong_content";
-    private static final String RESPONSE_SUCCESS_COUNT = Zookeeper.getCounterPrefix()+"/api_call_atomic_counter_zookeeper_response_success";
-    private static final String EXCEPTION_COUNT = Zookeeper.getCounterPrefix()+"/api_call_atomic_counter_zookeeper_exception";
-    private static final String BEYOND_COUNT = Zookeeper.getCounterPrefix()+"/api_call_atomic_counter_zookeeper_beyond";
-
-    private static final BlockingQueue<Counter> BLOCKING_QUEUE = new ArrayBlockingQueue<>(10000000);
-
-    private static final RetryNTimes RETRY_N_TIMES = new RetryNTimes(10, 10);
-    private static final CuratorFramework CURATOR_FRAMEWORK = Zookeeper.getCuratorFramework();
-    private static final Map<String, DistributedAtomicLong> COUNTERS = new ConcurrentHashMap<>();
-
-    private static final boolean ASYNC = ConfUtils.getBoolean("async", false);
-
-    static {
-        if(ASYNC) {
-            Executors.newSingleThreadExecutor()
-                    .submit(() -> {
-                        while (true) {
-                            try {
-                                Counter counter = BLOCKING_QUEUE.take();
-                                if (counter != null) {
-                                    addInSync(counter.getPath(), counter.getDelta());
-                                }
-                            } catch (Throwable e) {
-                                LOGGER.error("执行计数器出错", e);
-                            }
-                        }
-                    });
-        }
+    /**
+     * 获取计数器句柄, 调用方可以持有句柄直接计数, 避免每次计数都构造计数器路径
+     * @param metric 指标
+     * @param adType apiType
+     * @return
+     */
+    public static CounterHandle handle(Metric metric, String adType){
+        return CounterClient.getDefault().handle(metric, adType);
     }
 
     public static void noResponse(long delta, String adType){
-        add(NO_RESPONSE_COUNT+"_"+new SimpleDateFormat("yyyyMMdd").format(new Date())+"_"+adType, delta);
+        CounterClient.getDefault().noResponse(delta, adType);
     }
 
     public static void wrongContent(long delta, String adType){
-        add(WRONG_CONTENT_COUNT+"_"+new SimpleDateFormat("yyyyMMdd").format(new Date())+"_"+adType, delta);
+        CounterClient.getDefault().wrongContent(delta, adType);
     }
 
     public static void responseSuccess(long delta, String adType){
-        responseSuccess(delta, adType, null, null);
+        CounterClient.getDefault().responseSuccess(delta, adType);
     }
 
     public static void responseSuccess(long delta, String adType, Integer productId, Integer tvId){
-        add(RESPONSE_SUCCESS_COUNT+"_"+new SimpleDateFormat("yyyyMMdd").format(new Date())+"_"+adType, delta);
-        if(productId != null){
-            add(RESPONSE_SUCCESS_COUNT+"_"+new SimpleDateFormat("yyyyMMdd").format(new Date())+"_"+adType+"_p_"+productId, delta);
-        }
-        if(tvId != null){
-            add(RESPONSE_SUCCESS_COUNT+"_"+new SimpleDateFormat("yyyyMMdd").format(new Date())+"_"+adType+"_t_"+tvId, delta);
-        }
+        CounterClient.getDefault().responseSuccess(delta, adType, productId, tvId);
     }
 
     public static void exception(long delta, String adType){
-        add(EXCEPTION_COUNT+"_"+new SimpleDateFormat("yyyyMMdd").format(new Date())+"_"+adType, delta);
+        CounterClient.getDefault().exception(delta, adType);
     }
 
     public static void beyond(long delta, String adType){
-        add(BEYOND_COUNT+"_"+new SimpleDateFormat("yyyyMMdd").format(new Date())+"_"+adType, delta);
+        CounterClient.getDefault().beyond(delta, adType);
     }
 
     public static long getNoResponseCount(String adType){
-        return getNoResponseCount(new SimpleDateFormat("yyyyMMdd").format(new Date()), adType);
+        return CounterClient.getDefault().getNoResponseCount(adType);
     }
 
     public static long getNoResponseCount(String day, String adType){
-        return getValue(NO_RESPONSE_COUNT+"_"+day+"_"+adType);
+        return CounterClient.getDefault().getNoResponseCount(day, adType);
     }
 
     public static long getWrongContentCount(String adType){
-        return getWrongContentCount(new SimpleDateFormat("yyyyMMdd").format(new Date()), adType);
+        return CounterClient.getDefault().getWrongContentCount(adType);
     }
 
     public static long getWrongContentCount(String day, String adType){
-        return getValue(WRONG_CONTENT_COUNT+"_"+day+"_"+adType);
+        return CounterClient.getDefault().getWrongContentCount(day, adType);
     }
 
     public static long getResponseSuccessCount(String adType){
-        return getResponseSuccessCount(new SimpleDateFormat("yyyyMMdd").format(new Date()), adType);
+        return CounterClient.getDefault().getResponseSuccessCount(adType);
     }
 
     public static long getResponseSuccessCount(String day, String adType){
-        return getValue(RESPONSE_SUCCESS_COUNT+"_"+day+"_"+adType);
+        return CounterClient.getDefault().getResponseSuccessCount(day, adType);
     }
 
+    /**
+     * 按产品细分的成功计数, 细分近似计数模式下返回估计值, 不小于真实值
+     * @param day
+     * @param adType
+     * @param productId
+     * @return
+     */
     public static long getResponseSuccessCountForProduct(String day, String adType, Integer productId){
-        return getValue(RESPONSE_SUCCESS_COUNT+"_"+day+"_"+adType+"_p_"+productId);
+        return CounterClient.getDefault().getResponseSuccessCountForProduct(day, adType, productId);
     }
 
+    /**
+     * 按电视细分的成功计数, 细分近似计数模式下返回估计值, 不小于真实值
+     * @param day
+     * @param adType
+     * @param tvId
+     * @return
+     */
     public static long getResponseSuccessCountForTv(String day, String adType, Integer tvId){
-        return getValue(RESPONSE_SUCCESS_COUNT+"_"+day+"_"+adType+"_t_"+tvId);
+        return CounterClient.getDefault().getResponseSuccessCountForTv(day, adType, tvId);
+    }
+
+    /**
+     * 成功计数最多的产品, 按计数从大到小排序
+     * 细分近似计数模式下最多返回 dimension.top.k 个, 计数为估计值
+     * @param day
+     * @param adType
+     * @return key为产品ID, value为计数
+     */
+    public static Map<Integer, Long> getTopProducts(String day, String adType){
+        return CounterClient.getDefault().getTopProducts(day, adType);
+    }
+
+    /**
+     * 成功计数最多的电视, 按计数从大到小排序
+     * 细分近似计数模式下最多返回 dimension.top.k 个, 计数为估计值
+     * @param day
+     * @param adType
+     * @return key为电视ID, value为计数
+     */
+    public static Map<Integer, Long> getTopTvs(String day, String adType){
+        return CounterClient.getDefault().getTopTvs(day, adType);
+    }
+
+    /**
+     * 细分近似计数模式下按产品或电视细分计数
+     * @return 是否使用细分近似计数模式
+     */
+    static boolean addDimension(String path, String day, int id, long delta){
+        return CounterClient.getDefault().addDimension(path, day, id, delta);
     }
 
     public static long getExceptionCount(String adType){
-        return getExceptionCount(new SimpleDateFormat("yyyyMMdd").format(new Date()), adType);
+        return CounterClient.getDefault().getExceptionCount(adType);
     }
 
     public static long getExceptionCount(String day, String adType){
-        return getValue(EXCEPTION_COUNT+"_"+day+"_"+adType);
+        return CounterClient.getDefault().getExceptionCount(day, adType);
     }
 
     public static long getBeyondCount(String adType){
-        return getBeyondCount(new SimpleDateFormat("yyyyMMdd").format(new Date()), adType);
+        return CounterClient.getDefault().getBeyondCount(adType);
     }
 
     public static long getBeyondCount(String day, String adType){
-        return getValue(BEYOND_COUNT+"_"+day+"_"+adType);
+        return CounterClient.getDefault().getBeyondCount(day, adType);
     }
 
-    private static void add(String path, long delta){
-        if(ASYNC){
-            addInAsync(path, delta);
-        }else{
-            addInSync(path, delta);
-        }
+    /**
+     * 日期范围内每天的计数, 读取失败的日期为-1
+     * @param metric 指标
+     * @param adType apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @return key为日期, 按日期排序
+     */
+    public static Map<String, Long> getDailyCounts(Metric metric, String adType, String fromDay, String toDay){
+        return CounterClient.getDefault().getDailyCounts(metric, adType, fromDay, toDay);
     }
 
-    private static void addInAsync(String path, long delta){
-        try{
-            BLOCKING_QUEUE.put(new Counter(path, delta));
-        }catch (Exception e){
-            LOGGER.error("将计数器加入阻塞队列出错", e);
-        }
+    public static CompletableFuture<Map<String, Long>> getDailyCountsAsync(Metric metric, String adType, String fromDay, String toDay){
+        return CounterClient.getDefault().getDailyCountsAsync(metric, adType, fromDay, toDay);
     }
 
-    private static void addInSync(String path, long delta){
-        try {
-            ZKPaths.mkdirs(CURATOR_FRAMEWORK.getZookeeperClient().getZooKeeper(), path);
-            COUNTERS.putIfAbsent(path, new DistributedAtomicLong(CURATOR_FRAMEWORK, path, RETRY_N_TIMES));
-            DistributedAtomicLong counter = COUNTERS.get(path);
-            AtomicValue<Long> returnValue = counter.add(delta);
-            while (!returnValue.succeeded()) {
-                returnValue = counter.add(delta);
-            }
-        }catch (Exception e){
-            LOGGER.error("addInSync "+delta+" failed for "+path, e);
-        }
+    /**
+     * 日期范围内按天、周或月的合计, 范围两端不完整的周和月只合计范围内的日期, 包含读取失败的日期时合计为-1
+     * @param metric 指标
+     * @param adType apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @param period 周期
+     * @return key为周期的键, 如20161118、2016-W46、201611, 按时间排序
+     */
+    public static Map<String, Long> getRollupCounts(Metric metric, String adType, String fromDay, String toDay, RangeQuery.Period period){
+        return CounterClient.getDefault().getRollupCounts(metric, adType, fromDay, toDay, period);
     }
 
-    private static void subtract(String path, long delta){
-        try {
-            ZKPaths.mkdirs(CURATOR_FRAMEWORK.getZookeeperClient().getZooKeeper(), path);
-            COUNTERS.putIfAbsent(path, new DistributedAtomicLong(CURATOR_FRAMEWORK, path, RETRY_N_TIMES));
-            DistributedAtomicLong counter = COUNTERS.get(path);
-            AtomicValue<Long> returnValue = counter.subtract(delta);
-            while (!returnValue.succeeded()) {
-                returnValue = counter.subtract(delta);
-            }
-        }catch (Exception e){
-            LOGGER.error("subtract "+delta+" failed for "+path, e);
-        }
+    public static CompletableFuture<Map<String, Long>> getRollupCountsAsync(Metric metric, String adType, String fromDay, String toDay, RangeQuery.Period period){
+        return CounterClient.getDefault().getRollupCountsAsync(metric, adType, fromDay, toDay, period);
+    }
+
+    /**
+     * 日期范围内的合计, 包含读取失败的日期时为-1
+     * @param metric 指标
+     * @param adType apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @return
+     */
+    public static long getTotalCount(Metric metric, String adType, String fromDay, String toDay){
+        return CounterClient.getDefault().getTotalCount(metric, adType, fromDay, toDay);
+    }
+
+    public static CompletableFuture<Long> getTotalCountAsync(Metric metric, String adType, String fromDay, String toDay){
+        return CounterClient.getDefault().getTotalCountAsync(metric, adType, fromDay, toDay);
+    }
+
+    /**
+     * 并行读取某一天多个apiType的所有计数, 包括按产品和电视细分的成功计数
+     * @param day 日期, 格式为yyyyMMdd
+     * @param adTypes apiType
+     * @return
+     */
+    public static CounterSnapshot snapshot(String day, String... adTypes){
+        return CounterClient.getDefault().snapshot(day, adTypes);
+    }
+
+    /**
+     * 并行读取某一天多个apiType的所有计数, 包括按产品和电视细分的成功计数
+     * 所有读取都通过Curator后台操作同时发出, 不阻塞调用线程
+     * @param day 日期, 格式为yyyyMMdd
+     * @param adTypes apiType
+     * @return
+     */
+    public static CompletableFuture<CounterSnapshot> snapshotAsync(String day, String... adTypes){
+        return CounterClient.getDefault().snapshotAsync(day, adTypes);
+    }
+
+    static void add(String path, long delta){
+        CounterClient.getDefault().add(path, delta);
+    }
+
+    /**
+     * 异步模式下每个工作线程队列中等待写入的增量数目, 同步模式下返回空数组
+     * @return
+     */
+    public static int[] getAsyncQueueDepths(){
+        return CounterClient.getDefault().getAsyncQueueDepths();
+    }
+
+    /**
+     * 非阻塞计数, 通过Curator后台操作直接写入存储, 不经过异步队列和预写日志
+     * 适用于不能阻塞线程的调用方, 如基于事件循环的服务器
+     * @param path 计数器路径
+     * @param delta 增量
+     * @return 写入完成时完成, 写入失败时异常完成
+     */
+    public static CompletableFuture<Void> addAsync(String path, long delta){
+        return CounterClient.getDefault().addAsync(path, delta);
+    }
+
+    /**
+     * 非阻塞读取计数, 读取失败时返回-1
+     * @param path 计数器路径
+     * @return
+     */
+    public static CompletableFuture<Long> getValueAsync(String path){
+        return CounterClient.getDefault().getValueAsync(path);
     }
 
     public static long getValue(String path) {
-        try {
-            DistributedAtomicLong dal = new DistributedAtomicLong(CURATOR_FRAMEWORK, path, RETRY_N_TIMES);
-            return dal.get().postValue();
-        }catch (Exception e){
-            LOGGER.error("get counter exception: "+path, e);
-        }
-        return -1;
+        return CounterClient.getDefault().getValue(path);
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,199 @@
+package org.apdplat.counter.valve;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorOp;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.OpResult;
+import org.apdplat.counter.metrics.CounterMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 批量事务写入
+ *
+ * 并行读取一批计数器节点的当前值和版本号, 然后用一次Zookeeper multi操作提交所有新值,
+ * 一批计数器要么全部写入, 要么全部不写入, 超过 batchSize 的增量分多批提交,
+ * 某一批失败时抛出 PartialFlushException, 其中包含已经提交的计数器, 调用方只需要重新写入其余的计数器
+ * 版本冲突时只重新读取冲突的节点, 其余节点沿用已读取的版本号重新提交
+ */
+public class BatchFlusher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchFlusher.class);
+
+    private static final int MAX_ATTEMPTS = 100;
+
+    private final CuratorFramework curatorFramework;
+    private final ZookeeperAsync zookeeperAsync;
+    private volatile int batchSize;
+
+    /**
+     * @param curatorFramework
+     * @param batchSize 一次multi操作最多包含的计数器数目
+     */
+    public BatchFlusher(CuratorFramework curatorFramework, int batchSize) {
+        this.curatorFramework = curatorFramework;
+        this.zookeeperAsync = new ZookeeperAsync(curatorFramework);
+        this.batchSize = Math.max(1, batchSize);
+        LOGGER.info("启用批量事务写入, 每批最多 {} 个计数器", this.batchSize);
+    }
+
+    /**
+     * 修改一次multi操作最多包含的计数器数目, 下一次写入时生效
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * 把增量写入对应的计数器节点
+     * @param deltas key为计数器节点路径, value为增量
+     * @throws PartialFlushException 某一批写入失败, 之前的批次已经提交
+     */
+    public void flush(Map<String, Long> deltas) throws PartialFlushException {
+        int size = batchSize;
+        Set<String> committed = new HashSet<>();
+        Map<String, Long> batch = new LinkedHashMap<>();
+        for(Map.Entry<String, Long> entry : deltas.entrySet()){
+            batch.put(entry.getKey(), entry.getValue());
+            if(batch.size() >= size){
+                flushBatch(batch, committed);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if(!batch.isEmpty()){
+            flushBatch(batch, committed);
+        }
+    }
+
+    private void flushBatch(Map<String, Long> batch, Set<String> committed) throws PartialFlushException {
+        try {
+            flushBatch(batch);
+        }catch (Exception e){
+            throw new PartialFlushException(committed, e);
+        }
+        committed.addAll(batch.keySet());
+    }
+
+    private void flushBatch(Map<String, Long> batch) throws Exception {
+        Map<String, ZookeeperAsync.VersionedData> current = new HashMap<>();
+        Set<String> stale = batch.keySet();
+        for(int attempt=1; ; attempt++){
+            current.putAll(read(stale));
+            List<String> paths = new ArrayList<>(batch.size());
+            List<CuratorOp> ops = new ArrayList<>(batch.size());
+            for(Map.Entry<String, Long> entry : batch.entrySet()){
+                ZookeeperAsync.VersionedData data = current.get(entry.getKey());
+                long newValue = ShardedCounter.decode(data.getData()) + entry.getValue();
+                paths.add(entry.getKey());
+                ops.add(curatorFramework.transactionOp().setData()
+                        .withVersion(data.getVersion())
+                        .forPath(entry.getKey(), ShardedCounter.encode(newValue)));
+            }
+            try {
+                curatorFramework.transaction().forOperations(ops);
+                if(LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("批量写入 {} 个计数器, 尝试次数: {}", ops.size(), attempt);
+                }
+                return;
+            }catch (KeeperException e){
+                stale = conflicts(paths, e);
+                if(stale.isEmpty() || attempt >= MAX_ATTEMPTS){
+                    throw e;
+                }
+                CounterMetrics.get().casRetry(stale.size());
+                if(LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("批量写入版本冲突, 重新读取 {} 个计数器: {}", stale.size(), stale);
+                }
+            }
+        }
+    }
+
+    /**
+     * 并行读取计数器节点, 不存在的节点先创建
+     * @param paths
+     * @return
+     * @throws Exception
+     */
+    private Map<String, ZookeeperAsync.VersionedData> read(Set<String> paths) throws Exception {
+        Map<String, CompletableFuture<ZookeeperAsync.VersionedData>> futures = new HashMap<>();
+        for(String path : paths){
+            futures.put(path, zookeeperAsync.getVersionedData(path));
+        }
+        Map<String, ZookeeperAsync.VersionedData> result = new HashMap<>();
+        Set<String> missing = new HashSet<>();
+        for(Map.Entry<String, CompletableFuture<ZookeeperAsync.VersionedData>> entry : futures.entrySet()){
+            ZookeeperAsync.VersionedData data = entry.getValue().get();
+            if(data == null){
+                missing.add(entry.getKey());
+            }else{
+                result.put(entry.getKey(), data);
+            }
+        }
+        if(!missing.isEmpty()){
+            for(String path : missing){
+                try {
+                    curatorFramework.create().creatingParentsIfNeeded().forPath(path, ShardedCounter.encode(0));
+                } catch (KeeperException.NodeExistsException e) {
+                    //其他节点已经创建
+                }
+            }
+            result.putAll(read(missing));
+        }
+        return result;
+    }
+
+    /**
+     * multi操作失败时, 找出版本冲突或者已被删除的节点
+     * @param paths 与操作顺序一致的节点路径
+     * @param e
+     * @return
+     */
+    private Set<String> conflicts(List<String> paths, KeeperException e){
+        Set<String> conflicts = new HashSet<>();
+        List<OpResult> results = e.getResults();
+        if(results == null){
+            return conflicts;
+        }
+        for(int i=0; i<results.size() && i<paths.size(); i++){
+            OpResult result = results.get(i);
+            if(result instanceof OpResult.ErrorResult){
+                int err = ((OpResult.ErrorResult) result).getErr();
+                if(err == KeeperException.Code.BADVERSION.intValue() || err == KeeperException.Code.NONODE.intValue()){
+                    conflicts.add(paths.get(i));
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * 分批写入时某一批失败
+     */
+    public static class PartialFlushException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final Set<String> committed;
+
+        public PartialFlushException(Set<String> committed, Throwable cause) {
+            super("批量写入失败, 已经提交 "+committed.size()+" 个计数器", cause);
+            this.committed = committed;
+        }
+
+        /**
+         * 失败之前已经提交的计数器节点路径
+         * @return
+         */
+        public Set<String> getCommitted() {
+            return committed;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.apdplat.counter.valve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 存储访问的熔断器
+ *
+ * 每次访问存储都有延迟预算 timeoutMs, 调用线程最多等待这么久, 超时和失败都计为一次失败,
+ * 最近 windowSize 次调用中至少有 minCalls 次并且失败比例达到 failureRatio 时熔断,
+ * 熔断期间不访问存储, 由调用方在本地降级处理, 经过 openMs 毫秒后放行一次试探调用, 成功则恢复, 失败则继续熔断
+ * 后台线程每隔 reconcileIntervalMs 毫秒执行一次恢复任务, 把熔断期间在本地累加的数据写回存储
+ */
+public class CircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+    private static final AtomicInteger CALL_THREAD_INDEX = new AtomicInteger();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final long timeoutMs;
+    private final int minCalls;
+    private final double failureRatio;
+    private final long openMs;
+    //最近 windowSize 次调用的结果, true 为失败
+    private final boolean[] window;
+    private int windowIndex;
+    private int windowCalls;
+    private int windowFailures;
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    //半开状态下是否已经放行了试探调用
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    //延迟预算的计时器, 不能执行会阻塞的任务
+    private final ScheduledExecutorService scheduler;
+    //执行不支持异步的存储操作, 调用线程只等待延迟预算
+    private final ExecutorService callExecutor;
+    //恢复任务等待写回完成时会阻塞, 和计时器使用不同的线程
+    private final ScheduledExecutorService recoveryScheduler;
+    private final List<Runnable> recoveryTasks = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param timeoutMs 每次访问存储的延迟预算, 毫秒
+     * @param windowSize 统计失败比例的最近调用次数
+     * @param minCalls 最近的调用次数达到该值后才计算失败比例
+     * @param failureRatio 失败比例达到该值时熔断
+     * @param openMs 熔断后经过多少毫秒尝试恢复
+     * @param reconcileIntervalMs 执行恢复任务的间隔, 毫秒
+     */
+    public CircuitBreaker(long timeoutMs, int windowSize, int minCalls, double failureRatio, long openMs, long reconcileIntervalMs) {
+        this.timeoutMs = Math.max(1, timeoutMs);
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minCalls = Math.max(1, Math.min(minCalls, window.length));
+        this.failureRatio = failureRatio;
+        this.openMs = Math.max(1, openMs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-breaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.callExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "counter-breaker-call-" + CALL_THREAD_INDEX.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.recoveryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-breaker-recovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, reconcileIntervalMs);
+        recoveryScheduler.scheduleWithFixedDelay(this::recover, interval, interval, TimeUnit.MILLISECONDS);
+        LOGGER.info("启动熔断器, 延迟预算: {} 毫秒, 统计最近 {} 次调用, 最少 {} 次, 失败比例: {}, 熔断 {} 毫秒后尝试恢复",
+                this.timeoutMs, window.length, this.minCalls, failureRatio, this.openMs);
+    }
+
+    /**
+     * 是否可以访问存储, 返回true时调用方必须用 onSuccess 或 onFailure 报告结果
+     * @return 熔断期间返回false, 半开状态下只放行一次试探调用
+     */
+    public boolean allowRequest(){
+        State current = state;
+        if(current == State.CLOSED){
+            return true;
+        }
+        if(current == State.OPEN){
+            if(System.currentTimeMillis() - openedAt < openMs){
+                return false;
+            }
+            synchronized (this){
+                if(state == State.OPEN && System.currentTimeMillis() - openedAt >= openMs){
+                    state = State.HALF_OPEN;
+                    probing.set(false);
+                    LOGGER.info("熔断器半开, 放行一次试探调用");
+                }
+            }
+        }
+        return state == State.CLOSED || probing.compareAndSet(false, true);
+    }
+
+    public void onSuccess(){
+        if(state == State.HALF_OPEN){
+            synchronized (this){
+                if(state == State.HALF_OPEN){
+                    reset();
+                    state = State.CLOSED;
+                    LOGGER.info("试探调用成功, 熔断器恢复");
+                }
+            }
+            return;
+        }
+        record(false);
+    }
+
+    public void onFailure(){
+        if(state == State.HALF_OPEN){
+            synchronized (this){
+                if(state == State.HALF_OPEN){
+                    open();
+                    LOGGER.warn("试探调用失败, 继续熔断");
+                }
+            }
+            return;
+        }
+        record(true);
+    }
+
+    private synchronized void record(boolean failure){
+        if(state != State.CLOSED){
+            return;
+        }
+        if(windowCalls == window.length){
+            if(window[windowIndex]){
+                windowFailures--;
+            }
+        }else{
+            windowCalls++;
+        }
+        window[windowIndex] = failure;
+        if(failure){
+            windowFailures++;
+        }
+        windowIndex = (windowIndex + 1) % window.length;
+        if(failure && windowCalls >= minCalls && windowFailures >= failureRatio * windowCalls){
+            LOGGER.warn("最近 {} 次访问存储中有 {} 次失败或超时, 熔断 {} 毫秒", windowCalls, windowFailures, openMs);
+            open();
+        }
+    }
+
+    private void open(){
+        reset();
+        openedAt = System.currentTimeMillis();
+        state = State.OPEN;
+    }
+
+    private void reset(){
+        windowIndex = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    /**
+     * 延迟预算内没有完成时异常完成的future, 原来的操作仍然继续执行
+     * @param future 存储操作
+     * @return
+     */
+    public <T> CompletableFuture<T> within(CompletableFuture<T> future){
+        if(future.isDone()){
+            return future;
+        }
+        CompletableFuture<T> bounded = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = scheduler.schedule(
+                () -> bounded.completeExceptionally(new TimeoutException("超过延迟预算 " + timeoutMs + " 毫秒")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, e) -> {
+            timeout.cancel(false);
+            if(e != null){
+                bounded.completeExceptionally(e);
+            }else{
+                bounded.complete(value);
+            }
+        });
+        return bounded;
+    }
+
+    /**
+     * 在后台线程中执行同步的存储操作, 调用方用 within 限制等待时间
+     * @param call 存储操作
+     * @return
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> call){
+        return CompletableFuture.supplyAsync(call, callExecutor);
+    }
+
+    /**
+     * 注册恢复任务, 每隔 reconcileIntervalMs 毫秒执行一次, 由任务自己检查 allowRequest
+     * @param task
+     */
+    public void addRecoveryTask(Runnable task){
+        recoveryTasks.add(task);
+    }
+
+    /**
+     * 立即执行一次所有恢复任务
+     */
+    public void recover(){
+        for(Runnable task : recoveryTasks){
+            try {
+                task.run();
+            }catch (Throwable e){
+                LOGGER.error("执行熔断恢复任务出错", e);
+            }
+        }
+    }
+
+    /**
+     * 停止后台线程
+     */
+    public void shutdown(){
+        recoveryScheduler.shutdown();
+        scheduler.shutdown();
+        callExecutor.shutdown();
+    }
+}
@@ -0,0 +1,354 @@
+package org.apdplat.counter.valve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.UnaryOperator;
+
+/**
+ * 带熔断的计数器存储, 存储变慢或不可用时在本地降级计数
+ *
+ * 每次读写最多等待熔断器的延迟预算, 写入失败、超时后失败或者熔断期间的增量在本地累加,
+ * 熔断恢复后由后台任务写回存储, 写回之前读取时返回最近一次读取到的计数加上本地累加的增量
+ * 批量写入拆分为每个计数器单独的异步写入, 每个写入要么成功要么整体在本地累加, 写回时不会重复计数
+ * 本地累加的增量只在内存中, 没有预写日志时写回之前进程退出会丢失,
+ * 打开预写日志时本地累加的增量另外追加到日志中, 写回存储之后才标记为已写入, 进程退出后重启时重放,
+ * 超时的写入在超时时就追加到日志中, 最终成功时再标记为已写入
+ */
+public class CircuitBreakerCounterStore implements CounterStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreakerCounterStore.class);
+    private static final long[] NO_POSITIONS = new long[0];
+
+    private final CounterStore delegate;
+    private final CircuitBreaker breaker;
+    private final int lastKnownMaxSize;
+    private volatile DeltaJournal journal;
+    //没有写入存储的增量, key为计数器路径
+    private final Map<String, Held> pending = new ConcurrentHashMap<>();
+    //最近一次读取到的计数, 写入成功后同步增加, key为计数器路径
+    private final Map<String, Long> lastKnown = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate 实际的存储
+     * @param breaker 熔断器
+     * @param lastKnownMaxSize 最多记住多少个计数器最近一次读取到的计数
+     */
+    public CircuitBreakerCounterStore(CounterStore delegate, CircuitBreaker breaker, int lastKnownMaxSize) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.lastKnownMaxSize = lastKnownMaxSize;
+        breaker.addRecoveryTask(this::reconcile);
+    }
+
+    /**
+     * 本地累加的增量也追加到预写日志中
+     * @param journal 为null时不写日志
+     */
+    public void setJournal(DeltaJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public void add(String path, long delta) throws Exception {
+        addAsync(path, delta).join();
+    }
+
+    /**
+     * 在延迟预算内完成, 不会异常完成, 没有写入存储的增量在本地累加
+     */
+    @Override
+    public CompletableFuture<Void> addAsync(String path, long delta) {
+        if(!breaker.allowRequest()){
+            addPending(path, delta);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> write = write(path, delta);
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        breaker.within(write).whenComplete((v, e) -> {
+            if(e == null){
+                breaker.onSuccess();
+            }else{
+                breaker.onFailure();
+                if(!isTimeout(e)){
+                    addPending(path, delta);
+                }else{
+                    //超时的写入仍在进行, 最终失败时才在本地累加
+                    Held held = journal(path, delta);
+                    write.whenComplete((written, failure) -> {
+                        if(failure != null){
+                            restore(path, held);
+                        }else{
+                            markFlushed(held);
+                        }
+                    });
+                }
+            }
+            result.complete(null);
+        });
+        return result;
+    }
+
+    @Override
+    public void addAll(Map<String, Long> deltas) throws Exception {
+        List<CompletableFuture<Void>> writes = new ArrayList<>(deltas.size());
+        for(Map.Entry<String, Long> entry : deltas.entrySet()){
+            writes.add(addAsync(entry.getKey(), entry.getValue()));
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])).join();
+    }
+
+    /**
+     * 存储中的计数加上本地累加的增量, 读取失败或熔断期间使用最近一次读取到的计数
+     * @throws IllegalStateException 读取失败并且没有读取过该计数器
+     */
+    @Override
+    public long get(String path) throws Exception {
+        try {
+            return getAsync(path).join();
+        }catch (CompletionException e){
+            if(e.getCause() instanceof Exception){
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> getAsync(String path) {
+        if(!breaker.allowRequest()){
+            return fallback(path, null);
+        }
+        CompletableFuture<Long> read;
+        try {
+            read = delegate.getAsync(path);
+        }catch (RuntimeException e){
+            read = failed(e);
+        }
+        return breaker.within(read).handle((value, e) -> {
+            if(e == null){
+                breaker.onSuccess();
+                remember(path, value);
+                return CompletableFuture.completedFuture(value + pendingOf(path));
+            }
+            breaker.onFailure();
+            return fallback(path, e);
+        }).thenCompose(future -> future);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String parent) {
+        return delegate.listAsync(parent);
+    }
+
+    @Override
+    public boolean watch(String path, Runnable onChange) {
+        return delegate.watch(path, onChange);
+    }
+
+    @Override
+    public byte[] getBytes(String path) throws Exception {
+        return delegate.getBytes(path);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytesAsync(String path) {
+        return delegate.getBytesAsync(path);
+    }
+
+    @Override
+    public void updateBytes(String path, UnaryOperator<byte[]> update) throws Exception {
+        delegate.updateBytes(path, update);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, NodeCount>> getNodeCountsAsync(String path) {
+        return delegate.getNodeCountsAsync(path);
+    }
+
+    @Override
+    public void delete(String path) throws Exception {
+        delegate.delete(path);
+    }
+
+    @Override
+    public boolean delete(String path, int version) throws Exception {
+        return delegate.delete(path, version);
+    }
+
+    /**
+     * 本地累加的还没有写入存储的增量之和
+     * @return
+     */
+    public long getPendingDelta(){
+        long sum = 0;
+        for(Held held : pending.values()){
+            sum += held.delta;
+        }
+        return sum;
+    }
+
+    /**
+     * 熔断器允许时把本地累加的增量写回存储, 写回成功后把预写日志中的记录标记为已写入, 写回失败的增量继续在本地累加
+     */
+    public void reconcile(){
+        for(String path : pending.keySet()){
+            Held held = pending.remove(path);
+            if(held == null){
+                continue;
+            }
+            long delta = held.delta;
+            if(delta == 0){
+                markFlushed(held);
+                continue;
+            }
+            if(!breaker.allowRequest()){
+                restore(path, held);
+                return;
+            }
+            CompletableFuture<Void> write = write(path, delta);
+            try {
+                breaker.within(write).join();
+                breaker.onSuccess();
+                markFlushed(held);
+                LOGGER.info("本地累加的增量已写回存储, 计数器: {}, 增量: {}", path, delta);
+            }catch (CompletionException e){
+                breaker.onFailure();
+                if(isTimeout(e)){
+                    LOGGER.warn("写回本地累加的增量超时, 计数器: {}, 增量: {}", path, delta);
+                    write.whenComplete((v, failure) -> {
+                        if(failure != null){
+                            restore(path, held);
+                        }else{
+                            markFlushed(held);
+                        }
+                    });
+                }else{
+                    restore(path, held);
+                    LOGGER.warn("写回本地累加的增量失败, 计数器: "+path+", 增量: "+delta, e.getCause());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 最后一次写回本地累加的增量, 没有预写日志时没有写回的增量会丢失, 应该在关闭预写日志之前调用
+     */
+    public void close(){
+        reconcile();
+        long left = getPendingDelta();
+        if(left != 0){
+            if(journal != null){
+                LOGGER.warn("关闭时有 {} 个计数器的本地增量没有写回存储, 增量之和: {}, 保留在预写日志中, 重启后重放", pending.size(), left);
+            }else{
+                LOGGER.error("关闭时有 {} 个计数器的本地增量没有写回存储, 增量之和: {}", pending.size(), left);
+            }
+        }
+    }
+
+    /**
+     * 写入存储, 写入成功后同步增加最近一次读取到的计数
+     */
+    private CompletableFuture<Void> write(String path, long delta){
+        CompletableFuture<Void> write;
+        try {
+            write = delegate.addAsync(path, delta);
+        }catch (RuntimeException e){
+            write = failed(e);
+        }
+        return write.whenComplete((v, e) -> {
+            if(e == null){
+                lastKnown.computeIfPresent(path, (k, value) -> value + delta);
+            }
+        });
+    }
+
+    private CompletableFuture<Long> fallback(String path, Throwable e){
+        Long value = lastKnown.get(path);
+        if(value == null){
+            return failed(new IllegalStateException("存储不可用并且没有读取过计数器: "+path, e));
+        }
+        return CompletableFuture.completedFuture(value + pendingOf(path));
+    }
+
+    private void remember(String path, long value){
+        if(lastKnown.size() >= lastKnownMaxSize && !lastKnown.containsKey(path)){
+            return;
+        }
+        lastKnown.put(path, value);
+    }
+
+    private void addPending(String path, long delta){
+        restore(path, journal(path, delta));
+    }
+
+    private void restore(String path, Held held){
+        pending.merge(path, held, Held::plus);
+    }
+
+    /**
+     * 把增量追加到预写日志中, 追加失败时只在本地累加
+     */
+    private Held journal(String path, long delta){
+        DeltaJournal journal = this.journal;
+        if(journal != null){
+            try {
+                return new Held(delta, new long[]{journal.append(path, delta)});
+            }catch (Exception e){
+                LOGGER.error("本地累加的增量追加到预写日志失败, 计数器: "+path+", 增量: "+delta, e);
+            }
+        }
+        return new Held(delta, NO_POSITIONS);
+    }
+
+    private void markFlushed(Held held){
+        DeltaJournal journal = this.journal;
+        if(journal != null){
+            for(long position : held.positions){
+                journal.markFlushed(position);
+            }
+        }
+    }
+
+    private long pendingOf(String path){
+        Held held = pending.get(path);
+        return held == null ? 0 : held.delta;
+    }
+
+    private static boolean isTimeout(Throwable e){
+        return e instanceof TimeoutException || e.getCause() instanceof TimeoutException;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * 本地累加的增量和对应的预写日志记录位置
+     */
+    private static class Held {
+        private final long delta;
+        private final long[] positions;
+
+        private Held(long delta, long[] positions) {
+            this.delta = delta;
+            this.positions = positions;
+        }
+
+        private Held plus(Held other){
+            long[] merged = Arrays.copyOf(positions, positions.length + other.positions.length);
+            System.arraycopy(other.positions, 0, merged, positions.length, other.positions.length);
+            return new Held(delta + other.delta, merged);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * 带熔断的限额存储, 存储变慢或不可用时在本地降级租借配额
+ *
+ * 租借配额最多等待熔断器的延迟预算, 租借失败、超时或者熔断期间从本地的降级配额中租借:
+ * 以本节点最近一次租借时看到的已租出配额为准, 剩余的全局配额在存活节点之间平分, 作为本节点降级期间最多可以租出的配额,
+ * 节点数目取正常租借时和当前已知的存活节点数目中较大的一个, 不少于 minNodeCount,
+ * 本节点当天还没有租借过的apiType或者不知道存活节点数目时没有降级配额
+ * 各节点看到的已租出配额可能落后于实际值, 降级期间最多超出限制值的部分是各节点看到的已租出配额落后于熔断时实际已租出配额的平均数
+ * 熔断恢复后由后台任务把降级期间租出的配额记入全局的租借记录, 之后的租借以全局记录为准
+ * 租借超时的请求仍在进行, 成功时租出的配额不会被本节点使用, 只会少用不会超出限制值
+ * 记入全局租借记录之前进程退出时, 其他节点看不到本节点降级租出的配额, 当天最多超出本节点的降级配额
+ */
+public class CircuitBreakerLimitStore implements LimitStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreakerLimitStore.class);
+
+    private final LimitStore delegate;
+    private final CircuitBreaker breaker;
+    //降级期间租出的还没有记入全局租借记录的配额, key为 {day}_{apiType}
+    private final Map<String, Grant> grants = new ConcurrentHashMap<>();
+    private final int minNodeCount;
+    //正常租借时已知的存活节点数目, 熔断期间成员节点的变化不会减少降级配额的份数
+    private volatile int liveNodeCount;
+
+    /**
+     * @param delegate 实际的限额存储
+     * @param breaker 熔断器
+     * @param minNodeCount 降级租借时至少按多少个节点平分剩余配额, 0表示只使用已知的存活节点数目
+     */
+    public CircuitBreakerLimitStore(LimitStore delegate, CircuitBreaker breaker, int minNodeCount) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.minNodeCount = Math.max(0, minNodeCount);
+        breaker.addRecoveryTask(this::reconcile);
+    }
+
+    @Override
+    public void init(String apiType, long defaultLimit) {
+        delegate.init(apiType, defaultLimit);
+    }
+
+    @Override
+    public Map<String, Long> getLimits() {
+        return delegate.getLimits();
+    }
+
+    @Override
+    public Long getLimit(String apiType) {
+        return delegate.getLimit(apiType);
+    }
+
+    @Override
+    public boolean setLimit(String apiType, long newLimit) {
+        return delegate.setLimit(apiType, newLimit);
+    }
+
+    @Override
+    public long lease(String apiType, String day, long n, long limit, LongUnaryOperator blockSize) {
+        if(breaker.allowRequest()){
+            try {
+                long granted = breaker.within(breaker.supplyAsync(() -> delegate.lease(apiType, day, n, limit, blockSize))).join();
+                breaker.onSuccess();
+                liveNodeCount = delegate.getKnownLiveNodeCount();
+                return granted;
+            }catch (CompletionException e){
+                breaker.onFailure();
+                if(e.getCause() instanceof TimeoutException){
+                    LOGGER.warn("apiType: {} 租借配额超过延迟预算, 改为降级租借", apiType);
+                }else{
+                    LOGGER.warn("apiType: "+apiType+" 租借配额失败, 改为降级租借", e.getCause());
+                }
+            }
+        }
+        return degradedLease(apiType, day, n, limit, blockSize);
+    }
+
+    @Override
+    public Long getLastKnownLeased(String apiType, String day) {
+        return delegate.getLastKnownLeased(apiType, day);
+    }
+
+    @Override
+    public int getLiveNodeCount() {
+        return delegate.getLiveNodeCount();
+    }
+
+    @Override
+    public int getKnownLiveNodeCount() {
+        return delegate.getKnownLiveNodeCount();
+    }
+
+    /**
+     * 降级期间租出还没有记入全局租借记录的配额
+     * @param apiType
+     * @param day 日期, 格式为yyyyMMdd
+     * @return
+     */
+    public synchronized long getDegradedGranted(String apiType, String day){
+        Grant grant = grants.get(day + "_" + apiType);
+        return grant == null ? 0 : grant.granted;
+    }
+
+    private synchronized long degradedLease(String apiType, String day, long n, long limit, LongUnaryOperator blockSize){
+        Long known = delegate.getLastKnownLeased(apiType, day);
+        if(known == null){
+            LOGGER.debug("apiType: {} 当天没有租借过配额, 不能降级租借", apiType);
+            return 0;
+        }
+        int nodes = Math.max(Math.max(liveNodeCount, delegate.getKnownLiveNodeCount()), minNodeCount);
+        if(nodes <= 0){
+            LOGGER.debug("apiType: {} 不知道集群中存活的节点数目, 不能降级租借", apiType);
+            return 0;
+        }
+        Grant grant = grants.computeIfAbsent(day + "_" + apiType, k -> new Grant(apiType, day));
+        long available = Math.max(0, limit - known) / nodes - grant.granted;
+        if(available < n){
+            LOGGER.debug("apiType: {} 降级配额已经用完, 限制值: {}, 已租出: {}, 节点数目: {}, 降级租出: {}",
+                    apiType, limit, known, nodes, grant.granted);
+            return 0;
+        }
+        long block = Math.min(Math.max(blockSize.applyAsLong(available), n), available);
+        grant.granted += block;
+        if(LOGGER.isDebugEnabled()) {
+            LOGGER.debug("apiType: {} 降级租借配额: {}, 降级租出: {}", apiType, block, grant.granted);
+        }
+        return block;
+    }
+
+    /**
+     * 熔断器允许时把降级期间租出的配额记入全局的租借记录, 忽略限制值, 保证记录的已租出配额不少于实际租出的配额
+     */
+    public void reconcile(){
+        String today = DayClock.today();
+        for(Grant grant : grants.values()){
+            long granted;
+            synchronized (this){
+                if(grant.reconciling){
+                    continue;
+                }
+                if(grant.granted == 0){
+                    if(!grant.day.equals(today)){
+                        grants.remove(grant.day + "_" + grant.apiType, grant);
+                    }
+                    continue;
+                }
+                granted = grant.granted;
+                grant.reconciling = true;
+            }
+            if(!breaker.allowRequest()){
+                synchronized (this){
+                    grant.reconciling = false;
+                }
+                return;
+            }
+            CompletableFuture<Long> record = breaker.supplyAsync(
+                    () -> delegate.lease(grant.apiType, grant.day, granted, Long.MAX_VALUE, available -> granted));
+            //超时的记录仍在进行, 完成之前不会重复记录
+            record.whenComplete((v, e) -> {
+                synchronized (this){
+                    if(e == null){
+                        grant.granted -= granted;
+                    }
+                    grant.reconciling = false;
+                }
+                if(e == null){
+                    LOGGER.info("apiType: {} 降级期间租出的配额 {} 已记入 {} 的租借记录", grant.apiType, granted, grant.day);
+                }
+            });
+            try {
+                breaker.within(record).join();
+                breaker.onSuccess();
+            }catch (CompletionException e){
+                breaker.onFailure();
+                LOGGER.warn("apiType: "+grant.apiType+" 记录降级期间租出的配额失败", e.getCause());
+                return;
+            }
+        }
+    }
+
+    private static class Grant {
+        private final String apiType;
+        private final String day;
+        private long granted;
+        private boolean reconciling;
+
+        private Grant(String apiType, String day) {
+            this.apiType = apiType;
+            this.day = day;
+        }
+    }
+}
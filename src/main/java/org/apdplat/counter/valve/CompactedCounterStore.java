@@ -0,0 +1,186 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+
+/**
+ * 支持汇总节点的计数器存储
+ *
+ * 读取已经结束的某一天的计数器时, 如果当天已经汇总, 从汇总节点中读取, 否则从原来的计数器节点中读取,
+ * 原来的计数器节点不存在时重新检查汇总节点, 避免其他节点刚压缩完时读到0
+ * 异步读取时汇总节点也异步读取, 不在回调线程(如Zookeeper的事件线程)中阻塞
+ * 写入和其他操作直接交给被包装的存储
+ */
+public class CompactedCounterStore implements CounterStore {
+    private final CounterStore delegate;
+    private final DaySummaries summaries;
+
+    public CompactedCounterStore(CounterStore delegate, DaySummaries summaries) {
+        this.delegate = delegate;
+        this.summaries = summaries;
+    }
+
+    public CounterStore getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void add(String path, long delta) throws Exception {
+        delegate.add(path, delta);
+    }
+
+    @Override
+    public CompletableFuture<Void> addAsync(String path, long delta) {
+        return delegate.addAsync(path, delta);
+    }
+
+    @Override
+    public void addAll(Map<String, Long> deltas) throws Exception {
+        delegate.addAll(deltas);
+    }
+
+    @Override
+    public long get(String path) throws Exception {
+        String day = closedDayOf(path);
+        if(day == null){
+            return delegate.get(path);
+        }
+        DaySummary summary = summaries.get(day);
+        if(summary != null){
+            return count(summary, path);
+        }
+        long value = delegate.get(path);
+        if(value == 0 && (summary = summaries.refresh(day)) != null){
+            return count(summary, path);
+        }
+        return value;
+    }
+
+    @Override
+    public CompletableFuture<Long> getAsync(String path) {
+        String day = closedDayOf(path);
+        if(day == null){
+            return delegate.getAsync(path);
+        }
+        return summaries.getAsync(day).thenCompose(summary -> {
+            if(summary != null){
+                return CompletableFuture.completedFuture(count(summary, path));
+            }
+            return delegate.getAsync(path).thenCompose(value -> {
+                if(value != 0){
+                    return CompletableFuture.completedFuture(value);
+                }
+                return summaries.refreshAsync(day).thenApply(refreshed -> refreshed == null ? value : count(refreshed, path));
+            });
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String parent) {
+        return delegate.listAsync(parent);
+    }
+
+    @Override
+    public boolean watch(String path, Runnable onChange) {
+        return delegate.watch(path, onChange);
+    }
+
+    @Override
+    public byte[] getBytes(String path) throws Exception {
+        String day = closedDayOf(path);
+        if(day == null){
+            return delegate.getBytes(path);
+        }
+        DaySummary summary = summaries.get(day);
+        if(summary != null){
+            return bytes(summary, path);
+        }
+        byte[] data = delegate.getBytes(path);
+        if(data == null && (summary = summaries.refresh(day)) != null){
+            return bytes(summary, path);
+        }
+        return data;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytesAsync(String path) {
+        String day = closedDayOf(path);
+        if(day == null){
+            return delegate.getBytesAsync(path);
+        }
+        return summaries.getAsync(day).thenCompose(summary -> {
+            if(summary != null){
+                return CompletableFuture.completedFuture(bytes(summary, path));
+            }
+            return delegate.getBytesAsync(path).thenCompose(data -> {
+                if(data != null){
+                    return CompletableFuture.completedFuture(data);
+                }
+                return summaries.refreshAsync(day).thenApply(refreshed -> refreshed == null ? null : bytes(refreshed, path));
+            });
+        });
+    }
+
+    @Override
+    public void updateBytes(String path, UnaryOperator<byte[]> update) throws Exception {
+        delegate.updateBytes(path, update);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, NodeCount>> getNodeCountsAsync(String path) {
+        return delegate.getNodeCountsAsync(path);
+    }
+
+    @Override
+    public void delete(String path) throws Exception {
+        delegate.delete(path);
+    }
+
+    @Override
+    public boolean delete(String path, int version) throws Exception {
+        return delegate.delete(path, version);
+    }
+
+    /**
+     * 计数器所在的日期已经结束时返回日期
+     * @param path 计数器路径
+     * @return 不是计数器或者是当天的计数器时返回null
+     */
+    private static String closedDayOf(String path){
+        String day = Metric.dayOf(path);
+        if(day == null || day.compareTo(DayClock.today()) >= 0){
+            return null;
+        }
+        return day;
+    }
+
+    /**
+     * tree 布局中, 切换布局之前压缩的计数器在汇总中用 flat 布局的节点名称标识, 两者相加
+     */
+    private static long count(DaySummary summary, String path){
+        long count = summary.getCount(Metric.relativePath(path));
+        if(Metric.isTreeLayout()){
+            String flatPath = Metric.toFlatPath(path);
+            if(flatPath != null){
+                count += summary.getCount(Metric.relativePath(flatPath));
+            }
+        }
+        return count;
+    }
+
+    private static byte[] bytes(DaySummary summary, String path){
+        byte[] data = summary.getBytes(Metric.relativePath(path));
+        if(Metric.isTreeLayout()){
+            String flatPath = Metric.toFlatPath(path);
+            byte[] flatData = flatPath == null ? null : summary.getBytes(Metric.relativePath(flatPath));
+            if(flatData != null){
+                return HeavyHitterSketch.merge(data, flatData);
+            }
+        }
+        return data;
+    }
+}
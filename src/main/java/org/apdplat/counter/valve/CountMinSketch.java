@@ -0,0 +1,134 @@
+package org.apdplat.counter.valve;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch
+ *
+ * depth 行 width 列的计数矩阵, 每行用不同的哈希函数把ID映射到一列, 计数时每行对应的格子都加上增量,
+ * 估计值取各行对应格子的最小值, 估计值不小于真实值,
+ * 以 1 - e^-depth 的概率, 估计值与真实值的误差不超过 e / width * 所有增量之和
+ * 计数用 AtomicLongArray 无锁累加, 多个 sketch 按格子相加即可合并
+ */
+public class CountMinSketch {
+    private final int width;
+    private final int depth;
+    private final AtomicLongArray counts;
+
+    public CountMinSketch(int width, int depth) {
+        if(width < 1 || depth < 1){
+            throw new IllegalArgumentException("width和depth必须大于0: "+width+", "+depth);
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counts = new AtomicLongArray(width * depth);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void add(int id, long delta){
+        for(int row=0; row<depth; row++){
+            counts.getAndAdd(index(row, id), delta);
+        }
+    }
+
+    public long estimate(int id){
+        long min = Long.MAX_VALUE;
+        for(int row=0; row<depth; row++){
+            min = Math.min(min, counts.get(index(row, id)));
+        }
+        return min;
+    }
+
+    /**
+     * 所有增量之和
+     * @return
+     */
+    public long total(){
+        long total = 0;
+        for(int column=0; column<width; column++){
+            total += counts.get(column);
+        }
+        return total;
+    }
+
+    /**
+     * 把另一个 sketch 的计数加到当前 sketch
+     * @param other 行数和列数必须相同
+     */
+    public void merge(CountMinSketch other){
+        checkCompatible(other);
+        for(int i=0; i<counts.length(); i++){
+            long value = other.counts.get(i);
+            if(value != 0) {
+                counts.getAndAdd(i, value);
+            }
+        }
+    }
+
+    /**
+     * 当前 sketch 减去 base 的差, 用于计算两次刷新之间新增的计数
+     * @param base 行数和列数必须相同
+     * @return
+     */
+    public CountMinSketch minus(CountMinSketch base){
+        checkCompatible(base);
+        CountMinSketch delta = new CountMinSketch(width, depth);
+        for(int i=0; i<counts.length(); i++){
+            delta.counts.set(i, counts.get(i) - base.counts.get(i));
+        }
+        return delta;
+    }
+
+    public CountMinSketch copy(){
+        CountMinSketch copy = new CountMinSketch(width, depth);
+        for(int i=0; i<counts.length(); i++){
+            copy.counts.set(i, counts.get(i));
+        }
+        return copy;
+    }
+
+    /**
+     * 序列化后的字节数
+     * @return
+     */
+    public int serializedSize(){
+        return 8 + counts.length() * 8;
+    }
+
+    public void writeTo(ByteBuffer buffer){
+        buffer.putInt(width).putInt(depth);
+        for(int i=0; i<counts.length(); i++){
+            buffer.putLong(counts.get(i));
+        }
+    }
+
+    public static CountMinSketch readFrom(ByteBuffer buffer){
+        CountMinSketch sketch = new CountMinSketch(buffer.getInt(), buffer.getInt());
+        for(int i=0; i<sketch.counts.length(); i++){
+            sketch.counts.set(i, buffer.getLong());
+        }
+        return sketch;
+    }
+
+    private void checkCompatible(CountMinSketch other){
+        if(other.width != width || other.depth != depth){
+            throw new IllegalArgumentException("sketch大小不同, 不能合并: "+width+"x"+depth+", "+other.width+"x"+other.depth);
+        }
+    }
+
+    private int index(int row, int id){
+        long hash = (id + 1) * 0x9E3779B97F4A7C15L + row * 0xC2B2AE3D27D4EB4FL;
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return row * width + (int)((hash & Long.MAX_VALUE) % width);
+    }
+}
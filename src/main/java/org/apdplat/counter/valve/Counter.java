@@ -6,6 +6,10 @@ package org.apdplat.counter.valve;
 public class Counter {
     private String path;
     private long delta;
+    //创建时间, System.nanoTime(), 用于统计在异步队列中的等待时间
+    private final long createdAt = System.nanoTime();
+    //在预写日志中的位置, 没有写日志时为-1
+    private long journalPosition = -1;
 
     public Counter(String path, long delta) {
         this.path = path;
@@ -28,6 +32,18 @@ public class Counter {
         this.delta = delta;
     }
 
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    public void setJournalPosition(long journalPosition) {
+        this.journalPosition = journalPosition;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
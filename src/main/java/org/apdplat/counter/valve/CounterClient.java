@@ -0,0 +1,1334 @@
+package org.apdplat.counter.valve;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apdplat.counter.metrics.CounterMetrics;
+import org.apdplat.counter.util.ConfUtils;
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 计数客户端
+ *
+ * 持有计数器存储、限额存储、异步计数管道等所有组件, AtomicCounter 和 CountLimit 的静态方法使用默认的客户端
+ * 创建客户端不访问Zookeeper, 不阻塞调用线程: build 之后在后台线程中连接Zookeeper,
+ * 然后并行初始化限制值、重放预写日志和预热已知的计数器, 全部完成后 ready() 返回的 future 完成
+ * 启动完成之前计数可以正常进行, 读取限制值和获取配额会等待限制值初始化完成
+ * close 把合并的增量和异步队列中的增量在期限内写入存储, 然后关闭预写日志
+ * 使用方式:
+ *     CounterClient client = CounterClient.builder().warmUp("1", "2").build();
+ *     client.ready().get(10, TimeUnit.SECONDS);
+ *     client.responseSuccess(1, "1");
+ *     client.close(10000);
+ */
+public class CounterClient implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CounterClient.class);
+    private static final AtomicInteger STARTUP_THREAD_INDEX = new AtomicInteger();
+
+    private final CounterStore rawCounterStore;
+    //没有打开熔断时为null
+    private final CircuitBreaker breaker;
+    private final CircuitBreakerCounterStore breakerCounterStore;
+    private final CounterStore layoutCounterStore;
+    private final DaySummaries daySummaries;
+    private final CounterStore counterStore;
+    private final DayCompactor dayCompactor;
+    private final CounterReadCache readCache;
+    private final boolean async;
+    private final boolean coalesce;
+    private final DeltaJournal journal;
+    //打开预写日志时读取到的上次没有写入的增量, 启动时写入存储
+    private Map<String, Long> replayed = Collections.emptyMap();
+    //重放失败时在后台重试
+    private volatile ScheduledExecutorService replayRetry;
+    private final DrainPipeline drainPipeline;
+    private final DeltaAggregator deltaAggregator;
+    private final DimensionCounter dimensionCounter;
+    private final RangeQuery rangeQuery;
+    private final Map<Metric, Map<String, CounterHandle>> handles = new EnumMap<>(Metric.class);
+    //取消监听配置项的回调
+    private final List<Runnable> confListeners = new ArrayList<>();
+
+    private final Supplier<LimitStore> limitStoreSupplier;
+    private final Map<String, Long> initialLimits;
+    private final Set<String> warmUpApiTypes;
+    private final Map<String, SlidingWindowLimiter[]> rateLimiters;
+    private final long shutdownTimeoutMs;
+    private final boolean zookeeper;
+    //限额存储创建并且初始限制值写入后完成
+    private final CompletableFuture<Limits> limits = new CompletableFuture<>();
+    //启动后超过 limit.init.timeout.ms 毫秒限制值仍未初始化完成时使用, 限制值为初始限制值, 不能获取配额
+    private final Limits fallbackLimits;
+    private final long limitInitTimeoutMs;
+    private volatile long limitInitDeadline = Long.MAX_VALUE;
+    private final AtomicBoolean fallbackLogged = new AtomicBoolean();
+    private final CompletableFuture<CounterClient> ready = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    //合并的增量全部交给异步队列之后为true, 之后的异步计数被丢弃
+    private volatile boolean pipelineClosed;
+
+    private CounterClient(Builder builder) {
+        rawCounterStore = builder.counterStore != null
+                ? builder.counterStore
+                : Stores.createCounterStore(ConfUtils.get("counter.store", "zookeeper"));
+        breaker = ConfUtils.getBoolean("circuit.breaker.enabled", false)
+                ? new CircuitBreaker(ConfUtils.getLong("circuit.breaker.timeout.ms", 200),
+                    ConfUtils.getInt("circuit.breaker.window.size", 100),
+                    ConfUtils.getInt("circuit.breaker.min.calls", 20),
+                    ConfUtils.getDouble("circuit.breaker.failure.ratio", 0.5),
+                    ConfUtils.getLong("circuit.breaker.open.ms", 5000),
+                    ConfUtils.getLong("circuit.breaker.reconcile.interval.ms", 1000))
+                : null;
+        breakerCounterStore = breaker != null
+                ? new CircuitBreakerCounterStore(rawCounterStore, breaker, ConfUtils.getInt("circuit.breaker.last.known.max.size", 100000))
+                : null;
+        CounterStore guardedCounterStore = breakerCounterStore != null ? breakerCounterStore : rawCounterStore;
+        layoutCounterStore = Metric.isTreeLayout() && ConfUtils.getBoolean("counter.layout.read.flat", true)
+                ? new LayoutCompatibleCounterStore(guardedCounterStore)
+                : guardedCounterStore;
+        daySummaries = new DaySummaries(rawCounterStore,
+                Zookeeper.getCounterPrefix(),
+                ConfUtils.getLong("compaction.summary.recheck.ms", 60000),
+                ConfUtils.getInt("compaction.summary.cache.days", 32));
+        counterStore = new CompactedCounterStore(layoutCounterStore, daySummaries);
+        dayCompactor = ConfUtils.getBoolean("compaction.enabled", false)
+                ? new DayCompactor(rawCounterStore, daySummaries,
+                    Zookeeper.getCounterPrefix(),
+                    ConfUtils.getLong("compaction.grace.ms", 3600000),
+                    ConfUtils.getInt("compaction.retention.days", 0),
+                    ConfUtils.getInt("compaction.max.summary.bytes", 1000000))
+                : null;
+        readCache = ConfUtils.getBoolean("counter.read.cache.enabled", false)
+                ? new CounterReadCache(counterStore::get,
+                    ConfUtils.getLong("counter.read.cache.max.stale.ms", 1000),
+                    ConfUtils.getInt("counter.read.cache.max.size", 100000),
+                    ConfUtils.getBoolean("counter.read.cache.watch", false) ? counterStore : null)
+                : null;
+        async = ConfUtils.getBoolean("async", false);
+        coalesce = ConfUtils.getBoolean("async.coalesce", false);
+        journal = async && ConfUtils.getBoolean("async.journal", false)
+                ? openJournal()
+                : null;
+        if(breakerCounterStore != null){
+            breakerCounterStore.setJournal(journal);
+        }
+        drainPipeline = async
+                ? new DrainPipeline(journal == null ? this::addAllInSync : this::addAllInJournal,
+                    ConfUtils.getInt("async.worker.count", 4),
+                    ConfUtils.getInt("async.worker.queue.capacity", 262144),
+                    ConfUtils.getInt("async.batch.flush.size", 100),
+                    journal,
+                    ConfUtils.getBoolean("async.queue.off.heap", false),
+                    DrainPipeline.FullPolicy.valueOf(ConfUtils.get("async.queue.full.policy", "block").trim().toUpperCase()),
+                    new PathDictionary(ConfUtils.getInt("async.path.dictionary.max.size", 1000000)))
+                : null;
+        deltaAggregator = async && coalesce
+                ? createDeltaAggregator()
+                : null;
+        if(drainPipeline != null){
+            CounterMetrics.get().setQueueGauge(drainPipeline::getPendingCount, drainPipeline.getCapacity());
+        }
+        if(deltaAggregator != null){
+            CounterMetrics.get().setCoalescePendingGauge(deltaAggregator::getPendingCount);
+        }
+        listenConf();
+        dimensionCounter = "sketch".equals(ConfUtils.get("dimension.counter.mode", "exact").trim())
+                ? new DimensionCounter(counterStore,
+                    ConfUtils.getInt("dimension.sketch.width", 2048),
+                    ConfUtils.getInt("dimension.sketch.depth", 4),
+                    ConfUtils.getInt("dimension.top.k", 100),
+                    ConfUtils.getInt("dimension.max.candidates", 10000),
+                    ConfUtils.getLong("dimension.flush.interval.ms", 5000))
+                : null;
+        rangeQuery = new RangeQuery(this::readAsync,
+                ConfUtils.getInt("range.query.max.concurrency", 32),
+                ConfUtils.getLong("range.query.closed.after.ms", 3600000),
+                ConfUtils.getInt("range.query.cache.max.size", 100000));
+        for(Metric metric : Metric.values()){
+            handles.put(metric, new ConcurrentHashMap<>());
+        }
+
+        limitStoreSupplier = builder.limitStore != null
+                ? () -> builder.limitStore
+                : () -> Stores.createLimitStore(ConfUtils.get("limit.store", "zookeeper"));
+        initialLimits = builder.limits != null ? builder.limits : parseLimits(ConfUtils.get("api.call.count.limit", ""));
+        warmUpApiTypes = builder.warmUpApiTypes != null ? builder.warmUpApiTypes : initialLimits.keySet();
+        fallbackLimits = new Limits(new MemoryLimitStore(initialLimits), null);
+        limitInitTimeoutMs = ConfUtils.getLong("limit.init.timeout.ms", 5000);
+        rateLimiters = createRateLimiters();
+        zookeeper = rawCounterStore instanceof ZookeeperCounterStore
+                || (builder.limitStore == null ? isZookeeper(ConfUtils.get("limit.store", "zookeeper"))
+                    : builder.limitStore instanceof ZookeeperLimitStore);
+        shutdownTimeoutMs = builder.shutdownTimeoutMs;
+        if(builder.shutdownHook){
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> close(shutdownTimeoutMs), "counter-client-shutdown"));
+        }
+    }
+
+    public static Builder builder(){
+        return new Builder();
+    }
+
+    /**
+     * AtomicCounter 和 CountLimit 使用的默认客户端, 第一次调用时按 conf.txt 创建并在后台启动, 进程退出时关闭
+     * @return
+     */
+    public static CounterClient getDefault(){
+        return DefaultHolder.CLIENT;
+    }
+
+    private static class DefaultHolder {
+        private static final CounterClient CLIENT = builder().shutdownHook(true).build();
+    }
+
+    /**
+     * 在后台线程中启动: 连接Zookeeper, 然后并行初始化限制值、重放预写日志和预热计数器, 多次调用只启动一次
+     * @return 同 ready()
+     */
+    public CompletableFuture<CounterClient> start(){
+        if(!started.compareAndSet(false, true)){
+            return ready;
+        }
+        long start = System.currentTimeMillis();
+        limitInitDeadline = start + limitInitTimeoutMs;
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "counter-client-startup-" + STARTUP_THREAD_INDEX.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletableFuture<Void> connected = CompletableFuture.runAsync(this::connect, executor);
+        CompletableFuture<Void> limitsReady = connected.thenComposeAsync(v -> initLimits(executor), executor);
+        CompletableFuture<Void> replayReady = connected.thenRunAsync(this::replayJournal, executor);
+        CompletableFuture<Void> warmUpReady = connected.thenComposeAsync(v -> warmUp(executor), executor);
+        CompletableFuture.allOf(limitsReady, replayReady, warmUpReady).whenComplete((v, e) -> {
+            executor.shutdown();
+            if(e != null){
+                LOGGER.error("计数客户端启动失败", e);
+                ready.completeExceptionally(e);
+                return;
+            }
+            if(dayCompactor != null){
+                dayCompactor.start(ConfUtils.getLong("compaction.interval.ms", 3600000));
+            }
+            LOGGER.info("计数客户端启动完成, 耗时: {} 毫秒", System.currentTimeMillis() - start);
+            ready.complete(this);
+        });
+        return ready;
+    }
+
+    /**
+     * 启动完成时完成, 启动失败时异常完成
+     * @return
+     */
+    public CompletableFuture<CounterClient> ready(){
+        return ready;
+    }
+
+    public boolean isReady(){
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * 使用Zookeeper存储时等待连接建立, 超过 zookeeper.connection.timeout.ms 毫秒仍未连接时继续启动,
+     * 之后的Zookeeper操作在连接建立后成功
+     */
+    private void connect(){
+        if(!zookeeper){
+            return;
+        }
+        CuratorFramework curatorFramework = rawCounterStore instanceof ZookeeperCounterStore
+                ? ((ZookeeperCounterStore) rawCounterStore).getCuratorFramework()
+                : Zookeeper.getCuratorFramework();
+        long timeoutMs = ConfUtils.getLong("zookeeper.connection.timeout.ms", 3000);
+        try {
+            if(curatorFramework.blockUntilConnected((int)Math.min(Integer.MAX_VALUE, timeoutMs), TimeUnit.MILLISECONDS)){
+                LOGGER.info("已连接Zookeeper");
+            }else{
+                LOGGER.warn("{} 毫秒内没有连接上Zookeeper, 继续启动", timeoutMs);
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待连接Zookeeper时被中断", e);
+        }
+    }
+
+    /**
+     * 创建限额存储, 并行写入初始限制值
+     */
+    private CompletableFuture<Void> initLimits(ExecutorService executor){
+        LimitStore limitStore;
+        try {
+            LimitStore store = limitStoreSupplier.get();
+            limitStore = breaker != null
+                    ? new CircuitBreakerLimitStore(store, breaker, ConfUtils.getInt("circuit.breaker.degraded.min.node.count", 0))
+                    : store;
+        }catch (Throwable e){
+            limits.completeExceptionally(e);
+            throw e;
+        }
+        List<CompletableFuture<Void>> inits = new ArrayList<>();
+        for(Map.Entry<String, Long> entry : initialLimits.entrySet()){
+            inits.add(CompletableFuture.runAsync(() -> limitStore.init(entry.getKey(), entry.getValue()), executor));
+        }
+        return CompletableFuture.allOf(inits.toArray(new CompletableFuture<?>[inits.size()])).whenComplete((v, e) -> {
+            if(e != null){
+                LOGGER.error("初始化最大限制值失败", e);
+            }
+            limits.complete(new Limits(limitStore,
+                    new QuotaLeaser(limitStore,
+                            ConfUtils.getLong("quota.lease.block.size", 1000),
+                            ConfUtils.getLong("quota.lease.min.block.size", 1),
+                            ConfUtils.getLong("quota.lease.shrink.divisor", 10))));
+        });
+    }
+
+    /**
+     * 并行读取已知apiType当天的所有计数器, 建立连接和读缓存
+     */
+    private CompletableFuture<Void> warmUp(ExecutorService executor){
+        String day = DayClock.today();
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for(String apiType : warmUpApiTypes){
+            for(Metric metric : Metric.values()){
+                String path = metric.path(day, apiType);
+                reads.add(CompletableFuture.runAsync(() -> getValue(path), executor));
+            }
+        }
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[reads.size()]));
+    }
+
+    /**
+     * 关闭客户端, 使用 Builder.shutdownTimeoutMs 指定的期限
+     */
+    @Override
+    public void close(){
+        close(shutdownTimeoutMs);
+    }
+
+    /**
+     * 关闭客户端: 停止接收异步计数, 把合并的增量和异步队列中的增量在期限内写入存储, 然后关闭预写日志和后台任务
+     * 关闭之后的异步计数被丢弃并计入丢弃数目, 同步计数和读取仍然可以使用
+     * @param timeoutMs 最长等待时间, 毫秒
+     * @return 是否在期限内写完所有增量
+     */
+    public boolean close(long timeoutMs){
+        if(!closed.compareAndSet(false, true)){
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        if(deltaAggregator != null){
+            deltaAggregator.shutdown();
+        }
+        if(dimensionCounter != null){
+            dimensionCounter.flushAll();
+        }
+        pipelineClosed = true;
+        boolean drained = true;
+        if(drainPipeline != null){
+            drained = drainPipeline.shutdownAndAwait(Math.max(0, timeoutMs - (System.currentTimeMillis() - start)));
+        }
+        if(breakerCounterStore != null){
+            //本地累加的增量写回之后才能关闭预写日志
+            breakerCounterStore.close();
+        }
+        ScheduledExecutorService retry = replayRetry;
+        if(retry != null){
+            //没有重放成功的增量留在日志中, 下次启动时重放
+            retry.shutdown();
+            try {
+                retry.awaitTermination(Math.max(0, timeoutMs - (System.currentTimeMillis() - start)), TimeUnit.MILLISECONDS);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(journal != null){
+            journal.close();
+        }
+        if(dayCompactor != null){
+            dayCompactor.stop();
+        }
+        if(breaker != null){
+            breaker.shutdown();
+        }
+        confListeners.forEach(Runnable::run);
+        LOGGER.info("计数客户端已关闭, 耗时: {} 毫秒, 增量是否全部写入: {}", System.currentTimeMillis() - start, drained);
+        return drained;
+    }
+
+    /**
+     * 获取计数器句柄, 调用方可以持有句柄直接计数, 避免每次计数都构造计数器路径
+     * @param metric 指标
+     * @param adType apiType
+     * @return
+     */
+    public CounterHandle handle(Metric metric, String adType){
+        Map<String, CounterHandle> metricHandles = handles.get(metric);
+        CounterHandle handle = metricHandles.get(adType);
+        if(handle == null){
+            handle = metricHandles.computeIfAbsent(adType, k -> new CounterHandle(this, metric, k));
+        }
+        return handle;
+    }
+
+    public void noResponse(long delta, String adType){
+        handle(Metric.NO_RESPONSE, adType).add(delta);
+    }
+
+    public void wrongContent(long delta, String adType){
+        handle(Metric.WRONG_CONTENT, adType).add(delta);
+    }
+
+    public void responseSuccess(long delta, String adType){
+        handle(Metric.RESPONSE_SUCCESS, adType).add(delta);
+    }
+
+    public void responseSuccess(long delta, String adType, Integer productId, Integer tvId){
+        handle(Metric.RESPONSE_SUCCESS, adType).add(delta, productId, tvId);
+    }
+
+    public void exception(long delta, String adType){
+        handle(Metric.EXCEPTION, adType).add(delta);
+    }
+
+    public void beyond(long delta, String adType){
+        handle(Metric.BEYOND, adType).add(delta);
+    }
+
+    public long getNoResponseCount(String adType){
+        return handle(Metric.NO_RESPONSE, adType).get();
+    }
+
+    public long getNoResponseCount(String day, String adType){
+        return getValue(Metric.NO_RESPONSE.path(day, adType));
+    }
+
+    public long getWrongContentCount(String adType){
+        return handle(Metric.WRONG_CONTENT, adType).get();
+    }
+
+    public long getWrongContentCount(String day, String adType){
+        return getValue(Metric.WRONG_CONTENT.path(day, adType));
+    }
+
+    public long getResponseSuccessCount(String adType){
+        return handle(Metric.RESPONSE_SUCCESS, adType).get();
+    }
+
+    public long getResponseSuccessCount(String day, String adType){
+        return getValue(Metric.RESPONSE_SUCCESS.path(day, adType));
+    }
+
+    /**
+     * 按产品细分的成功计数, 细分近似计数模式下返回估计值, 不小于真实值
+     * @param day
+     * @param adType
+     * @param productId
+     * @return
+     */
+    public long getResponseSuccessCountForProduct(String day, String adType, Integer productId){
+        if(dimensionCounter != null){
+            return estimate(Metric.RESPONSE_SUCCESS.productSketchPath(day, adType), productId);
+        }
+        return getValue(Metric.RESPONSE_SUCCESS.productPath(day, adType, productId));
+    }
+
+    /**
+     * 按电视细分的成功计数, 细分近似计数模式下返回估计值, 不小于真实值
+     * @param day
+     * @param adType
+     * @param tvId
+     * @return
+     */
+    public long getResponseSuccessCountForTv(String day, String adType, Integer tvId){
+        if(dimensionCounter != null){
+            return estimate(Metric.RESPONSE_SUCCESS.tvSketchPath(day, adType), tvId);
+        }
+        return getValue(Metric.RESPONSE_SUCCESS.tvPath(day, adType, tvId));
+    }
+
+    /**
+     * 成功计数最多的产品, 按计数从大到小排序
+     * 细分近似计数模式下最多返回 dimension.top.k 个, 计数为估计值
+     * @param day
+     * @param adType
+     * @return key为产品ID, value为计数
+     */
+    public Map<Integer, Long> getTopProducts(String day, String adType){
+        return sortByCount(snapshot(day, adType).getProductCounts(adType));
+    }
+
+    /**
+     * 成功计数最多的电视, 按计数从大到小排序
+     * 细分近似计数模式下最多返回 dimension.top.k 个, 计数为估计值
+     * @param day
+     * @param adType
+     * @return key为电视ID, value为计数
+     */
+    public Map<Integer, Long> getTopTvs(String day, String adType){
+        return sortByCount(snapshot(day, adType).getTvCounts(adType));
+    }
+
+    private static Map<Integer, Long> sortByCount(Map<Integer, Long> counts){
+        Map<Integer, Long> sorted = new LinkedHashMap<>();
+        counts.entrySet()
+                .stream()
+                .sorted((a, b) -> b.getValue().compareTo(a.getValue()))
+                .forEach(entry -> sorted.put(entry.getKey(), entry.getValue()));
+        return sorted;
+    }
+
+    private long estimate(String path, Integer id){
+        try {
+            return dimensionCounter.read(path).estimate(id);
+        }catch (Exception e){
+            CounterMetrics.get().readFailure();
+            LOGGER.error("get counter exception: "+path, e);
+        }
+        return -1;
+    }
+
+    /**
+     * 细分近似计数模式下按产品或电视细分计数
+     * @return 是否使用细分近似计数模式
+     */
+    boolean addDimension(String path, String day, int id, long delta){
+        if(dimensionCounter == null){
+            return false;
+        }
+        dimensionCounter.add(path, day, id, delta);
+        return true;
+    }
+
+    public long getExceptionCount(String adType){
+        return handle(Metric.EXCEPTION, adType).get();
+    }
+
+    public long getExceptionCount(String day, String adType){
+        return getValue(Metric.EXCEPTION.path(day, adType));
+    }
+
+    public long getBeyondCount(String adType){
+        return handle(Metric.BEYOND, adType).get();
+    }
+
+    public long getBeyondCount(String day, String adType){
+        return getValue(Metric.BEYOND.path(day, adType));
+    }
+
+    /**
+     * 日期范围内每天的计数, 读取失败的日期为-1
+     * @param metric 指标
+     * @param adType apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @return key为日期, 按日期排序
+     */
+    public Map<String, Long> getDailyCounts(Metric metric, String adType, String fromDay, String toDay){
+        return getDailyCountsAsync(metric, adType, fromDay, toDay).join();
+    }
+
+    public CompletableFuture<Map<String, Long>> getDailyCountsAsync(Metric metric, String adType, String fromDay, String toDay){
+        return rangeQuery.daily(metric, adType, fromDay, toDay);
+    }
+
+    /**
+     * 日期范围内按天、周或月的合计, 范围两端不完整的周和月只合计范围内的日期, 包含读取失败的日期时合计为-1
+     * @param metric 指标
+     * @param adType apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @param period 周期
+     * @return key为周期的键, 如20161118、2016-W46、201611, 按时间排序
+     */
+    public Map<String, Long> getRollupCounts(Metric metric, String adType, String fromDay, String toDay, RangeQuery.Period period){
+        return getRollupCountsAsync(metric, adType, fromDay, toDay, period).join();
+    }
+
+    public CompletableFuture<Map<String, Long>> getRollupCountsAsync(Metric metric, String adType, String fromDay, String toDay, RangeQuery.Period period){
+        return rangeQuery.rollup(metric, adType, fromDay, toDay, period);
+    }
+
+    /**
+     * 日期范围内的合计, 包含读取失败的日期时为-1
+     * @param metric 指标
+     * @param adType apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @return
+     */
+    public long getTotalCount(Metric metric, String adType, String fromDay, String toDay){
+        return getTotalCountAsync(metric, adType, fromDay, toDay).join();
+    }
+
+    public CompletableFuture<Long> getTotalCountAsync(Metric metric, String adType, String fromDay, String toDay){
+        return rangeQuery.total(metric, adType, fromDay, toDay);
+    }
+
+    /**
+     * 并行读取某一天多个apiType的所有计数, 包括按产品和电视细分的成功计数
+     * @param day 日期, 格式为yyyyMMdd
+     * @param adTypes apiType
+     * @return
+     */
+    public CounterSnapshot snapshot(String day, String... adTypes){
+        return snapshotAsync(day, adTypes).join();
+    }
+
+    /**
+     * 并行读取某一天多个apiType的所有计数, 包括按产品和电视细分的成功计数
+     * 所有读取都通过Curator后台操作同时发出, 不阻塞调用线程
+     * @param day 日期, 格式为yyyyMMdd
+     * @param adTypes apiType
+     * @return
+     */
+    public CompletableFuture<CounterSnapshot> snapshotAsync(String day, String... adTypes){
+        CounterSnapshot.Builder builder = new CounterSnapshot.Builder(day);
+        List<CompletableFuture<?>> reads = new ArrayList<>();
+        for(String adType : adTypes){
+            builder.apiType(adType);
+            for(Metric metric : Metric.values()){
+                reads.add(readAsync(metric.path(day, adType))
+                        .thenAccept(value -> builder.count(adType, metric, value)));
+            }
+        }
+        if(dimensionCounter != null){
+            for(String adType : adTypes){
+                reads.add(readTopAsync(Metric.RESPONSE_SUCCESS.productSketchPath(day, adType))
+                        .thenAccept(top -> top.forEach((id, value) -> builder.productCount(adType, id, value))));
+                reads.add(readTopAsync(Metric.RESPONSE_SUCCESS.tvSketchPath(day, adType))
+                        .thenAccept(top -> top.forEach((id, value) -> builder.tvCount(adType, id, value))));
+            }
+        }
+        String counterPrefix = Zookeeper.getCounterPrefix();
+        CompletableFuture<DaySummary> summaryRead = day.compareTo(DayClock.today()) < 0
+                ? daySummaries.refreshAsync(day)
+                : CompletableFuture.completedFuture(null);
+        reads.add(listDimensionNodes(day, adTypes).thenCombine(summaryRead, (nodeNames, summary) -> {
+            List<String> children = nodeNames;
+            if(summary != null){
+                //已经压缩的计数器节点只在汇总中
+                children = new ArrayList<>(nodeNames);
+                for(String key : summary.getCounts().keySet()){
+                    children.add(Metric.isTreeLayout() ? sameLayout(key) : key);
+                }
+            }
+            List<CompletableFuture<?>> dimensionReads = new ArrayList<>();
+            for(String adType : adTypes){
+                String productPrefix = Metric.relativePath(Metric.RESPONSE_SUCCESS.productPrefix(day, adType));
+                String tvPrefix = Metric.relativePath(Metric.RESPONSE_SUCCESS.tvPrefix(day, adType));
+                for(String child : children){
+                    if(child.startsWith(productPrefix)){
+                        Integer productId = parseId(child.substring(productPrefix.length()));
+                        if(productId != null) {
+                            dimensionReads.add(readAsync(ZKPaths.makePath(counterPrefix, child))
+                                    .thenAccept(value -> builder.productCount(adType, productId, value)));
+                        }
+                    }else if(child.startsWith(tvPrefix)){
+                        Integer tvId = parseId(child.substring(tvPrefix.length()));
+                        if(tvId != null) {
+                            dimensionReads.add(readAsync(ZKPaths.makePath(counterPrefix, child))
+                                    .thenAccept(value -> builder.tvCount(adType, tvId, value)));
+                        }
+                    }
+                }
+            }
+            return CompletableFuture.allOf(dimensionReads.toArray(new CompletableFuture<?>[dimensionReads.size()]));
+        }).thenCompose(dimensionReads -> dimensionReads).exceptionally(e -> {
+            LOGGER.error("获取细分计数器列表失败: "+counterPrefix, e);
+            return null;
+        }));
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[reads.size()]))
+                .thenApply(v -> builder.build());
+    }
+
+    /**
+     * 列出可能是按产品和电视细分的计数器, 返回相对于 atomic.counter.zookeeper.prefix 的路径
+     * flat 布局中列出计数器父节点的所有子节点, tree 布局中只列出每个apiType的 p 和 t 节点的子节点
+     */
+    private CompletableFuture<List<String>> listDimensionNodes(String day, String... adTypes){
+        if(!Metric.isTreeLayout()){
+            return counterStore.listAsync(Zookeeper.getCounterPrefix());
+        }
+        List<CompletableFuture<List<String>>> lists = new ArrayList<>();
+        for(String adType : adTypes){
+            for(String prefix : new String[]{Metric.RESPONSE_SUCCESS.productPrefix(day, adType), Metric.RESPONSE_SUCCESS.tvPrefix(day, adType)}){
+                String relative = Metric.relativePath(prefix);
+                lists.add(counterStore.listAsync(prefix.substring(0, prefix.length() - 1)).thenApply(ids -> {
+                    List<String> nodes = new ArrayList<>(ids.size());
+                    for(String id : ids){
+                        nodes.add(relative + id);
+                    }
+                    return nodes;
+                }));
+            }
+        }
+        if(layoutCounterStore instanceof LayoutCompatibleCounterStore){
+            //还没有迁移的 flat 布局的计数器
+            lists.add(counterStore.listAsync(Zookeeper.getCounterPrefix()).thenApply(children -> {
+                List<String> nodes = new ArrayList<>();
+                for(String child : children){
+                    if(!Metric.isDayNode(child)){
+                        nodes.add(sameLayout(child));
+                    }
+                }
+                return nodes;
+            }));
+        }
+        return CompletableFuture.allOf(lists.toArray(new CompletableFuture<?>[lists.size()])).thenApply(v -> {
+            List<String> nodes = new ArrayList<>();
+            for(CompletableFuture<List<String>> list : lists){
+                nodes.addAll(list.join());
+            }
+            return nodes;
+        });
+    }
+
+    /**
+     * tree 布局中把 flat 布局的节点名称转换为 tree 布局的相对路径
+     */
+    private static String sameLayout(String relativePath){
+        String treePath = Metric.toTreePath(relativePath);
+        return treePath == null ? relativePath : Metric.relativePath(treePath);
+    }
+
+    private CompletableFuture<Long> readAsync(String path){
+        return counterStore.getAsync(path).exceptionally(e -> {
+            CounterMetrics.get().readFailure();
+            LOGGER.error("get counter exception: "+path, e);
+            return -1L;
+        });
+    }
+
+    private CompletableFuture<Map<Integer, Long>> readTopAsync(String path){
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return dimensionCounter.read(path).getTop();
+            }catch (Exception e){
+                CounterMetrics.get().readFailure();
+                LOGGER.error("get counter exception: "+path, e);
+                return Collections.<Integer, Long>emptyMap();
+            }
+        });
+    }
+
+    private static Integer parseId(String text){
+        try {
+            return Integer.valueOf(text);
+        }catch (NumberFormatException e){
+            return null;
+        }
+    }
+
+    void add(String path, long delta){
+        if(async && closed.get()){
+            dropClosed(path, delta);
+        }else if(deltaAggregator != null){
+            deltaAggregator.add(path, delta);
+        }else if(async){
+            addInAsync(path, delta);
+        }else{
+            addInSync(path, delta);
+        }
+    }
+
+    /**
+     * 修改配置文件后不需要重启即可生效的配置项: 异步计数的工作线程数目、队列容量、每次取出的增量数目,
+     * 合并增量的固定刷新间隔和最大未刷新增量
+     */
+    private void listenConf(){
+        if(drainPipeline == null){
+            return;
+        }
+        IntConsumer resize = ignored -> {
+            drainPipeline.resize(ConfUtils.getInt("async.worker.count", 4),
+                    ConfUtils.getInt("async.worker.queue.capacity", 262144));
+            CounterMetrics.get().setQueueGauge(drainPipeline::getPendingCount, drainPipeline.getCapacity());
+        };
+        confListeners.add(ConfUtils.addIntListener("async.worker.count", 4, resize));
+        confListeners.add(ConfUtils.addIntListener("async.worker.queue.capacity", 262144, resize));
+        confListeners.add(ConfUtils.addIntListener("async.batch.flush.size", 100, size -> {
+            drainPipeline.setDrainSize(size);
+            if(rawCounterStore instanceof ZookeeperCounterStore){
+                ((ZookeeperCounterStore) rawCounterStore).setBatchFlushSize(size);
+            }
+        }));
+        if(deltaAggregator == null){
+            return;
+        }
+        if(!ConfUtils.getBoolean("async.coalesce.adaptive", false)){
+            confListeners.add(ConfUtils.addLongListener("async.coalesce.flush.interval.ms", 1000, deltaAggregator::setTickMs));
+        }
+        confListeners.add(ConfUtils.addLongListener("async.coalesce.max.unflushed.delta", 10000, deltaAggregator::setMaxUnflushedDelta));
+    }
+
+    /**
+     * 配置 async.coalesce.adaptive=true 时按剩余配额调整每个apiType的刷新间隔, 否则使用固定的刷新间隔
+     * @return
+     */
+    private DeltaAggregator createDeltaAggregator(){
+        long flushIntervalMs = ConfUtils.getLong("async.coalesce.flush.interval.ms", 1000);
+        long maxUnflushedDelta = ConfUtils.getLong("async.coalesce.max.unflushed.delta", 10000);
+        if(!ConfUtils.getBoolean("async.coalesce.adaptive", false)){
+            return new DeltaAggregator(this::addInAsync, flushIntervalMs, maxUnflushedDelta);
+        }
+        long minIntervalMs = Math.max(1, ConfUtils.getLong("async.coalesce.adaptive.min.interval.ms", 50));
+        QuotaAwareFlushInterval flushInterval = new QuotaAwareFlushInterval(
+                adType -> readAsync(Metric.RESPONSE_SUCCESS.path(DayClock.current().getName(), adType)),
+                //启动完成之前还没有限制值, 按最短刷新间隔处理
+                adType -> limits.isDone() && !limits.isCompletedExceptionally() ? getLimit(adType) : 0,
+                minIntervalMs,
+                ConfUtils.getLong("async.coalesce.adaptive.max.interval.ms", 10000),
+                ConfUtils.getDouble("async.coalesce.adaptive.near.ratio", 0.05),
+                ConfUtils.getDouble("async.coalesce.adaptive.far.ratio", 0.5),
+                ConfUtils.getLong("async.coalesce.adaptive.refresh.ms", 1000),
+                ConfUtils.getInt("async.coalesce.adaptive.cache.max.size", 100000));
+        return new DeltaAggregator(this::addInAsync, minIntervalMs, flushInterval, maxUnflushedDelta);
+    }
+
+    /**
+     * 计数器路径在异步队列字典中的编号, 见 CounterHandle
+     * @param path 计数器路径
+     * @return 增量不直接放入异步队列时返回-1
+     */
+    int intern(String path){
+        if(!async || deltaAggregator != null){
+            return -1;
+        }
+        return drainPipeline.intern(path);
+    }
+
+    /**
+     * @param path 计数器路径
+     * @param pathId intern 返回的编号, 为-1时按路径查找
+     * @param delta 增量
+     */
+    void add(String path, int pathId, long delta){
+        if(pathId < 0 || closed.get()){
+            add(path, delta);
+            return;
+        }
+        if(pipelineClosed){
+            dropClosed(path, delta);
+            return;
+        }
+        try{
+            drainPipeline.put(pathId, path, delta);
+        }catch (Exception e){
+            CounterMetrics.get().droppedDelta(1);
+            LOGGER.error("将计数器加入阻塞队列出错", e);
+        }
+    }
+
+    private void addInAsync(String path, long delta){
+        if(pipelineClosed){
+            dropClosed(path, delta);
+            return;
+        }
+        try{
+            drainPipeline.put(path, delta);
+        }catch (Exception e){
+            CounterMetrics.get().droppedDelta(1);
+            LOGGER.error("将计数器加入阻塞队列出错", e);
+        }
+    }
+
+    private void dropClosed(String path, long delta){
+        CounterMetrics.get().droppedDelta(1);
+        LOGGER.error("计数客户端已关闭, 丢弃增量, path: {}, delta: {}", path, delta);
+    }
+
+    /**
+     * 异步模式下每个工作线程队列中等待写入的增量数目, 同步模式下返回空数组
+     * @return
+     */
+    public int[] getAsyncQueueDepths(){
+        if(drainPipeline == null){
+            return new int[0];
+        }
+        return drainPipeline.getQueueDepths();
+    }
+
+    private void addInSync(String path, long delta){
+        try {
+            counterStore.add(path, delta);
+            if(readCache != null){
+                readCache.invalidate(path);
+            }
+        }catch (Exception e){
+            CounterMetrics.get().failedDelta(1);
+            LOGGER.error("addInSync "+delta+" failed for "+path, e);
+        }
+    }
+
+    /**
+     * 写入一批计数器
+     * @param deltas key为计数器路径, value为增量
+     */
+    private void addAllInSync(Map<String, Long> deltas){
+        try {
+            counterStore.addAll(deltas);
+            if(readCache != null){
+                deltas.keySet().forEach(readCache::invalidate);
+            }
+        }catch (Exception e){
+            LOGGER.error("批量写入 "+deltas.size()+" 个计数器失败, 改为逐个写入", e);
+            deltas.forEach(this::addInSync);
+        }
+    }
+
+    /**
+     * 预写日志模式下写入一批计数器, 失败时抛出异常, 增量留在日志中等待重启后重放
+     * @param deltas key为计数器路径, value为增量
+     */
+    private void addAllInJournal(Map<String, Long> deltas){
+        try {
+            counterStore.addAll(deltas);
+        }catch (Exception e){
+            CounterMetrics.get().failedDelta(deltas.size());
+            throw new IllegalStateException("批量写入 "+deltas.size()+" 个计数器失败, 增量保留在预写日志中, 重启后重放", e);
+        }finally {
+            if(readCache != null){
+                deltas.keySet().forEach(readCache::invalidate);
+            }
+        }
+    }
+
+    /**
+     * 打开预写日志, 读取上次进程退出时没有写入的增量, 启动时再写入存储
+     * @return 打开失败时为null, 不使用预写日志
+     */
+    private DeltaJournal openJournal(){
+        DeltaJournal journal;
+        try {
+            journal = new DeltaJournal(new File(ConfUtils.get("async.journal.dir", "journal")),
+                    ConfUtils.getInt("async.journal.segment.size", 64*1024*1024),
+                    DeltaJournal.FsyncPolicy.valueOf(ConfUtils.get("async.journal.fsync", "interval").trim().toUpperCase()),
+                    ConfUtils.getLong("async.journal.sync.interval.ms", 1000));
+        }catch (Exception e){
+            LOGGER.error("打开预写日志失败, 异步计数不写日志", e);
+            return null;
+        }
+        replayed = journal.replay();
+        return journal;
+    }
+
+    /**
+     * 把上次进程退出时没有写入的增量写入存储, 失败时在后台每隔 async.journal.replay.retry.interval.ms 毫秒重试剩余的增量
+     */
+    private void replayJournal(){
+        if(journal == null){
+            return;
+        }
+        Map<String, Long> rest = new LinkedHashMap<>(replayed);
+        replayed = Collections.emptyMap();
+        if(rest.isEmpty()){
+            journal.discardReplayed();
+            return;
+        }
+        LOGGER.info("重放预写日志中没有写入的 {} 个计数器", rest.size());
+        if(replay(rest)){
+            return;
+        }
+        long interval = ConfUtils.getLong("async.journal.replay.retry.interval.ms", 5000);
+        ScheduledExecutorService retry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-journal-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayRetry = retry;
+        retry.scheduleWithFixedDelay(() -> {
+            if(replay(rest)){
+                retry.shutdown();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 写入重放的增量, 部分失败时已经提交的计数器在日志中标记并从 rest 中移除, 不会重复计数,
+     * 全部写入后才删除重放的日志段
+     * @param rest 还没有写入的增量, key为计数器路径, value为增量
+     * @return 是否全部写入
+     */
+    private boolean replay(Map<String, Long> rest){
+        try {
+            counterStore.addAll(rest);
+        }catch (BatchFlusher.PartialFlushException e){
+            journal.markReplayed(e.getCommitted());
+            rest.keySet().removeAll(e.getCommitted());
+            LOGGER.error("重放预写日志部分失败, 已写入 "+e.getCommitted().size()+" 个计数器, 剩余 "+rest.size()+" 个稍后重试", e.getCause());
+            return false;
+        }catch (Exception e){
+            LOGGER.error("重放预写日志失败, 剩余 "+rest.size()+" 个计数器稍后重试", e);
+            return false;
+        }
+        journal.discardReplayed();
+        LOGGER.info("预写日志重放完成");
+        return true;
+    }
+
+    private void subtract(String path, long delta){
+        try {
+            counterStore.add(path, -delta);
+            if(readCache != null){
+                readCache.invalidate(path);
+            }
+        }catch (Exception e){
+            CounterMetrics.get().failedDelta(1);
+            LOGGER.error("subtract "+delta+" failed for "+path, e);
+        }
+    }
+
+    /**
+     * 非阻塞计数, 通过Curator后台操作直接写入存储, 不经过异步队列和预写日志
+     * 适用于不能阻塞线程的调用方, 如基于事件循环的服务器
+     * @param path 计数器路径
+     * @param delta 增量
+     * @return 写入完成时完成, 写入失败时异常完成
+     */
+    public CompletableFuture<Void> addAsync(String path, long delta){
+        return counterStore.addAsync(path, delta).whenComplete((v, e) -> {
+            if(readCache != null){
+                readCache.invalidate(path);
+            }
+            if(e != null){
+                CounterMetrics.get().failedDelta(1);
+                LOGGER.error("addAsync "+delta+" failed for "+path, e);
+            }
+        });
+    }
+
+    /**
+     * 非阻塞读取计数, 读取失败时返回-1
+     * @param path 计数器路径
+     * @return
+     */
+    public CompletableFuture<Long> getValueAsync(String path){
+        return readAsync(path);
+    }
+
+    public long getValue(String path) {
+        try {
+            if(readCache != null){
+                return readCache.get(path);
+            }
+            return counterStore.get(path);
+        }catch (Exception e){
+            CounterMetrics.get().readFailure();
+            LOGGER.error("get counter exception: "+path, e);
+        }
+        return -1;
+    }
+
+    /**
+     * 所有apiType的限制值, 按限制值从大到小排序, 等待限制值初始化完成, 超时后为初始限制值
+     * @return
+     */
+    public List<Map.Entry<String, Long>> getLimits() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(limits().store.getLimits().entrySet());
+        entries.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+        return entries;
+    }
+
+    /**
+     * apiType的限制值, 等待限制值初始化完成, 超时后为初始限制值
+     * @param apiType
+     * @return 没有限制时为 Long.MAX_VALUE
+     */
+    public Long getLimit(String apiType) {
+        Long limit = limits().store.getLimit(apiType);
+        if(limit == null){
+            limit = Long.MAX_VALUE;
+        }
+        return limit;
+    }
+
+    /**
+     * 尝试获取当天n次调用的配额, 见 CountLimit.tryAcquire
+     * 限制值初始化超时后, 初始化完成之前有限制值的apiType不能获取配额
+     * @param apiType
+     * @param n 调用次数
+     * @return 是否允许调用
+     */
+    public boolean tryAcquire(String apiType, long n) {
+        Limits current = limits();
+        QuotaLeaser quotaLeaser = current.quotaLeaser;
+        if(quotaLeaser == null){
+            return current.store.getLimit(apiType) == null && tryAcquireRate(apiType, n);
+        }
+        SlidingWindowLimiter[] limiters = rateLimiters.get(apiType);
+        if(limiters == null){
+            return quotaLeaser.tryAcquire(apiType, n, getLimit(apiType));
+        }
+        long[] acquired = acquireRate(limiters, n);
+        if(acquired == null){
+            return false;
+        }
+        if(quotaLeaser.tryAcquire(apiType, n, getLimit(apiType))){
+            return true;
+        }
+        releaseRate(limiters, acquired, limiters.length, n);
+        return false;
+    }
+
+    /**
+     * 只检查速率限制, 不消耗当天的配额, 不需要等待启动完成
+     * @param apiType
+     * @param n 调用次数
+     * @return 是否允许调用
+     */
+    public boolean tryAcquireRate(String apiType, long n) {
+        SlidingWindowLimiter[] limiters = rateLimiters.get(apiType);
+        return limiters == null || acquireRate(limiters, n) != null;
+    }
+
+    /**
+     * apiType的速率限制
+     * @param apiType
+     * @return
+     */
+    public List<SlidingWindowLimiter> getRateLimiters(String apiType) {
+        SlidingWindowLimiter[] limiters = rateLimiters.get(apiType);
+        if(limiters == null){
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(limiters));
+    }
+
+    public boolean setLimit(String apiType, long newLimit){
+        LOGGER.info("修改最大限制值, apiType: {}, 现有最大限制值为: {}, 修改为: {}", apiType, getLimit(apiType), newLimit);
+        Limits current = limits();
+        if(current == fallbackLimits){
+            LOGGER.error("限制值还没有初始化完成, 不能为apiType: {} 设置最大限制值: {}", apiType, newLimit);
+            return false;
+        }
+        if(current.store.setLimit(apiType, newLimit)){
+            LOGGER.info("成功为apiType: {} 设置最大限制值: {}", apiType, newLimit);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 限制值初始化完成时返回限额存储, 否则最多等待到启动后 limit.init.timeout.ms 毫秒, 超时后返回初始限制值
+     */
+    private Limits limits(){
+        if(!limits.isDone()){
+            long waitMs = limitInitDeadline - System.currentTimeMillis();
+            try {
+                if(waitMs > 0){
+                    limits.get(waitMs, TimeUnit.MILLISECONDS);
+                }
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }catch (ExecutionException | TimeoutException e){
+                //使用初始限制值
+            }
+        }
+        if(limits.isDone() && !limits.isCompletedExceptionally()){
+            return limits.join();
+        }
+        if(fallbackLogged.compareAndSet(false, true)){
+            LOGGER.warn("限制值在启动后 {} 毫秒内没有初始化完成, 在完成之前使用初始限制值, 有限制值的apiType不能获取配额", limitInitTimeoutMs);
+        }
+        return fallbackLimits;
+    }
+
+    private static long[] acquireRate(SlidingWindowLimiter[] limiters, long n){
+        long[] acquired = new long[limiters.length];
+        for(int i=0; i<limiters.length; i++){
+            acquired[i] = limiters[i].tryAcquire(n);
+            if(acquired[i] < 0){
+                releaseRate(limiters, acquired, i, n);
+                return null;
+            }
+        }
+        return acquired;
+    }
+
+    private static void releaseRate(SlidingWindowLimiter[] limiters, long[] acquired, int count, long n){
+        for(int i=0; i<count; i++){
+            limiters[i].release(acquired[i], n);
+        }
+    }
+
+    private static boolean isZookeeper(String storeName){
+        return StringUtils.isBlank(storeName) || "zookeeper".equals(storeName.trim());
+    }
+
+    /**
+     * 解析 api.call.count.limit, 格式为 apiType:限制值, 如 1:1000000,2:500000
+     */
+    private static Map<String, Long> parseLimits(String conf){
+        Map<String, Long> limits = new LinkedHashMap<>();
+        if(StringUtils.isBlank(conf)){
+            return limits;
+        }
+        for(String attr : conf.split(",")){
+            String[] field = attr.split(":");
+            if(field.length == 2){
+                String apiType = field[0];
+                String limit = field[1];
+                if(StringUtils.isNotBlank(apiType) && StringUtils.isNumeric(limit)) {
+                    limits.put(apiType, Long.parseLong(limit));
+                }
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * 解析 api.call.rate.limit, 格式为 apiType:次数/时间单位, 如 1:100/s,1:5000/m
+     * 集群模式下限额存储初始化完成之前按单节点计算
+     */
+    private Map<String, SlidingWindowLimiter[]> createRateLimiters() {
+        Map<String, SlidingWindowLimiter[]> rateLimiters = new HashMap<>();
+        String conf = ConfUtils.get("api.call.rate.limit", "");
+        if(StringUtils.isBlank(conf)){
+            return rateLimiters;
+        }
+        int bucketCount = ConfUtils.getInt("rate.limit.bucket.count", 10);
+        boolean cluster = ConfUtils.getBoolean("rate.limit.cluster", false);
+        Map<String, List<SlidingWindowLimiter>> limiters = new HashMap<>();
+        for(String attr : conf.split(",")){
+            String[] field = attr.trim().split("[:/]");
+            if(field.length == 3 && StringUtils.isNotBlank(field[0]) && StringUtils.isNumeric(field[1].trim())) {
+                try {
+                    SlidingWindowLimiter limiter = new SlidingWindowLimiter(Long.parseLong(field[1].trim()),
+                            SlidingWindowLimiter.parseWindow(field[2]), bucketCount,
+                            cluster ? this::getLiveNodeCount : () -> 1);
+                    limiters.computeIfAbsent(field[0].trim(), k -> new ArrayList<>()).add(limiter);
+                }catch (Exception e){
+                    LOGGER.error("速率限制配置错误: "+attr, e);
+                }
+            }else{
+                LOGGER.error("速率限制配置错误: {}, 格式为 apiType:次数/时间单位", attr);
+            }
+        }
+        for(Map.Entry<String, List<SlidingWindowLimiter>> entry : limiters.entrySet()){
+            rateLimiters.put(entry.getKey(), entry.getValue().toArray(new SlidingWindowLimiter[entry.getValue().size()]));
+            LOGGER.info("apiType: {} 速率限制: {}, 集群模式: {}", entry.getKey(), entry.getValue(), cluster);
+        }
+        return rateLimiters;
+    }
+
+    private int getLiveNodeCount(){
+        Limits current = limits.getNow(null);
+        return current == null ? 1 : current.store.getLiveNodeCount();
+    }
+
+    private static class Limits {
+        private final LimitStore store;
+        private final QuotaLeaser quotaLeaser;
+
+        private Limits(LimitStore store, QuotaLeaser quotaLeaser) {
+            this.store = store;
+            this.quotaLeaser = quotaLeaser;
+        }
+    }
+
+    /**
+     * 没有指定的组件按 conf.txt 创建, 其他配置项仍然从 conf.txt 读取
+     */
+    public static class Builder {
+        private CounterStore counterStore;
+        private LimitStore limitStore;
+        private Map<String, Long> limits;
+        private Set<String> warmUpApiTypes;
+        private boolean shutdownHook;
+        private long shutdownTimeoutMs = ConfUtils.getLong("async.shutdown.timeout.ms", 10000);
+
+        private Builder() {
+        }
+
+        /**
+         * 计数器存储, 默认按 counter.store 创建
+         */
+        public Builder counterStore(CounterStore counterStore){
+            this.counterStore = counterStore;
+            return this;
+        }
+
+        /**
+         * 限额存储, 默认在启动时按 limit.store 创建
+         */
+        public Builder limitStore(LimitStore limitStore){
+            this.limitStore = limitStore;
+            return this;
+        }
+
+        /**
+         * 启动时初始化的限制值, 存储中已有限制值时保留已有的值, 默认为 api.call.count.limit
+         * @param limits key为apiType, value为限制值
+         */
+        public Builder limits(Map<String, Long> limits){
+            this.limits = new LinkedHashMap<>(limits);
+            return this;
+        }
+
+        /**
+         * 启动时预热当天计数器的apiType, 默认为初始化限制值的apiType
+         */
+        public Builder warmUp(String... apiTypes){
+            return warmUp(Arrays.asList(apiTypes));
+        }
+
+        public Builder warmUp(Collection<String> apiTypes){
+            this.warmUpApiTypes = new LinkedHashSet<>(apiTypes);
+            return this;
+        }
+
+        /**
+         * 是否在进程退出时关闭客户端, 默认为false
+         */
+        public Builder shutdownHook(boolean shutdownHook){
+            this.shutdownHook = shutdownHook;
+            return this;
+        }
+
+        /**
+         * close() 和进程退出时等待增量写入的最长时间, 默认为 async.shutdown.timeout.ms
+         */
+        public Builder shutdownTimeoutMs(long shutdownTimeoutMs){
+            this.shutdownTimeoutMs = shutdownTimeoutMs;
+            return this;
+        }
+
+        /**
+         * 创建客户端并在后台启动, 不阻塞调用线程
+         * @return
+         */
+        public CounterClient build(){
+            CounterClient client = new CounterClient(this);
+            client.start();
+            return client;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 预先解析好的计数器句柄
+ *
+ * 一个句柄对应一个指标和一个apiType, 当天的计数器路径只构造一次, 过了零点后自动切换到新一天的路径,
+ * 调用方持有句柄后计数时不需要格式化日期, 不需要拼接字符串, 也不需要按拼接后的字符串查找
+ * 异步模式下当天路径在异步队列字典中的编号也只查找一次, 计数时直接放入编号
+ * 获取方式: client.handle(Metric.RESPONSE_SUCCESS, apiType) 或 CounterClient.handle(Metric.RESPONSE_SUCCESS, apiType)
+ */
+public class CounterHandle {
+    private final CounterClient client;
+    private final Metric metric;
+    private final String apiType;
+    private volatile Resolved resolved;
+
+    CounterHandle(CounterClient client, Metric metric, String apiType) {
+        this.client = client;
+        this.metric = metric;
+        this.apiType = apiType;
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public String getApiType() {
+        return apiType;
+    }
+
+    /**
+     * 当天的计数器路径
+     * @return
+     */
+    public String getPath(){
+        return resolve().path;
+    }
+
+    public void add(long delta){
+        Resolved current = resolve();
+        client.add(current.path, current.pathId, delta);
+    }
+
+    /**
+     * 计数, 同时按产品和电视细分计数
+     * @param delta 增量
+     * @param productId 产品ID, 为null时不细分
+     * @param tvId 电视ID, 为null时不细分
+     */
+    public void add(long delta, Integer productId, Integer tvId){
+        Resolved current = resolve();
+        client.add(current.path, current.pathId, delta);
+        if(productId != null
+                && !client.addDimension(current.productSketchPath, current.day.getName(), productId, delta)){
+            client.add(current.productPaths.computeIfAbsent(productId,
+                    id -> metric.productPath(current.day.getName(), apiType, id)), delta);
+        }
+        if(tvId != null
+                && !client.addDimension(current.tvSketchPath, current.day.getName(), tvId, delta)){
+            client.add(current.tvPaths.computeIfAbsent(tvId,
+                    id -> metric.tvPath(current.day.getName(), apiType, id)), delta);
+        }
+    }
+
+    /**
+     * 当天的计数
+     * @return
+     */
+    public long get(){
+        return client.getValue(resolve().path);
+    }
+
+    /**
+     * 非阻塞计数, 见 CounterClient.addAsync
+     * @param delta 增量
+     * @return 写入完成时完成
+     */
+    public CompletableFuture<Void> addAsync(long delta){
+        return client.addAsync(resolve().path, delta);
+    }
+
+    /**
+     * 非阻塞读取当天的计数, 读取失败时返回-1
+     * @return
+     */
+    public CompletableFuture<Long> getAsync(){
+        return client.getValueAsync(resolve().path);
+    }
+
+    private Resolved resolve(){
+        DayClock.Day day = DayClock.current();
+        Resolved current = resolved;
+        if(current == null || current.day != day){
+            String path = metric.path(day.getName(), apiType);
+            current = new Resolved(day, path, client.intern(path),
+                    metric.productSketchPath(day.getName(), apiType), metric.tvSketchPath(day.getName(), apiType));
+            resolved = current;
+        }
+        return current;
+    }
+
+    private static class Resolved {
+        private final DayClock.Day day;
+        private final String path;
+        //异步队列字典中的编号, 不直接放入异步队列时为-1
+        private final int pathId;
+        private final String productSketchPath;
+        private final String tvSketchPath;
+        private final Map<Integer, String> productPaths = new ConcurrentHashMap<>();
+        private final Map<Integer, String> tvPaths = new ConcurrentHashMap<>();
+
+        private Resolved(DayClock.Day day, String path, int pathId, String productSketchPath, String tvSketchPath) {
+            this.day = day;
+            this.path = path;
+            this.pathId = pathId;
+            this.productSketchPath = productSketchPath;
+            this.tvSketchPath = tvSketchPath;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.apdplat.counter.valve;
+
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把 flat 布局的计数器迁移到 tree 布局
+ *
+ * 每个 flat 布局的计数器节点: 读取计数和版本号, 加到对应的 tree 布局节点上, 然后带版本号删除原来的节点,
+ * 读取之后节点又被写入时删除失败, 重新读取并只加上新增的部分, 分片计数器的每个分片和计数器节点分别这样迁移,
+ * 细分近似计数节点和 tree 布局节点中已有的 sketch 合并, 删除失败时只合并新增的部分,
+ * 汇总节点中的 flat 布局节点名称改为 tree 布局的相对路径
+ * 迁移可以在计数过程中进行, 迁移期间写入 flat 布局节点的计数不会丢失,
+ * 各节点应先配置 counter.layout=tree 和 counter.layout.read.flat=true, 迁移完成后再配置 counter.layout.read.flat=false
+ * 迁移中断后可以再次运行, 只有中断时正在迁移的那个节点可能重复计数
+ * 运行方式: java org.apdplat.counter.valve.CounterLayoutMigration [--dry-run]
+ */
+public class CounterLayoutMigration {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CounterLayoutMigration.class);
+    //迁移一个节点时最多重新读取的次数
+    private static final int MAX_RETRIES = 100;
+
+    private final CounterStore store;
+    private final String counterPrefix;
+    private final boolean dryRun;
+
+    /**
+     * @param store 计数器存储, 不能是 CompactedCounterStore 或 LayoutCompatibleCounterStore
+     * @param counterPrefix 计数器节点的父路径
+     * @param dryRun 只统计, 不修改
+     */
+    public CounterLayoutMigration(CounterStore store, String counterPrefix, boolean dryRun) {
+        this.store = store;
+        this.counterPrefix = counterPrefix;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * 迁移所有 flat 布局的计数器和汇总节点
+     * @return 迁移的节点数目
+     * @throws Exception
+     */
+    public int migrate() throws Exception {
+        List<String> children = store.listAsync(counterPrefix).get();
+        int migrated = 0;
+        for(String child : children){
+            String path = ZKPaths.makePath(counterPrefix, child);
+            if(child.startsWith(DaySummaries.SUMMARY_PREFIX)){
+                migrateSummary(path, child.substring(DaySummaries.SUMMARY_PREFIX.length()));
+                continue;
+            }
+            String treePath = Metric.toTreePath(child);
+            if(treePath == null){
+                continue;
+            }
+            if(!dryRun) {
+                if (Metric.isSketchNode(child)) {
+                    migrateSketch(path, treePath);
+                } else {
+                    migrateCounter(path, treePath);
+                }
+            }
+            if(++migrated % 1000 == 0){
+                LOGGER.info("已迁移 {} 个计数器节点", migrated);
+            }
+        }
+        LOGGER.info("迁移完成, 共迁移 {} 个计数器节点{}", migrated, dryRun ? " (只统计, 没有修改)" : "");
+        return migrated;
+    }
+
+    /**
+     * 把计数器的每个节点加到 tree 布局的节点上并带版本号删除, 先删除分片, 最后删除计数器节点
+     * 删除失败时重新读取, 每个节点只加上上次迁移之后新增的部分, 节点重新创建后从0开始
+     */
+    private void migrateCounter(String path, String treePath) throws Exception {
+        Map<String, CounterStore.NodeCount> migrated = new HashMap<>();
+        for (int retries = 0; ; retries++) {
+            checkRetries(path, retries);
+            Map<String, CounterStore.NodeCount> nodes = store.getNodeCountsAsync(path).get();
+            if (nodes.isEmpty()) {
+                return;
+            }
+            List<String> nodePaths = new ArrayList<>(nodes.keySet());
+            if (nodePaths.remove(path)) {
+                nodePaths.add(path);
+            }
+            for (String nodePath : nodePaths) {
+                CounterStore.NodeCount node = nodes.get(nodePath);
+                CounterStore.NodeCount last = migrated.get(nodePath);
+                long delta = node.getCount() - (last != null && last.getId() == node.getId() ? last.getCount() : 0);
+                if (delta != 0) {
+                    store.add(treePath, delta);
+                }
+                migrated.put(nodePath, node);
+                if (!store.delete(nodePath, node.getVersion())) {
+                    LOGGER.debug("节点读取之后又被写入或者新增了分片, 重新迁移: {}", nodePath);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 把 sketch 合并到 tree 布局的节点上并带版本号删除, 删除失败时只合并上次迁移之后新增的部分
+     * 先读版本号再读数据, 读取之间的写入会使删除失败
+     */
+    private void migrateSketch(String path, String treePath) throws Exception {
+        byte[] last = null;
+        for (int retries = 0; ; retries++) {
+            checkRetries(path, retries);
+            CounterStore.NodeCount node = store.getNodeCountsAsync(path).get().get(path);
+            byte[] data = node == null ? null : store.getBytes(path);
+            if (data == null) {
+                return;
+            }
+            byte[] base = last;
+            store.updateBytes(treePath, current -> mergeNew(current, base, data));
+            last = data;
+            if (store.delete(path, node.getVersion())) {
+                return;
+            }
+            LOGGER.debug("节点读取之后又被写入, 重新迁移: {}", path);
+        }
+    }
+
+    private static void checkRetries(String path, int retries){
+        if (retries >= MAX_RETRIES) {
+            throw new IllegalStateException("节点一直在被写入或者有不属于计数器的子节点(检查 counter.sharded 配置), 稍后重新运行迁移: " + path);
+        }
+    }
+
+    /**
+     * 把 data 比 base 新增的部分合并到 current
+     * @param base 已经合并过的数据, 为null时合并全部
+     */
+    private static byte[] mergeNew(byte[] current, byte[] base, byte[] data){
+        if(base == null || current == null){
+            return HeavyHitterSketch.merge(current, data);
+        }
+        HeavyHitterSketch sketch = HeavyHitterSketch.deserialize(data, 1, 1, 1);
+        CountMinSketch delta = sketch.getSketch().minus(HeavyHitterSketch.deserialize(base, 1, 1, 1).getSketch());
+        HeavyHitterSketch merged = HeavyHitterSketch.deserialize(current, 1, 1, 1);
+        merged.merge(delta, sketch.getTop().keySet());
+        return merged.serialize();
+    }
+
+    private void migrateSummary(String path, String day) throws Exception {
+        if(dryRun || store.getBytes(path) == null){
+            return;
+        }
+        store.updateBytes(path, data -> {
+            if(data == null){
+                return null;
+            }
+            try {
+                DaySummary summary = DaySummary.deserialize(day, data);
+                DaySummary converted = new DaySummary(day);
+                for(Map.Entry<String, Long> entry : summary.getCounts().entrySet()){
+                    String key = treeKey(entry.getKey());
+                    converted.putCount(key, converted.getCount(key) + entry.getValue());
+                }
+                for(Map.Entry<String, byte[]> entry : summary.getBlobs().entrySet()){
+                    String key = treeKey(entry.getKey());
+                    converted.putBytes(key, HeavyHitterSketch.merge(converted.getBytes(key), entry.getValue()));
+                }
+                return converted.serialize();
+            }catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        });
+        LOGGER.info("迁移汇总节点: {}", path);
+    }
+
+    private static String treeKey(String key){
+        String treePath = Metric.toTreePath(key);
+        return treePath == null ? key : Metric.relativePath(treePath);
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean dryRun = args.length > 0 && "--dry-run".equals(args[0]);
+        new CounterLayoutMigration(new ZookeeperCounterStore(), Zookeeper.getCounterPrefix(), dryRun).migrate();
+        System.exit(0);
+    }
+}
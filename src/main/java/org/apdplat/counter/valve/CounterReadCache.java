@@ -0,0 +1,155 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 计数器读缓存
+ *
+ * 新鲜度保证: 返回的值最多是 maxStaleMs 毫秒之前从存储中读取的值
+ * 启用监听时, 计数器节点发生变化后Zookeeper通知到达即让缓存失效, 下一次读取时重新加载,
+ * 监听丢失(比如会话过期)时仍然由 maxStaleMs 兜底
+ * 分片计数器的值分布在子节点上, 节点本身的监听感知不到分片的变化, 只能依靠 maxStaleMs
+ * 本节点同步写入计数器后会立即让对应的缓存失效
+ * 读取存储失败时, 如果有旧值则返回旧值
+ * 缓存项数目超过 maxSize 时, 先淘汰非当天的计数器, 再淘汰最早加载的计数器
+ * 只监听当天的计数器, 被淘汰的计数器同时移出监听集合
+ */
+public class CounterReadCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CounterReadCache.class);
+
+    private final CounterLoader loader;
+    private final long maxStaleMs;
+    private final int maxSize;
+    private final CounterStore watchStore;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    //计数器路径 -> 监听标记, 淘汰后重新监听时旧监听的回调不会移除新监听的标记
+    private final Map<String, Object> watching = new ConcurrentHashMap<>();
+
+    /**
+     * @param loader 从存储中读取计数器的方法
+     * @param maxStaleMs 缓存值的最长有效时间, 毫秒
+     * @param maxSize 最多缓存的计数器数目
+     * @param watchStore 用于监听计数器变化的存储, 为null时不监听
+     */
+    public CounterReadCache(CounterLoader loader, long maxStaleMs, int maxSize, CounterStore watchStore) {
+        this.loader = loader;
+        this.maxStaleMs = maxStaleMs;
+        this.maxSize = maxSize;
+        this.watchStore = watchStore;
+        LOGGER.info("启用计数器读缓存, 最长有效时间: {} 毫秒, 最大缓存数目: {}, 是否监听变化: {}", maxStaleMs, maxSize, watchStore != null);
+    }
+
+    public long get(String path) throws Exception {
+        Entry entry = entries.get(path);
+        long now = System.currentTimeMillis();
+        if(entry != null && !entry.invalid && now - entry.loadedAt <= maxStaleMs){
+            return entry.value;
+        }
+        watch(path);
+        long value;
+        try {
+            value = loader.load(path);
+        }catch (Exception e){
+            if(entry != null){
+                LOGGER.warn("读取计数器失败, 返回 {} 毫秒之前的缓存值, path: {}", now - entry.loadedAt, path);
+                return entry.value;
+            }
+            throw e;
+        }
+        Entry loaded = new Entry(value, now);
+        if(entry == null){
+            entries.putIfAbsent(path, loaded);
+        }else{
+            //加载期间发生的失效通知优先, 不覆盖
+            entries.replace(path, entry, loaded);
+        }
+        if(entries.size() > maxSize){
+            evict();
+        }
+        return value;
+    }
+
+    /**
+     * 让计数器的缓存失效
+     * @param path
+     */
+    public void invalidate(String path){
+        entries.computeIfPresent(path, (k, v) -> new Entry(v.value, v.loadedAt, true));
+    }
+
+    public int size(){
+        return entries.size();
+    }
+
+    private void watch(String path){
+        if(watchStore == null){
+            return;
+        }
+        //非当天的计数器不再监听, 只依靠 maxStaleMs
+        String day = Metric.dayOf(path);
+        if(day != null && !day.equals(DayClock.today())){
+            return;
+        }
+        Object token = new Object();
+        if(watching.putIfAbsent(path, token) != null){
+            return;
+        }
+        boolean watched = watchStore.watch(path, () -> {
+            watching.remove(path, token);
+            invalidate(path);
+        });
+        if(!watched){
+            watching.remove(path, token);
+        }
+    }
+
+    private synchronized void evict(){
+        if(entries.size() <= maxSize){
+            return;
+        }
+        String today = DayClock.today();
+        entries.keySet().removeIf(path -> !today.equals(Metric.dayOf(path)));
+        int overflow = entries.size() - maxSize * 9 / 10;
+        if(overflow > 0){
+            List<Map.Entry<String, Entry>> oldest = new ArrayList<>(entries.entrySet());
+            oldest.sort(Comparator.comparingLong(e -> e.getValue().loadedAt));
+            for(int i=0; i<overflow && i<oldest.size(); i++){
+                entries.remove(oldest.get(i).getKey());
+            }
+        }
+        //已经淘汰的计数器不再占用监听集合, 已经注册的监听触发一次后自然结束
+        watching.keySet().removeIf(path -> !entries.containsKey(path));
+    }
+
+    /**
+     * 从存储中读取计数器
+     */
+    @FunctionalInterface
+    public interface CounterLoader {
+        long load(String path) throws Exception;
+    }
+
+    private static class Entry {
+        private final long value;
+        private final long loadedAt;
+        private final boolean invalid;
+
+        private Entry(long value, long loadedAt) {
+            this(value, loadedAt, false);
+        }
+
+        private Entry(long value, long loadedAt, boolean invalid) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            this.invalid = invalid;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.apdplat.counter.valve;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 某一天多个apiType的所有计数, 创建后不可修改
+ *
+ * 获取方式: AtomicCounter.snapshot("20161118", "1", "2")
+ * 读取失败的计数值为-1
+ */
+public class CounterSnapshot {
+    private final String day;
+    private final Map<String, Map<Metric, Long>> counts;
+    private final Map<String, Map<Integer, Long>> productCounts;
+    private final Map<String, Map<Integer, Long>> tvCounts;
+
+    private CounterSnapshot(Builder builder) {
+        this.day = builder.day;
+        this.counts = freeze(builder.counts);
+        this.productCounts = freeze(builder.productCounts);
+        this.tvCounts = freeze(builder.tvCounts);
+    }
+
+    public String getDay() {
+        return day;
+    }
+
+    public Set<String> getApiTypes(){
+        return counts.keySet();
+    }
+
+    public long getCount(Metric metric, String apiType){
+        Map<Metric, Long> metrics = counts.get(apiType);
+        if(metrics == null){
+            return 0;
+        }
+        Long count = metrics.get(metric);
+        return count == null ? 0 : count;
+    }
+
+    public long getNoResponseCount(String apiType){
+        return getCount(Metric.NO_RESPONSE, apiType);
+    }
+
+    public long getWrongContentCount(String apiType){
+        return getCount(Metric.WRONG_CONTENT, apiType);
+    }
+
+    public long getResponseSuccessCount(String apiType){
+        return getCount(Metric.RESPONSE_SUCCESS, apiType);
+    }
+
+    public long getExceptionCount(String apiType){
+        return getCount(Metric.EXCEPTION, apiType);
+    }
+
+    public long getBeyondCount(String apiType){
+        return getCount(Metric.BEYOND, apiType);
+    }
+
+    /**
+     * 按产品细分的成功计数
+     * @param apiType
+     * @return key为产品ID
+     */
+    public Map<Integer, Long> getProductCounts(String apiType){
+        Map<Integer, Long> products = productCounts.get(apiType);
+        return products == null ? Collections.emptyMap() : products;
+    }
+
+    /**
+     * 按电视细分的成功计数
+     * @param apiType
+     * @return key为电视ID
+     */
+    public Map<Integer, Long> getTvCounts(String apiType){
+        Map<Integer, Long> tvs = tvCounts.get(apiType);
+        return tvs == null ? Collections.emptyMap() : tvs;
+    }
+
+    private static <K> Map<String, Map<K, Long>> freeze(Map<String, Map<K, Long>> source){
+        Map<String, Map<K, Long>> copy = new LinkedHashMap<>();
+        source.forEach((apiType, values) -> copy.put(apiType, Collections.unmodifiableMap(values)));
+        return Collections.unmodifiableMap(copy);
+    }
+
+    @Override
+    public String toString() {
+        return "CounterSnapshot{" +
+                "day='" + day + '\'' +
+                ", counts=" + counts +
+                ", productCounts=" + productCounts +
+                ", tvCounts=" + tvCounts +
+                '}';
+    }
+
+    static class Builder {
+        private final String day;
+        private final Map<String, Map<Metric, Long>> counts = new LinkedHashMap<>();
+        private final Map<String, Map<Integer, Long>> productCounts = new LinkedHashMap<>();
+        private final Map<String, Map<Integer, Long>> tvCounts = new LinkedHashMap<>();
+
+        Builder(String day) {
+            this.day = day;
+        }
+
+        synchronized Builder apiType(String apiType){
+            counts.computeIfAbsent(apiType, k -> new EnumMap<>(Metric.class));
+            return this;
+        }
+
+        synchronized Builder count(String apiType, Metric metric, long value){
+            counts.computeIfAbsent(apiType, k -> new EnumMap<>(Metric.class)).put(metric, value);
+            return this;
+        }
+
+        synchronized Builder productCount(String apiType, Integer productId, long value){
+            productCounts.computeIfAbsent(apiType, k -> new TreeMap<>()).put(productId, value);
+            return this;
+        }
+
+        synchronized Builder tvCount(String apiType, Integer tvId, long value){
+            tvCounts.computeIfAbsent(apiType, k -> new TreeMap<>()).put(tvId, value);
+            return this;
+        }
+
+        synchronized CounterSnapshot build(){
+            return new CounterSnapshot(this);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.apdplat.counter.valve;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+
+/**
+ * 计数器存储
+ *
+ * 计数器用路径标识, 路径格式见 Metric
+ * 内置的实现有 zookeeper 和 memory 两种, 通过 conf.txt 中的 counter.store 选择,
+ * 也可以指定实现了该接口并且有无参构造函数的类的全名
+ */
+public interface CounterStore {
+    /**
+     * 按版本号删除时不检查版本号, 和Zookeeper一致
+     */
+    int ANY_VERSION = -1;
+
+    /**
+     * 增加计数
+     * @param path 计数器路径
+     * @param delta 增量, 可以为负数
+     * @throws Exception
+     */
+    void add(String path, long delta) throws Exception;
+
+    /**
+     * 异步增加计数, 默认在调用线程中同步写入
+     * @param path 计数器路径
+     * @param delta 增量, 可以为负数
+     * @return 写入完成或失败时完成
+     */
+    default CompletableFuture<Void> addAsync(String path, long delta){
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            add(path, delta);
+            future.complete(null);
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 增加一批计数
+     * @param deltas key为计数器路径, value为增量
+     * @throws Exception
+     */
+    default void addAll(Map<String, Long> deltas) throws Exception {
+        for(Map.Entry<String, Long> entry : deltas.entrySet()){
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 获取计数, 计数器不存在时返回0
+     * @param path 计数器路径
+     * @return
+     * @throws Exception
+     */
+    long get(String path) throws Exception;
+
+    /**
+     * 异步获取计数, 计数器不存在时返回0
+     * @param path 计数器路径
+     * @return
+     */
+    default CompletableFuture<Long> getAsync(String path){
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            future.complete(get(path));
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 异步列出某个路径下的直接子节点名称
+     * @param parent 父路径
+     * @return
+     */
+    CompletableFuture<List<String>> listAsync(String parent);
+
+    /**
+     * 监听计数器的变化, 变化时回调一次
+     * @param path 计数器路径
+     * @param onChange 回调
+     * @return 是否支持监听
+     */
+    default boolean watch(String path, Runnable onChange){
+        return false;
+    }
+
+    /**
+     * 读取二进制数据, 用于保存细分近似计数等不是单个数值的数据
+     * @param path 节点路径
+     * @return 节点不存在时返回null
+     * @throws Exception
+     */
+    default byte[] getBytes(String path) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName()+" 不支持二进制数据");
+    }
+
+    /**
+     * 异步读取二进制数据, 默认在调用线程中同步读取
+     * @param path 节点路径
+     * @return 节点不存在时为null
+     */
+    default CompletableFuture<byte[]> getBytesAsync(String path){
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            future.complete(getBytes(path));
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 原子地更新二进制数据, 并发更新冲突时 update 会被重新调用
+     * @param path 节点路径
+     * @param update 参数为当前数据, 节点不存在时为null, 返回新的数据
+     * @throws Exception
+     */
+    default void updateBytes(String path, UnaryOperator<byte[]> update) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName()+" 不支持二进制数据");
+    }
+
+    /**
+     * 异步读取组成计数器的每个节点的标识和计数, 按天压缩时用来识别已经合并过的节点
+     * 分片计数器由计数器节点和每个分片节点组成, 同一个路径的节点删除后重新创建时标识不同,
+     * 二进制数据节点只有节点本身, 计数没有意义
+     * @param path 计数器路径
+     * @return key为节点路径, 计数器不存在时为空
+     */
+    default CompletableFuture<Map<String, NodeCount>> getNodeCountsAsync(String path){
+        CompletableFuture<Map<String, NodeCount>> future = new CompletableFuture<>();
+        future.completeExceptionally(new UnsupportedOperationException(getClass().getName()+" 不支持读取节点标识"));
+        return future;
+    }
+
+    /**
+     * 删除节点及其所有子节点, 节点不存在时忽略
+     * @param path 节点路径
+     * @throws Exception
+     */
+    default void delete(String path) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName()+" 不支持删除");
+    }
+
+    /**
+     * 节点没有被修改时删除该节点, 用于先读取再删除, 不丢失读取之后的写入
+     * @param path 节点路径, 分片计数器的计数器节点和分片节点分别删除
+     * @param version 读取时的版本号, 见 getNodeCountsAsync, 为 ANY_VERSION 时不检查版本号, 只删除没有子节点的节点
+     * @return 版本号不同或者有子节点时不删除, 返回false, 节点不存在时返回true
+     * @throws Exception
+     */
+    default boolean delete(String path, int version) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName()+" 不支持按版本号删除");
+    }
+
+    class NodeCount {
+        private final long id;
+        private final long count;
+        private final int version;
+
+        public NodeCount(long id, long count, int version) {
+            this.id = id;
+            this.count = count;
+            this.version = version;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 节点数据的版本号, 每次修改都会变化, 不支持时为0
+         * @return
+         */
+        public int getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package org.apdplat.counter.valve;
+
+import org.apache.curator.utils.ZKPaths;
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 按天压缩计数器节点
+ *
+ * 每天都会新建一批计数器节点, flat 布局中这些节点都是 atomic.counter.zookeeper.prefix 的子节点,
+ * 时间长了子节点越来越多, 列出子节点和Zookeeper快照都会越来越慢, tree 布局中每天的计数器在一个子树中
+ * 一天结束并且超过宽限期后, 把当天所有计数器节点的值合并到一个汇总节点, 再删除这些计数器节点,
+ * 读取已经压缩的日期时从汇总节点中读取, 见 CompactedCounterStore
+ * 汇总之后又出现的同一天的节点(如重启后重放的预写日志)在下次压缩时累加到汇总中,
+ * 因此宽限期应该大于异步写入和重放的最大延迟
+ * 合并是幂等的: 汇总中记录合并过的节点的标识和值, 删除节点失败或者进程在合并和删除之间退出时,
+ * 下次压缩再读取到同一个节点只用新的值替换上次合并的值, 不会重复计数, 删除成功后才把这些值计入汇总, 见 DaySummary
+ * 每个节点按读取时的版本号删除, 读取之后又被修改的节点保留到下次压缩, 不会丢失读取之后的写入,
+ * tree 布局中的目录节点没有子节点时才删除
+ * 配置了保留天数时, 删除超出保留期的汇总节点和计数器节点
+ */
+public class DayCompactor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DayCompactor.class);
+
+    private static final int READ_BATCH_SIZE = 1000;
+    private static final Comparator<String> DEEPEST_FIRST = Comparator.comparingInt(DayCompactor::depth).reversed();
+
+    private final CounterStore store;
+    private final DaySummaries summaries;
+    private final String counterPrefix;
+    private final long graceMs;
+    private final int retentionDays;
+    private final int maxSummaryBytes;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param store 计数器存储, 不能是 CompactedCounterStore, 压缩时需要读取原来的计数器节点
+     * @param summaries 汇总节点
+     * @param counterPrefix 计数器节点的父路径
+     * @param graceMs 一天结束后多久才压缩, 毫秒
+     * @param retentionDays 保留的天数, 小于等于0时一直保留
+     * @param maxSummaryBytes 汇总节点的最大字节数, 超过时不压缩当天的节点
+     */
+    public DayCompactor(CounterStore store, DaySummaries summaries, String counterPrefix, long graceMs, int retentionDays, int maxSummaryBytes) {
+        this.store = store;
+        this.summaries = summaries;
+        this.counterPrefix = counterPrefix;
+        this.graceMs = graceMs;
+        this.retentionDays = retentionDays;
+        this.maxSummaryBytes = maxSummaryBytes;
+    }
+
+    /**
+     * 启动后台线程定期压缩
+     * @param intervalMs 压缩间隔, 毫秒
+     * @return
+     */
+    public DayCompactor start(long intervalMs){
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-day-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::run, Math.min(intervalMs, 60000), intervalMs, TimeUnit.MILLISECONDS);
+        LOGGER.info("启动按天压缩, 间隔: {} 毫秒, 宽限期: {} 毫秒, 保留天数: {}", intervalMs, graceMs, retentionDays);
+        return this;
+    }
+
+    public void stop(){
+        if(scheduler != null){
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 压缩所有已经结束并超过宽限期的日期, 然后清理超出保留期的数据
+     */
+    public synchronized void run(){
+        try {
+            List<String> children = store.listAsync(counterPrefix).get();
+            Map<String, List<String>> nodesByDay = new TreeMap<>();
+            List<String> summaryDays = new ArrayList<>();
+            for(String child : children){
+                if(child.startsWith(DaySummaries.SUMMARY_PREFIX)){
+                    summaryDays.add(child.substring(DaySummaries.SUMMARY_PREFIX.length()));
+                    continue;
+                }
+                if(Metric.isDayNode(child)){
+                    nodesByDay.computeIfAbsent(child, k -> new ArrayList<>());
+                    continue;
+                }
+                String day = Metric.dayOf(child);
+                if(day != null){
+                    nodesByDay.computeIfAbsent(day, k -> new ArrayList<>()).add(child);
+                }
+            }
+            String cutoff = retentionDays > 0 ? DayClock.Day.of(LocalDate.now().minusDays(retentionDays)).getName() : null;
+            long now = System.currentTimeMillis();
+            for(Map.Entry<String, List<String>> entry : nodesByDay.entrySet()){
+                String day = entry.getKey();
+                List<String> nodes = entry.getValue();
+                try {
+                    if(cutoff != null && day.compareTo(cutoff) < 0){
+                        if(children.contains(day)){
+                            nodes.add(day);
+                        }
+                        deleteAll(nodes);
+                        LOGGER.info("删除超出保留期的计数器节点, 日期: {}", day);
+                    }else if(now >= DayClock.Day.parse(day).getEndMillis() + graceMs){
+                        if(children.contains(day)){
+                            nodes.addAll(listTree(day));
+                        }
+                        if(nodes.isEmpty()){
+                            List<String> dirs = new ArrayList<>();
+                            dirs.add(day);
+                            if(children.contains(day)){
+                                for(String apiType : list(day)){
+                                    dirs.add(day + "/" + apiType);
+                                }
+                            }
+                            deleteIfEmpty(dirs);
+                        }else {
+                            compact(day, nodes);
+                        }
+                    }
+                }catch (Exception e){
+                    LOGGER.error("压缩计数器节点失败, 日期: "+day, e);
+                }
+            }
+            if(cutoff != null){
+                for(String day : summaryDays){
+                    if(day.compareTo(cutoff) < 0){
+                        store.delete(summaries.summaryPath(day));
+                        summaries.invalidate(day);
+                        LOGGER.info("删除超出保留期的汇总节点, 日期: {}", day);
+                    }
+                }
+            }
+        }catch (Throwable e){
+            LOGGER.error("按天压缩出错", e);
+        }
+    }
+
+    /**
+     * tree 布局中某一天的所有计数器, 不包括分片
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 相对于计数器父路径的路径
+     * @throws Exception
+     */
+    private List<String> listTree(String day) throws Exception {
+        List<String> nodes = new ArrayList<>();
+        for(String apiType : list(day)){
+            for(String metric : list(day + "/" + apiType)){
+                String metricPath = day + "/" + apiType + "/" + metric;
+                nodes.add(metricPath);
+                for(String child : list(metricPath)){
+                    if("p".equals(child) || "t".equals(child)){
+                        for(String id : list(metricPath + "/" + child)){
+                            nodes.add(metricPath + "/" + child + "/" + id);
+                        }
+                    }else if(Metric.isSketchNode(child)){
+                        nodes.add(metricPath + "/" + child);
+                    }
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private List<String> list(String relativePath) throws Exception {
+        return store.listAsync(ZKPaths.makePath(counterPrefix, relativePath)).get();
+    }
+
+    /**
+     * 把某一天的计数器节点合并到汇总节点, 然后按读取时的版本号删除这些计数器节点, 再删除没有子节点的目录节点
+     * @param day 日期, 格式为yyyyMMdd
+     * @param nodeNames 这一天所有计数器相对于计数器父路径的路径
+     * @throws Exception
+     */
+    public void compact(String day, List<String> nodeNames) throws Exception {
+        long start = System.currentTimeMillis();
+        Map<String, Integer> versions = new HashMap<>();
+        Map<String, DaySummary.FoldedNode> nodes = read(nodeNames, versions);
+        Map<String, DaySummary.FoldedNode> deleted;
+        try {
+            updateSummary(day, summary -> summary.fold(nodes));
+            deleted = delete(nodes, versions, dirsOf(nodeNames));
+            updateSummary(day, summary -> summary.settle(deleted));
+        }finally {
+            summaries.invalidate(day);
+        }
+        LOGGER.info("压缩 {} 个计数器节点到 {}, 删除 {} 个节点, {} 个节点读取之后被修改, 下次压缩, 耗时: {} 毫秒",
+                nodeNames.size(), summaries.summaryPath(day), deleted.size(), nodes.size() - deleted.size(), System.currentTimeMillis() - start);
+    }
+
+    private void updateSummary(String day, Consumer<DaySummary> update) throws Exception {
+        store.updateBytes(summaries.summaryPath(day), data -> {
+            try {
+                DaySummary summary = data == null ? new DaySummary(day) : DaySummary.deserialize(day, data);
+                update.accept(summary);
+                byte[] serialized = summary.serialize();
+                if(serialized.length > maxSummaryBytes){
+                    throw new IllegalStateException("汇总节点 "+serialized.length+" 字节, 超过 compaction.max.summary.bytes="+maxSummaryBytes);
+                }
+                return serialized;
+            }catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * 读取组成计数器的每个节点
+     * @param versions 读取时每个节点的版本号, key为节点相对于计数器父路径的路径
+     * @return key为节点相对于计数器父路径的路径
+     */
+    private Map<String, DaySummary.FoldedNode> read(List<String> nodeNames, Map<String, Integer> versions) throws Exception {
+        Map<String, DaySummary.FoldedNode> nodes = new LinkedHashMap<>();
+        for(int from=0; from<nodeNames.size(); from+=READ_BATCH_SIZE){
+            List<String> batch = nodeNames.subList(from, Math.min(from + READ_BATCH_SIZE, nodeNames.size()));
+            List<CompletableFuture<Map<String, CounterStore.NodeCount>>> reads = new ArrayList<>(batch.size());
+            for(String nodeName : batch){
+                reads.add(store.getNodeCountsAsync(ZKPaths.makePath(counterPrefix, nodeName)));
+            }
+            for(int i=0; i<batch.size(); i++){
+                String nodeName = batch.get(i);
+                if(Metric.isSketchNode(nodeName)){
+                    String path = ZKPaths.makePath(counterPrefix, nodeName);
+                    CounterStore.NodeCount before = reads.get(i).get().get(path);
+                    byte[] data = before == null ? null : store.getBytes(path);
+                    //读取数据前后标识和版本号都相同时数据才属于这个版本, 否则留到下次压缩
+                    CounterStore.NodeCount after = data == null ? null : store.getNodeCountsAsync(path).get().get(path);
+                    if(after != null && after.getId() == before.getId() && after.getVersion() == before.getVersion()){
+                        nodes.put(nodeName, DaySummary.FoldedNode.bytes(nodeName, after.getId(), data));
+                        versions.put(nodeName, after.getVersion());
+                    }
+                }else{
+                    int counterPathLength = ZKPaths.makePath(counterPrefix, nodeName).length();
+                    for(Map.Entry<String, CounterStore.NodeCount> entry : reads.get(i).get().entrySet()){
+                        //分片节点的路径是计数器路径加上分片名称
+                        String relativePath = nodeName + entry.getKey().substring(counterPathLength);
+                        nodes.put(relativePath, DaySummary.FoldedNode.count(relativePath, entry.getValue().getId(), entry.getValue().getCount()));
+                        versions.put(relativePath, entry.getValue().getVersion());
+                    }
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * 按读取时的版本号删除节点, 目录节点没有子节点时删除, 子节点先于父节点删除
+     * @param dirs 目录节点, 见 dirsOf
+     * @return 已经删除的节点, 不包括目录节点
+     */
+    private Map<String, DaySummary.FoldedNode> delete(Map<String, DaySummary.FoldedNode> nodes, Map<String, Integer> versions, List<String> dirs) throws Exception {
+        List<String> paths = new ArrayList<>(nodes.keySet());
+        paths.addAll(dirs);
+        paths.sort(DEEPEST_FIRST);
+        Map<String, DaySummary.FoldedNode> deleted = new HashMap<>();
+        for(String path : paths){
+            DaySummary.FoldedNode node = nodes.get(path);
+            int version = node == null ? CounterStore.ANY_VERSION : versions.get(path);
+            if(store.delete(ZKPaths.makePath(counterPrefix, path), version) && node != null){
+                deleted.put(path, node);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * tree 布局中计数器所在的目录节点, 即日期、apiType 和细分计数器的 p、t 节点, 不包括计数器节点
+     */
+    private static List<String> dirsOf(List<String> nodeNames){
+        Set<String> counters = new HashSet<>(nodeNames);
+        Set<String> dirs = new LinkedHashSet<>();
+        for(String nodeName : nodeNames){
+            for(int slash = nodeName.indexOf('/'); slash != -1; slash = nodeName.indexOf('/', slash + 1)){
+                String parent = nodeName.substring(0, slash);
+                if(!counters.contains(parent)){
+                    dirs.add(parent);
+                }
+            }
+        }
+        return new ArrayList<>(dirs);
+    }
+
+    /**
+     * 删除没有子节点的目录节点, 子节点先于父节点删除, 有子节点的保留
+     */
+    private void deleteIfEmpty(List<String> dirs) throws Exception {
+        List<String> paths = new ArrayList<>(dirs);
+        paths.sort(DEEPEST_FIRST);
+        for(String path : paths){
+            store.delete(ZKPaths.makePath(counterPrefix, path), CounterStore.ANY_VERSION);
+        }
+    }
+
+    /**
+     * 删除超出保留期的计数器节点, tree 布局中的节点删除所在日期的整个子树
+     */
+    private void deleteAll(List<String> nodeNames) throws Exception {
+        Set<String> roots = new LinkedHashSet<>();
+        for(String nodeName : nodeNames){
+            int slash = nodeName.indexOf('/');
+            roots.add(slash == -1 ? nodeName : nodeName.substring(0, slash));
+        }
+        for(String root : roots){
+            store.delete(ZKPaths.makePath(counterPrefix, root));
+        }
+    }
+
+    private static int depth(String path){
+        int depth = 0;
+        for(int i=0; i<path.length(); i++){
+            if(path.charAt(i) == '/'){
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
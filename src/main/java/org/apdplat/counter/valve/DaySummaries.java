@@ -0,0 +1,186 @@
+package org.apdplat.counter.valve;
+
+import org.apache.curator.utils.ZKPaths;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每天汇总节点的读取和缓存
+ *
+ * 汇总节点的路径为 {atomic.counter.zookeeper.prefix}/summary_{yyyyMMdd}
+ * 汇总写入后不再变化, 读取到的汇总一直缓存; 还没有汇总的日期每隔 recheckMs 毫秒重新检查一次
+ * getAsync 和 refreshAsync 通过存储的 getBytesAsync 读取, 可以在异步回调中使用
+ */
+public class DaySummaries {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DaySummaries.class);
+
+    public static final String SUMMARY_PREFIX = "summary_";
+
+    private final CounterStore store;
+    private final String counterPrefix;
+    private final long recheckMs;
+    private final int maxSize;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+    /**
+     * @param store 保存汇总节点的存储
+     * @param counterPrefix 计数器节点的父路径
+     * @param recheckMs 没有汇总的日期多久之后重新检查, 毫秒
+     * @param maxSize 最多缓存的天数
+     */
+    public DaySummaries(CounterStore store, String counterPrefix, long recheckMs, int maxSize) {
+        this.store = store;
+        this.counterPrefix = counterPrefix;
+        this.recheckMs = recheckMs;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    public String summaryPath(String day){
+        return ZKPaths.makePath(counterPrefix, SUMMARY_PREFIX + day);
+    }
+
+    /**
+     * 某一天的汇总, 读取失败时返回null
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 还没有汇总时返回null
+     */
+    public DaySummary get(String day){
+        Entry entry = cache.get(day);
+        if(entry != null && (entry.summary != null || System.currentTimeMillis() - entry.loadedAt < recheckMs)){
+            return entry.summary;
+        }
+        try {
+            DaySummary summary = load(day);
+            cache(day, summary);
+            return summary;
+        }catch (UnsupportedOperationException e){
+            //存储不支持二进制数据时不会有汇总节点
+            cache.put(day, new Entry(null));
+        }catch (Exception e){
+            LOGGER.error("读取汇总失败: "+summaryPath(day), e);
+        }
+        return null;
+    }
+
+    /**
+     * 非阻塞读取某一天的汇总, 见 get
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 还没有汇总或者读取失败时为null, 不会异常完成
+     */
+    public CompletableFuture<DaySummary> getAsync(String day){
+        Entry entry = cache.get(day);
+        if(entry != null && (entry.summary != null || System.currentTimeMillis() - entry.loadedAt < recheckMs)){
+            return CompletableFuture.completedFuture(entry.summary);
+        }
+        return loadAsync(day).handle((summary, e) -> {
+            if(e == null){
+                cache(day, summary);
+                return summary;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if(cause instanceof UnsupportedOperationException){
+                cache.put(day, new Entry(null));
+            }else{
+                LOGGER.error("读取汇总失败: "+summaryPath(day), cause);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 不经过缓存读取某一天的汇总
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 还没有汇总时返回null
+     * @throws Exception
+     */
+    public DaySummary load(String day) throws Exception {
+        byte[] data = store.getBytes(summaryPath(day));
+        return data == null ? null : DaySummary.deserialize(day, data);
+    }
+
+    /**
+     * 不经过缓存异步读取某一天的汇总
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 还没有汇总时为null
+     */
+    public CompletableFuture<DaySummary> loadAsync(String day){
+        return store.getBytesAsync(summaryPath(day)).thenApply(data -> {
+            try {
+                return data == null ? null : DaySummary.deserialize(day, data);
+            }catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * 丢弃缓存后重新读取某一天的汇总
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 还没有汇总时返回null
+     */
+    public DaySummary refresh(String day){
+        discardMissing(day);
+        return get(day);
+    }
+
+    /**
+     * 非阻塞地丢弃缓存后重新读取某一天的汇总, 见 refresh
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 还没有汇总或者读取失败时为null, 不会异常完成
+     */
+    public CompletableFuture<DaySummary> refreshAsync(String day){
+        discardMissing(day);
+        return getAsync(day);
+    }
+
+    /**
+     * 丢弃缓存的还没有汇总的结果, 已经读取到的汇总不会再变化, 保留
+     */
+    private void discardMissing(String day){
+        Entry entry = cache.get(day);
+        if(entry != null && entry.summary == null){
+            cache.remove(day, entry);
+        }
+    }
+
+    private void cache(String day, DaySummary summary){
+        if(cache.size() >= maxSize){
+            evict();
+        }
+        cache.put(day, new Entry(summary));
+    }
+
+    public void invalidate(String day){
+        cache.remove(day);
+    }
+
+    private void evict(){
+        String oldest = null;
+        long oldestLoadedAt = Long.MAX_VALUE;
+        for(Map.Entry<String, Entry> entry : cache.entrySet()){
+            if(entry.getValue().loadedAt < oldestLoadedAt){
+                oldest = entry.getKey();
+                oldestLoadedAt = entry.getValue().loadedAt;
+            }
+        }
+        if(oldest != null){
+            cache.remove(oldest);
+        }
+    }
+
+    private static class Entry {
+        private final DaySummary summary;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private Entry(DaySummary summary) {
+            this.summary = summary;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package org.apdplat.counter.valve;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 某一天所有计数器压缩后的汇总
+ *
+ * 一天结束后, 当天所有计数器节点的值合并到一个汇总节点中, 然后删除计数器节点
+ * 每个计数器用相对于 atomic.counter.zookeeper.prefix 的路径标识, flat 布局中就是节点名称
+ * 汇总按路径排序后编码, 每个路径只保存与前一个路径不同的后缀, 数值用变长编码, 最后整体用deflate压缩,
+ * 同一天的路径大部分相同, 每个计数器通常只占几个字节
+ * 编码格式: 版本(int) 条目数(varint) [共同前缀长度(varint) 后缀长度(varint) 后缀(UTF-8) 类型(byte) 值]...
+ * 类型为0时值是计数(zigzag varint), 类型为1时值是二进制数据(长度varint + 数据)
+ *
+ * 合并之后、删除计数器节点之前失败时, 这些节点在下次压缩时还会被读取到, 为了不重复计数,
+ * 汇总中还记录已经合并但还没有确认删除的节点(分片计数器的每个分片是一个节点)的标识和合并时的值,
+ * 再次读取到同一个节点时用新的值替换上次合并的值, 节点被删除或重新创建后才把上次合并的值计入汇总
+ * 有这样的节点时版本为2, 条目之后是: 节点数(varint) [共同前缀长度(varint) 后缀长度(varint) 后缀(UTF-8) 节点标识(varint) 类型(byte) 值]...
+ */
+public class DaySummary {
+    private static final int VERSION = 1;
+    private static final int FOLDED_VERSION = 2;
+    private static final byte COUNT = 0;
+    private static final byte BYTES = 1;
+
+    private final String day;
+    private final Map<String, Long> counts;
+    private final Map<String, byte[]> blobs;
+    //已经合并但还没有确认删除的节点, key为节点相对于 atomic.counter.zookeeper.prefix 的路径
+    private final NavigableMap<String, FoldedNode> folded;
+
+    public DaySummary(String day) {
+        this(day, new TreeMap<>(), new TreeMap<>(), new TreeMap<>());
+    }
+
+    private DaySummary(String day, Map<String, Long> counts, Map<String, byte[]> blobs, NavigableMap<String, FoldedNode> folded) {
+        this.day = day;
+        this.counts = counts;
+        this.blobs = blobs;
+        this.folded = folded;
+    }
+
+    public String getDay() {
+        return day;
+    }
+
+    /**
+     * 计数
+     * @param nodeName 计数器相对于 atomic.counter.zookeeper.prefix 的路径
+     * @return 没有该计数器时为0
+     */
+    public long getCount(String nodeName){
+        Long count = counts.get(nodeName);
+        long value = count == null ? 0 : count;
+        for(FoldedNode node : foldedOf(nodeName)){
+            value += node.count;
+        }
+        return value;
+    }
+
+    /**
+     * 二进制数据, 如细分近似计数
+     * @param nodeName 节点相对于 atomic.counter.zookeeper.prefix 的路径
+     * @return 没有该节点时为null
+     */
+    public byte[] getBytes(String nodeName){
+        byte[] data = blobs.get(nodeName);
+        FoldedNode node = folded.get(nodeName);
+        if(node != null && node.data != null){
+            data = HeavyHitterSketch.merge(data, node.data);
+        }
+        return data;
+    }
+
+    public boolean contains(String nodeName){
+        return counts.containsKey(nodeName) || blobs.containsKey(nodeName) || !foldedOf(nodeName).isEmpty();
+    }
+
+    /**
+     * 所有计数, 包括已经合并但还没有确认删除的节点
+     * @return
+     */
+    public Map<String, Long> getCounts() {
+        if(folded.isEmpty()){
+            return Collections.unmodifiableMap(counts);
+        }
+        Map<String, Long> all = new TreeMap<>(counts);
+        for(FoldedNode node : folded.values()){
+            if(node.data == null){
+                all.merge(node.nodeName, node.count, Long::sum);
+            }
+        }
+        return Collections.unmodifiableMap(all);
+    }
+
+    /**
+     * 所有二进制数据, 包括已经合并但还没有确认删除的节点
+     * @return
+     */
+    public Map<String, byte[]> getBlobs() {
+        if(folded.isEmpty()){
+            return Collections.unmodifiableMap(blobs);
+        }
+        Map<String, byte[]> all = new TreeMap<>(blobs);
+        for(FoldedNode node : folded.values()){
+            if(node.data != null){
+                all.merge(node.nodeName, node.data, HeavyHitterSketch::merge);
+            }
+        }
+        return Collections.unmodifiableMap(all);
+    }
+
+    public int size(){
+        return getCounts().size() + getBlobs().size();
+    }
+
+    void putCount(String nodeName, long count){
+        counts.put(nodeName, count);
+    }
+
+    void putBytes(String nodeName, byte[] data){
+        blobs.put(nodeName, data);
+    }
+
+    /**
+     * 合并读取到的计数器节点, 已经合并过的同一个节点用新的值替换上次合并的值,
+     * 上次合并过但这次没有读取到或者标识不同的节点已经被删除, 把上次合并的值计入汇总
+     * @param nodes 本次读取到的某一天的所有节点, key为节点相对于 atomic.counter.zookeeper.prefix 的路径
+     */
+    void fold(Map<String, FoldedNode> nodes){
+        for(Iterator<FoldedNode> iterator = folded.values().iterator(); iterator.hasNext(); ){
+            FoldedNode node = iterator.next();
+            FoldedNode current = nodes.get(node.path);
+            if(current == null || current.id != node.id){
+                settle(node);
+                iterator.remove();
+            }
+        }
+        folded.putAll(nodes);
+    }
+
+    /**
+     * 节点删除后把合并的值计入汇总, 不再记录这些节点
+     * @param nodes 已经删除的节点, 标识不同的节点是删除后重新创建的, 仍然记录
+     */
+    void settle(Map<String, FoldedNode> nodes){
+        for(FoldedNode node : nodes.values()){
+            FoldedNode current = folded.get(node.path);
+            if(current != null && current.id == node.id){
+                settle(current);
+                folded.remove(node.path);
+            }
+        }
+    }
+
+    private void settle(FoldedNode node){
+        if(node.data == null){
+            counts.put(node.nodeName, getClosedCount(node.nodeName) + node.count);
+        }else{
+            blobs.put(node.nodeName, HeavyHitterSketch.merge(blobs.get(node.nodeName), node.data));
+        }
+    }
+
+    private long getClosedCount(String nodeName){
+        Long count = counts.get(nodeName);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 某个计数器已经合并但还没有确认删除的节点, 即计数器节点本身和分片节点
+     */
+    private List<FoldedNode> foldedOf(String nodeName){
+        if(folded.isEmpty()){
+            return Collections.emptyList();
+        }
+        List<FoldedNode> nodes = new ArrayList<>();
+        FoldedNode own = folded.get(nodeName);
+        if(own != null){
+            nodes.add(own);
+        }
+        String shardPrefix = nodeName + "/" + ShardedCounter.SHARD_PREFIX;
+        nodes.addAll(folded.subMap(shardPrefix, true, shardPrefix + Character.MAX_VALUE, false).values());
+        return nodes;
+    }
+
+    public byte[] serialize() throws IOException {
+        Map<String, Object> entries = new TreeMap<>();
+        entries.putAll(counts);
+        entries.putAll(blobs);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            //没有已经合并但还没有确认删除的节点时仍用版本1编码, 旧版本的客户端可以读取
+            out.writeInt(folded.isEmpty() ? VERSION : FOLDED_VERSION);
+            writeVarLong(out, entries.size());
+            byte[] previous = new byte[0];
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                previous = writeName(out, previous, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+            if (!folded.isEmpty()) {
+                writeVarLong(out, folded.size());
+                previous = new byte[0];
+                for (FoldedNode node : folded.values()) {
+                    previous = writeName(out, previous, node.path);
+                    writeVarLong(out, node.id);
+                    writeValue(out, node.data == null ? (Object) node.count : node.data);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] writeName(DataOutputStream out, byte[] previous, String nodeName) throws IOException {
+        byte[] name = nodeName.getBytes(StandardCharsets.UTF_8);
+        int shared = 0;
+        while (shared < previous.length && shared < name.length && previous[shared] == name[shared]) {
+            shared++;
+        }
+        writeVarLong(out, shared);
+        writeVarLong(out, name.length - shared);
+        out.write(name, shared, name.length - shared);
+        return name;
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value instanceof Long) {
+            out.writeByte(COUNT);
+            long count = (Long) value;
+            writeVarLong(out, (count << 1) ^ (count >> 63));
+        } else {
+            byte[] data = (byte[]) value;
+            out.writeByte(BYTES);
+            writeVarLong(out, data.length);
+            out.write(data);
+        }
+    }
+
+    public static DaySummary deserialize(String day, byte[] data) throws IOException {
+        DaySummary summary = new DaySummary(day);
+        try(DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            int version = in.readInt();
+            if (version != VERSION && version != FOLDED_VERSION) {
+                throw new IOException("不支持的汇总格式版本: " + version);
+            }
+            long size = readVarLong(in);
+            byte[] previous = new byte[0];
+            for (long i = 0; i < size; i++) {
+                previous = readName(in, previous);
+                String nodeName = new String(previous, StandardCharsets.UTF_8);
+                Object value = readValue(in);
+                if (value instanceof Long) {
+                    summary.counts.put(nodeName, (Long) value);
+                } else {
+                    summary.blobs.put(nodeName, (byte[]) value);
+                }
+            }
+            if (version == FOLDED_VERSION) {
+                size = readVarLong(in);
+                previous = new byte[0];
+                for (long i = 0; i < size; i++) {
+                    previous = readName(in, previous);
+                    String path = new String(previous, StandardCharsets.UTF_8);
+                    long id = readVarLong(in);
+                    Object value = readValue(in);
+                    FoldedNode node = value instanceof Long
+                            ? FoldedNode.count(path, id, (Long) value)
+                            : FoldedNode.bytes(path, id, (byte[]) value);
+                    summary.folded.put(path, node);
+                }
+            }
+        }
+        return summary;
+    }
+
+    private static byte[] readName(DataInputStream in, byte[] previous) throws IOException {
+        int shared = (int) readVarLong(in);
+        int suffix = (int) readVarLong(in);
+        byte[] name = new byte[shared + suffix];
+        System.arraycopy(previous, 0, name, 0, shared);
+        in.readFully(name, shared, suffix);
+        return name;
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        if (type == COUNT) {
+            long value = readVarLong(in);
+            return (value >>> 1) ^ -(value & 1);
+        }
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * 已经合并的节点
+     */
+    static class FoldedNode {
+        //节点相对于 atomic.counter.zookeeper.prefix 的路径
+        private final String path;
+        //节点所属的计数器, 分片节点属于父节点
+        private final String nodeName;
+        private final long id;
+        private final long count;
+        private final byte[] data;
+
+        private FoldedNode(String path, long id, long count, byte[] data) {
+            this.path = path;
+            int slash = path.lastIndexOf('/');
+            this.nodeName = slash != -1 && path.startsWith(ShardedCounter.SHARD_PREFIX, slash + 1) ? path.substring(0, slash) : path;
+            this.id = id;
+            this.count = count;
+            this.data = data;
+        }
+
+        static FoldedNode count(String path, long id, long count){
+            return new FoldedNode(path, id, count, null);
+        }
+
+        static FoldedNode bytes(String path, long id, byte[] data){
+            return new FoldedNode(path, id, 0, data);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * 增量合并器
+ *
+ * 异步模式下把同一个计数器的增量先在内存中用 LongAdder 累加,
+ * 后台线程每隔 flushIntervalMs 毫秒把每个计数器合并后的增量一次性写入Zookeeper,
+ * 单个计数器未刷新的增量达到 maxUnflushedDelta 时立即刷新该计数器
+ * 也可以为每个计数器指定刷新间隔: 后台线程每隔 tickMs 毫秒检查一次,
+ * 增量在内存中停留的时间达到该计数器当前的刷新间隔时刷新, 刷新间隔每次检查时重新计算
+ * 不是当天的计数器刷新完所有增量后从内存中清理, 清理之后仍然写入的增量由写入线程单独刷新
+ */
+public class DeltaAggregator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeltaAggregator.class);
+
+    private final Map<String, Pending> deltas = new ConcurrentHashMap<>();
+    private final Set<String> urgent = ConcurrentHashMap.newKeySet();
+
+    private final BiConsumer<String, Long> sink;
+    private final ToLongFunction<String> flushInterval;
+    private volatile long maxUnflushedDelta;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> tick;
+    private long tickMs;
+
+    /**
+     * @param sink 真正写入计数器的方法
+     * @param flushIntervalMs 刷新间隔, 毫秒
+     * @param maxUnflushedDelta 单个计数器允许的最大未刷新增量, 小于等于0表示不限制
+     */
+    public DeltaAggregator(BiConsumer<String, Long> sink, long flushIntervalMs, long maxUnflushedDelta) {
+        this(sink, flushIntervalMs, path -> 0, maxUnflushedDelta);
+    }
+
+    /**
+     * @param sink 真正写入计数器的方法
+     * @param tickMs 检查间隔, 毫秒, 也是最短的刷新间隔
+     * @param flushInterval 根据计数器路径计算当前的刷新间隔, 毫秒
+     * @param maxUnflushedDelta 单个计数器允许的最大未刷新增量, 小于等于0表示不限制
+     */
+    public DeltaAggregator(BiConsumer<String, Long> sink, long tickMs, ToLongFunction<String> flushInterval, long maxUnflushedDelta) {
+        this.sink = sink;
+        this.flushInterval = flushInterval;
+        this.maxUnflushedDelta = maxUnflushedDelta;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-delta-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.tickMs = tickMs;
+        this.tick = scheduler.scheduleWithFixedDelay(this::flushDue, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        LOGGER.info("启动增量合并器, 检查间隔: {} 毫秒, 最大未刷新增量: {}", tickMs, maxUnflushedDelta);
+    }
+
+    /**
+     * 修改检查间隔, 使用固定刷新间隔时也就是刷新间隔
+     * @param tickMs 检查间隔, 毫秒
+     */
+    public void setTickMs(long tickMs){
+        synchronized (scheduler) {
+            if (tickMs <= 0 || tickMs == this.tickMs || scheduler.isShutdown()) {
+                return;
+            }
+            LOGGER.info("修改增量合并器的检查间隔: {} -> {} 毫秒", this.tickMs, tickMs);
+            tick.cancel(false);
+            this.tickMs = tickMs;
+            this.tick = scheduler.scheduleWithFixedDelay(this::flushDue, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 修改单个计数器允许的最大未刷新增量
+     * @param maxUnflushedDelta 小于等于0表示不限制
+     */
+    public void setMaxUnflushedDelta(long maxUnflushedDelta){
+        this.maxUnflushedDelta = maxUnflushedDelta;
+    }
+
+    public void add(String path, long delta){
+        Pending pending = deltas.get(path);
+        if(pending == null){
+            pending = deltas.computeIfAbsent(path, k -> new Pending());
+        }
+        pending.adder.add(delta);
+        if(pending.removed){
+            //后台线程已经清理了这个计数器, 刚写入的增量不会再被定期刷新
+            flush(path, pending);
+            return;
+        }
+        long maxUnflushedDelta = this.maxUnflushedDelta;
+        if(maxUnflushedDelta > 0
+                && Math.abs(pending.adder.sum()) >= maxUnflushedDelta
+                && urgent.add(path)){
+            scheduler.execute(() -> {
+                urgent.remove(path);
+                flush(path);
+            });
+        }
+    }
+
+    /**
+     * 刷新增量停留时间达到刷新间隔的计数器
+     */
+    private void flushDue(){
+        long now = System.currentTimeMillis();
+        String today = DayClock.today();
+        for(Map.Entry<String, Pending> entry : deltas.entrySet()){
+            Pending pending = entry.getValue();
+            if(pending.adder.sum() == 0){
+                pending.since = 0;
+                String day = Metric.dayOf(entry.getKey());
+                if(day != null && !day.equals(today)){
+                    remove(entry.getKey(), pending);
+                }
+                continue;
+            }
+            if(pending.since == 0){
+                pending.since = now;
+            }
+            long interval;
+            try {
+                interval = flushInterval.applyAsLong(entry.getKey());
+            }catch (Throwable e){
+                LOGGER.error("计算刷新间隔出错, path: "+entry.getKey(), e);
+                interval = 0;
+            }
+            if(now - pending.since >= interval){
+                flush(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 停止后台刷新, 然后刷新所有计数器的合并增量
+     */
+    public void shutdown(){
+        synchronized (scheduler) {
+            scheduler.shutdown();
+        }
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    /**
+     * 刷新所有计数器的合并增量
+     */
+    public void flushAll(){
+        for(String path : deltas.keySet()){
+            flush(path);
+        }
+    }
+
+    /**
+     * 刷新单个计数器的合并增量
+     * 只扣减已读取到的部分, 刷新期间并发累加的增量留到下一次刷新
+     * @param path 计数器路径
+     */
+    private synchronized void flush(String path){
+        Pending pending = deltas.get(path);
+        if(pending != null){
+            flush(path, pending);
+        }
+    }
+
+    private synchronized void flush(String path, Pending pending){
+        long sum = pending.adder.sum();
+        if(sum == 0){
+            return;
+        }
+        pending.adder.add(-sum);
+        pending.since = 0;
+        try {
+            sink.accept(path, sum);
+        }catch (Throwable e){
+            LOGGER.error("刷新合并增量出错, path: "+path+", delta: "+sum, e);
+        }
+    }
+
+    /**
+     * 从内存中清理计数器, 先标记再移除, 标记之前写入的增量在这里刷新, 之后写入的由写入线程刷新
+     * @param path 计数器路径
+     * @param pending 清理时的合并增量
+     */
+    private synchronized void remove(String path, Pending pending){
+        pending.removed = true;
+        deltas.remove(path, pending);
+        flush(path, pending);
+    }
+
+    /**
+     * 还未写入Zookeeper的计数器数目
+     * @return
+     */
+    public int getPendingCount(){
+        int count = 0;
+        for(Pending pending : deltas.values()){
+            if(pending.adder.sum() != 0){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class Pending {
+        private final LongAdder adder = new LongAdder();
+        //后台线程第一次发现未刷新增量的时间, 没有未刷新增量时为0
+        private volatile long since;
+        //已经从内存中清理
+        private volatile boolean removed;
+    }
+}
@@ -0,0 +1,381 @@
+package org.apdplat.counter.valve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 异步计数增量的预写日志
+ *
+ * 增量放入异步队列之前先追加到内存映射的日志段文件, 写入Zookeeper成功后在原位置打上已写入标记,
+ * JVM崩溃或被杀死后重启时重放所有没有标记的增量
+ * 每条记录的格式为: 长度(int) CRC32(int) 已写入标记(byte) 增量(long) 计数器路径(UTF-8),
+ * 长度最后写入, 长度为0表示日志段的末尾, CRC32不一致表示记录没有写完整
+ * 后台线程按固定间隔把连续已写入的位置保存为检查点, 重放从检查点开始, 检查点之前的日志段被删除
+ * fsync策略:
+ *     none: 不主动刷盘, JVM崩溃不丢失, 操作系统崩溃可能丢失
+ *     interval: 每隔 syncIntervalMs 毫秒刷盘一次
+ *     always: 每次追加后刷盘, 最安全, 也最慢
+ */
+public class DeltaJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeltaJournal.class);
+
+    private static final int HEADER_SIZE = 4 + 4 + 1;
+    private static final int FLAG_OFFSET = 8;
+    private static final byte FLUSHED = 1;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+
+    public enum FsyncPolicy {NONE, INTERVAL, ALWAYS}
+
+    private final File dir;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final CRC32 crc32 = new CRC32();
+    private final ScheduledExecutorService scheduler;
+    private volatile Segment active;
+    //打开时已有的日志段的编号都小于该值, 只有这些日志段需要重放
+    private final long replayBoundary;
+    private final Object checkpointLock = new Object();
+    private volatile long checkpointSegment;
+    private volatile int checkpointOffset;
+    //重放的增量还没有写入的计数器路径 -> 记录的位置
+    private final Map<String, List<Long>> replayedPositions = new ConcurrentHashMap<>();
+
+    /**
+     * @param dir 日志目录
+     * @param segmentSize 每个日志段文件的大小, 字节
+     * @param fsyncPolicy 刷盘策略
+     * @param syncIntervalMs 刷盘和保存检查点的间隔, 毫秒
+     * @throws IOException
+     */
+    public DeltaJournal(File dir, int segmentSize, FsyncPolicy fsyncPolicy, long syncIntervalMs) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("无法创建日志目录: "+dir.getAbsolutePath());
+        }
+        readCheckpoint();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if(files != null){
+            for(File file : files){
+                long id = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                if(id < checkpointSegment){
+                    delete(file);
+                    continue;
+                }
+                Segment segment = new Segment(id, file, Math.max(segmentSize, (int)file.length()));
+                segment.recover();
+                segments.put(id, segment);
+            }
+        }
+        long nextId = segments.isEmpty() ? Math.max(1, checkpointSegment) : segments.lastKey() + 1;
+        this.replayBoundary = nextId;
+        this.active = newSegment(nextId);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::sync, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        LOGGER.info("打开异步计数日志: {}, 日志段大小: {}, 刷盘策略: {}, 已有日志段: {}",
+                dir.getAbsolutePath(), segmentSize, fsyncPolicy, segments.size() - 1);
+    }
+
+    /**
+     * 追加一条增量
+     * @param path 计数器路径
+     * @param delta 增量
+     * @return 记录的位置, 高32位是日志段编号, 低32位是段内偏移, 用于 markFlushed
+     * @throws IOException
+     */
+    public long append(String path, long delta) throws IOException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + bytes.length;
+        if(HEADER_SIZE + length + 4 > segmentSize){
+            throw new IOException("计数器路径太长, 超过日志段大小: "+path);
+        }
+        synchronized (this) {
+            if (active.writePosition + HEADER_SIZE + length + 4 > active.capacity) {
+                active.sealed = true;
+                active = newSegment(active.id + 1);
+            }
+            Segment segment = active;
+            int offset = segment.writePosition;
+            MappedByteBuffer buffer = segment.buffer;
+            segment.payload(offset, length).putLong(delta).put(bytes);
+            crc32.reset();
+            crc32.update(segment.payload(offset, length));
+            buffer.putInt(offset + 4, (int) crc32.getValue());
+            buffer.putInt(offset, length);
+            segment.writePosition = offset + HEADER_SIZE + length;
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                buffer.force();
+            }
+            return (segment.id << 32) | offset;
+        }
+    }
+
+    /**
+     * 标记记录已经写入Zookeeper
+     * @param position append 的返回值
+     */
+    public void markFlushed(long position){
+        if(position < 0){
+            return;
+        }
+        Segment segment = segments.get(position >>> 32);
+        if(segment != null){
+            segment.buffer.put((int)position + FLAG_OFFSET, FLUSHED);
+        }
+    }
+
+    /**
+     * 读取检查点之后打开日志时已有的所有没有写入Zookeeper的增量, 同一计数器的增量合并
+     * 打开之后追加的增量不会被重放
+     * @return key为计数器路径, value为增量
+     */
+    public Map<String, Long> replay(){
+        Map<String, Long> deltas = new LinkedHashMap<>();
+        for(Segment segment : segments.headMap(replayBoundary).values()){
+            int offset = segment.id == checkpointSegment ? checkpointOffset : 0;
+            while (offset < segment.writePosition) {
+                int length = segment.buffer.getInt(offset);
+                if (segment.buffer.get(offset + FLAG_OFFSET) != FLUSHED) {
+                    ByteBuffer payload = segment.payload(offset, length);
+                    long delta = payload.getLong();
+                    String path = StandardCharsets.UTF_8.decode(payload).toString();
+                    deltas.merge(path, delta, Long::sum);
+                    replayedPositions.computeIfAbsent(path, k -> new ArrayList<>()).add((segment.id << 32) | offset);
+                }
+                offset += HEADER_SIZE + length;
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * 标记部分计数器重放的增量已经写入, 重放部分失败时这些计数器下次启动时不再重放
+     * @param paths replay 返回的计数器路径
+     */
+    public void markReplayed(Collection<String> paths){
+        for(String path : paths){
+            List<Long> positions = replayedPositions.remove(path);
+            if(positions != null){
+                positions.forEach(this::markFlushed);
+            }
+        }
+    }
+
+    /**
+     * 重放的增量全部写入成功后删除打开日志时已有的日志段, 打开之后追加的日志段不受影响
+     */
+    public void discardReplayed(){
+        replayedPositions.clear();
+        synchronized (checkpointLock) {
+            for (Segment segment : new ArrayList<>(segments.headMap(replayBoundary).values())) {
+                segments.remove(segment.id);
+                segment.close();
+                delete(segment.file);
+            }
+            if (checkpointSegment < replayBoundary) {
+                checkpointSegment = replayBoundary;
+                checkpointOffset = 0;
+                writeCheckpoint();
+            }
+        }
+    }
+
+    /**
+     * 还没有写入Zookeeper的日志段数目, 包括当前正在追加的日志段
+     * @return
+     */
+    public int getSegmentCount(){
+        return segments.size();
+    }
+
+    /**
+     * 刷盘并保存检查点后关闭
+     */
+    public void close(){
+        scheduler.shutdown();
+        sync();
+        for(Segment segment : segments.values()){
+            segment.close();
+        }
+    }
+
+    /**
+     * 刷盘, 推进检查点, 删除检查点之前的日志段
+     */
+    private void sync(){
+        try {
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                for (Segment segment : segments.values()) {
+                    int writePosition = segment.writePosition;
+                    if (writePosition > segment.forcedPosition) {
+                        segment.buffer.force();
+                        segment.forcedPosition = writePosition;
+                    }
+                }
+            }
+            advanceCheckpoint();
+        }catch (Throwable e){
+            LOGGER.error("同步异步计数日志出错", e);
+        }
+    }
+
+    private void advanceCheckpoint(){
+        synchronized (checkpointLock) {
+            doAdvanceCheckpoint();
+        }
+    }
+
+    private void doAdvanceCheckpoint(){
+        long segmentId = checkpointSegment;
+        int offset = checkpointOffset;
+        for(Segment segment : segments.tailMap(segmentId).values()){
+            if(segment.id != segmentId){
+                segmentId = segment.id;
+                offset = 0;
+            }
+            int writePosition = segment.writePosition;
+            while (offset < writePosition && segment.buffer.get(offset + FLAG_OFFSET) == FLUSHED) {
+                offset += HEADER_SIZE + segment.buffer.getInt(offset);
+            }
+            if(offset < writePosition || !segment.sealed){
+                break;
+            }
+        }
+        if(segmentId == checkpointSegment && offset == checkpointOffset){
+            return;
+        }
+        checkpointSegment = segmentId;
+        checkpointOffset = offset;
+        writeCheckpoint();
+        for(Segment segment : new ArrayList<>(segments.headMap(segmentId).values())){
+            segments.remove(segment.id);
+            segment.close();
+            delete(segment.file);
+        }
+    }
+
+    private void readCheckpoint(){
+        File file = new File(dir, CHECKPOINT);
+        if(!file.exists()){
+            return;
+        }
+        try {
+            String[] fields = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split("\\s+");
+            checkpointSegment = Long.parseLong(fields[0]);
+            checkpointOffset = Integer.parseInt(fields[1]);
+        }catch (Exception e){
+            LOGGER.error("读取检查点出错, 从头重放日志: "+file.getAbsolutePath(), e);
+            checkpointSegment = 0;
+            checkpointOffset = 0;
+        }
+    }
+
+    private void writeCheckpoint(){
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        try {
+            Files.write(tmp.toPath(), (checkpointSegment + " " + checkpointOffset).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e){
+            LOGGER.error("保存检查点出错: "+tmp.getAbsolutePath(), e);
+        }
+    }
+
+    private Segment newSegment(long id) throws IOException {
+        Segment segment = new Segment(id, new File(dir, String.format("%020d", id) + SEGMENT_SUFFIX), segmentSize);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static void delete(File file){
+        if(file.exists() && !file.delete()){
+            LOGGER.error("删除日志段失败: {}", file.getAbsolutePath());
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final File file;
+        private final int capacity;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private volatile int writePosition;
+        private volatile boolean sealed;
+        private int forcedPosition;
+
+        private Segment(long id, File file, int capacity) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        /**
+         * 已有的日志段: 找到最后一条完整的记录, 之后的内容被忽略
+         */
+        private void recover(){
+            CRC32 crc = new CRC32();
+            int offset = 0;
+            while (offset + HEADER_SIZE + 8 <= capacity) {
+                int length = buffer.getInt(offset);
+                if (length < 8 || offset + HEADER_SIZE + length > capacity) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload(offset, length));
+                if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                    LOGGER.warn("日志段 {} 在偏移 {} 处的记录不完整, 忽略之后的内容", file.getName(), offset);
+                    break;
+                }
+                offset += HEADER_SIZE + length;
+            }
+            writePosition = offset;
+            sealed = true;
+        }
+
+        /**
+         * 记录的内容部分(增量和计数器路径), 与 buffer 共享数据
+         */
+        private ByteBuffer payload(int offset, int length){
+            ByteBuffer payload = buffer.duplicate();
+            payload.limit(offset + HEADER_SIZE + length).position(offset + HEADER_SIZE);
+            return payload;
+        }
+
+        private void close(){
+            try {
+                raf.close();
+            }catch (IOException e){
+                LOGGER.error("关闭日志段出错: "+file.getAbsolutePath(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.apdplat.counter.valve;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 多生产者单消费者的无锁环形缓冲区
+ *
+ * 每个槽位保存一个增量的基本类型字段: 计数器路径编号、增量、创建时间和在预写日志中的位置,
+ * 不为每个增量创建对象, 容量向上取整为2的幂, 最大为2^25, 创建时一次分配
+ * 生产者用CAS领取槽位, 写入字段后更新槽位的序号发布; 消费者按序号顺序读取, 读取后释放槽位给下一轮使用
+ * 槽位字段可以保存在堆外的直接内存中, 槽位序号始终在堆内, 每个槽位8字节
+ */
+public class DeltaRingBuffer {
+    private static final int SLOT_BYTES = 32;
+    private static final int MAX_CAPACITY = 1 << 25;
+
+    private final int capacity;
+    private final int mask;
+    private final Slots slots;
+    //槽位序号: 等于 position 时可以写入, 等于 position+1 时可以读取
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private volatile Thread consumer;
+    private volatile boolean sleeping;
+
+    /**
+     * @param capacity 容量, 向上取整为2的幂
+     * @param offHeap 是否把槽位字段保存在堆外
+     */
+    public DeltaRingBuffer(int capacity, boolean offHeap) {
+        int size = 1;
+        while (size < capacity && size < MAX_CAPACITY){
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = offHeap ? new OffHeapSlots(size) : new HeapSlots(size);
+        this.sequences = new AtomicLongArray(size);
+        for(int i=0; i<size; i++){
+            sequences.lazySet(i, i);
+        }
+    }
+
+    /**
+     * 放入一个增量, 可以由多个线程同时调用
+     * @param id 计数器路径编号
+     * @param delta 增量
+     * @param createdAt 创建时间, System.nanoTime()
+     * @param journalPosition 在预写日志中的位置, 没有写日志时为-1
+     * @return 缓冲区已满时为false
+     */
+    public boolean offer(int id, long delta, long createdAt, long journalPosition){
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.put(index, id, delta, createdAt, journalPosition);
+                    //使用volatile写发布, 和后面对 sleeping 的读取不会重排序, 消费者不会错过唤醒
+                    sequences.set(index, position + 1);
+                    if (sleeping) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * 取出最多 max 个增量, 只能由消费者线程调用
+     * @return 取出的数目
+     */
+    public int drainTo(int[] ids, long[] deltas, long[] createdAts, long[] journalPositions, int max){
+        long position = head.get();
+        int count = 0;
+        while (count < max) {
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            ids[count] = slots.id(index);
+            deltas[count] = slots.delta(index);
+            createdAts[count] = slots.createdAt(index);
+            journalPositions[count] = slots.journalPosition(index);
+            sequences.lazySet(index, position + capacity);
+            position++;
+            count++;
+        }
+        if(count > 0) {
+            head.lazySet(position);
+        }
+        return count;
+    }
+
+    /**
+     * 缓冲区为空时等待生产者放入增量, 只能由消费者线程调用
+     * @param timeout 最长等待时间
+     * @param unit
+     */
+    public void awaitNotEmpty(long timeout, TimeUnit unit){
+        consumer = Thread.currentThread();
+        sleeping = true;
+        try {
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, unit.toNanos(timeout));
+            }
+        }finally {
+            sleeping = false;
+        }
+    }
+
+    /**
+     * 唤醒正在等待的消费者线程
+     */
+    public void wakeUp(){
+        Thread current = consumer;
+        if(current != null){
+            LockSupport.unpark(current);
+        }
+    }
+
+    public boolean isEmpty(){
+        long position = head.get();
+        return sequences.get((int) (position & mask)) != position + 1;
+    }
+
+    /**
+     * 已放入还没有取出的增量数目, 近似值
+     * @return
+     */
+    public int size(){
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public int capacity(){
+        return capacity;
+    }
+
+    private interface Slots {
+        void put(int index, int id, long delta, long createdAt, long journalPosition);
+        int id(int index);
+        long delta(int index);
+        long createdAt(int index);
+        long journalPosition(int index);
+    }
+
+    private static class HeapSlots implements Slots {
+        private final int[] ids;
+        private final long[] deltas;
+        private final long[] createdAts;
+        private final long[] journalPositions;
+
+        private HeapSlots(int capacity) {
+            ids = new int[capacity];
+            deltas = new long[capacity];
+            createdAts = new long[capacity];
+            journalPositions = new long[capacity];
+        }
+
+        @Override
+        public void put(int index, int id, long delta, long createdAt, long journalPosition) {
+            ids[index] = id;
+            deltas[index] = delta;
+            createdAts[index] = createdAt;
+            journalPositions[index] = journalPosition;
+        }
+
+        @Override
+        public int id(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public long delta(int index) {
+            return deltas[index];
+        }
+
+        @Override
+        public long createdAt(int index) {
+            return createdAts[index];
+        }
+
+        @Override
+        public long journalPosition(int index) {
+            return journalPositions[index];
+        }
+    }
+
+    /**
+     * 每个槽位32字节: 编号(4字节, 后面4字节对齐)、增量、创建时间、预写日志位置
+     */
+    private static class OffHeapSlots implements Slots {
+        private final ByteBuffer buffer;
+
+        private OffHeapSlots(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity * SLOT_BYTES).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        public void put(int index, int id, long delta, long createdAt, long journalPosition) {
+            int offset = index * SLOT_BYTES;
+            buffer.putInt(offset, id);
+            buffer.putLong(offset + 8, delta);
+            buffer.putLong(offset + 16, createdAt);
+            buffer.putLong(offset + 24, journalPosition);
+        }
+
+        @Override
+        public int id(int index) {
+            return buffer.getInt(index * SLOT_BYTES);
+        }
+
+        @Override
+        public long delta(int index) {
+            return buffer.getLong(index * SLOT_BYTES + 8);
+        }
+
+        @Override
+        public long createdAt(int index) {
+            return buffer.getLong(index * SLOT_BYTES + 16);
+        }
+
+        @Override
+        public long journalPosition(int index) {
+            return buffer.getLong(index * SLOT_BYTES + 24);
+        }
+    }
+}
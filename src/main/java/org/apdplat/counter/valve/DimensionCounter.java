@@ -0,0 +1,146 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按产品和电视细分的近似计数
+ *
+ * 不再为每个产品ID和电视ID创建计数器节点, 每个节点在本地用 Count-Min Sketch 无锁计数,
+ * 后台线程定期把两次刷新之间新增的 sketch 和可能进入前K的ID合并到存储中的 HeavyHitterSketch,
+ * 每天每个apiType每个维度只有一个节点
+ * 本地只记录有限个候选ID, 候选ID数目达到上限后, 只有估计计数不小于本地总数的1/K的ID才能成为候选,
+ * 一段时间内计数进入前K的ID一定满足这个条件
+ */
+public class DimensionCounter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DimensionCounter.class);
+
+    private final CounterStore store;
+    private final int width;
+    private final int depth;
+    private final int topK;
+    private final int maxCandidates;
+    private final Map<String, Local> locals = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param store 保存 HeavyHitterSketch 的存储
+     * @param width sketch的列数, 误差约为 e / width * 总数
+     * @param depth sketch的行数, 误差超出范围的概率约为 e^-depth
+     * @param topK 保留计数最多的ID的数目
+     * @param maxCandidates 每次刷新之间本地最多记录的候选ID数目
+     * @param flushIntervalMs 刷新间隔, 毫秒
+     */
+    public DimensionCounter(CounterStore store, int width, int depth, int topK, int maxCandidates, long flushIntervalMs) {
+        this.store = store;
+        this.width = width;
+        this.depth = depth;
+        this.topK = Math.max(1, topK);
+        this.maxCandidates = Math.max(this.topK, maxCandidates);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-dimension-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::flushAll, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        LOGGER.info("启动细分近似计数, sketch大小: {}x{}, 前K: {}, 刷新间隔: {} 毫秒", width, depth, topK, flushIntervalMs);
+    }
+
+    /**
+     * 计数
+     * @param path HeavyHitterSketch 的存储路径
+     * @param day 日期, 格式为yyyyMMdd
+     * @param id 产品ID或电视ID
+     * @param delta 增量
+     */
+    public void add(String path, String day, int id, long delta){
+        Local local = locals.get(path);
+        if(local == null){
+            local = locals.computeIfAbsent(path, k -> new Local(day));
+        }
+        local.add(id, delta);
+    }
+
+    /**
+     * 从存储中读取, 不包括本地还没有刷新的计数
+     * @param path HeavyHitterSketch 的存储路径
+     * @return
+     * @throws Exception
+     */
+    public HeavyHitterSketch read(String path) throws Exception {
+        return HeavyHitterSketch.deserialize(store.getBytes(path), width, depth, topK);
+    }
+
+    /**
+     * 把所有本地新增的计数合并到存储
+     */
+    public synchronized void flushAll(){
+        String today = DayClock.today();
+        for(Map.Entry<String, Local> entry : locals.entrySet()){
+            String path = entry.getKey();
+            Local local = entry.getValue();
+            try {
+                boolean flushed = flush(path, local);
+                if(!flushed && !today.equals(local.day) && local.idle){
+                    locals.remove(path, local);
+                }
+                local.idle = !flushed;
+            }catch (Throwable e){
+                LOGGER.error("刷新细分近似计数出错: "+path, e);
+            }
+        }
+    }
+
+    private boolean flush(String path, Local local) throws Exception {
+        CountMinSketch current = local.counts.copy();
+        CountMinSketch delta = current.minus(local.flushed);
+        List<Integer> candidates = new ArrayList<>(local.candidates);
+        if(delta.total() == 0 && candidates.isEmpty()){
+            return false;
+        }
+        store.updateBytes(path, data -> {
+            HeavyHitterSketch sketch = HeavyHitterSketch.deserialize(data, width, depth, topK);
+            sketch.merge(delta, candidates);
+            return sketch.serialize();
+        });
+        local.candidates.removeAll(candidates);
+        local.flushed = current;
+        if(LOGGER.isDebugEnabled()){
+            LOGGER.debug("刷新细分近似计数: {}, 增量: {}, 候选ID数目: {}", path, delta.total(), candidates.size());
+        }
+        return true;
+    }
+
+    private class Local {
+        private final String day;
+        private final CountMinSketch counts = new CountMinSketch(width, depth);
+        private final Set<Integer> candidates = ConcurrentHashMap.newKeySet();
+        private final LongAdder total = new LongAdder();
+        //以下字段只由刷新线程访问
+        private CountMinSketch flushed = new CountMinSketch(width, depth);
+        private boolean idle;
+
+        private Local(String day) {
+            this.day = day;
+        }
+
+        private void add(int id, long delta){
+            counts.add(id, delta);
+            total.add(delta);
+            if(candidates.size() < maxCandidates || counts.estimate(id) * topK >= total.sum()){
+                candidates.add(id);
+            }
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.metrics.CounterMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * 异步计数的多线程写入管道
+ *
+ * 按计数器路径的哈希值把增量分配到固定的工作线程, 同一个计数器的增量始终由同一个线程按顺序写入,
+ * 不同计数器的增量由不同线程并行写入Zookeeper
+ * 计数器路径先在 PathDictionary 中映射为int编号, 每个工作线程的队列是一个无锁的环形缓冲区 DeltaRingBuffer,
+ * 只保存编号和增量等基本类型字段, 计数时不创建对象, 多个生产者之间不竞争锁
+ * 队列满时的处理方式由 FullPolicy 指定
+ * 工作线程每次最多从队列中取出 drainSize 个增量, 合并同一计数器的增量后一起交给 sink 写入
+ * 工作线程意外退出时会自动重启
+ * 运行时可以用 resize 修改工作线程数目和队列容量: 新的工作线程和队列启动后替换旧的,
+ * 旧的工作线程等待正在放入的增量完成后写完队列中剩余的增量再退出, 切换期间同一计数器的增量可能由新旧两个线程写入
+ * 指定预写日志时, 增量先追加到日志再放入队列, 写入成功后在日志中标记, 写入失败的增量留在日志中等待重启后重放
+ */
+public class DrainPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DrainPipeline.class);
+
+    /**
+     * 队列满时的处理方式
+     */
+    public enum FullPolicy {
+        //等待工作线程取出增量后再放入
+        BLOCK,
+        //合并到该工作线程的溢出表中, 和队列中的增量一起写入, 不阻塞也不丢失
+        COALESCE,
+        //丢弃增量, 计入 CounterMetrics 的丢弃数目
+        DROP
+    }
+
+    private final Consumer<Map<String, Long>> sink;
+    private final DeltaJournal journal;
+    private final boolean offHeap;
+    private final FullPolicy fullPolicy;
+    private final PathDictionary dictionary;
+    private volatile int drainSize;
+    private volatile Generation generation;
+    //被替换后还在写入剩余增量的工作线程和队列
+    private final List<Generation> retiring = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param sink 真正写入计数器的方法, 参数的key为计数器路径, value为合并后的增量
+     * @param workerCount 工作线程数目
+     * @param queueCapacity 每个工作线程的队列容量
+     * @param drainSize 工作线程每次最多取出的增量数目
+     */
+    public DrainPipeline(Consumer<Map<String, Long>> sink, int workerCount, int queueCapacity, int drainSize) {
+        this(sink, workerCount, queueCapacity, drainSize, null);
+    }
+
+    /**
+     * @param sink 真正写入计数器的方法, 写入失败时应该抛出异常
+     * @param workerCount 工作线程数目
+     * @param queueCapacity 每个工作线程的队列容量
+     * @param drainSize 工作线程每次最多取出的增量数目
+     * @param journal 预写日志, 为null时不写日志
+     */
+    public DrainPipeline(Consumer<Map<String, Long>> sink, int workerCount, int queueCapacity, int drainSize, DeltaJournal journal) {
+        this(sink, workerCount, queueCapacity, drainSize, journal, false, FullPolicy.BLOCK, new PathDictionary(1000000));
+    }
+
+    /**
+     * @param sink 真正写入计数器的方法, 写入失败时应该抛出异常
+     * @param workerCount 工作线程数目
+     * @param queueCapacity 每个工作线程的队列容量, 向上取整为2的幂
+     * @param drainSize 工作线程每次最多取出的增量数目
+     * @param journal 预写日志, 为null时不写日志
+     * @param offHeap 队列的槽位是否保存在堆外
+     * @param fullPolicy 队列满时的处理方式, 使用预写日志时只能为 BLOCK
+     * @param dictionary 计数器路径字典
+     */
+    public DrainPipeline(Consumer<Map<String, Long>> sink, int workerCount, int queueCapacity, int drainSize, DeltaJournal journal,
+                         boolean offHeap, FullPolicy fullPolicy, PathDictionary dictionary) {
+        if(journal != null && fullPolicy != FullPolicy.BLOCK){
+            LOGGER.warn("使用预写日志时队列满只能等待, 忽略队列满时的处理方式: {}", fullPolicy);
+            fullPolicy = FullPolicy.BLOCK;
+        }
+        this.sink = sink;
+        this.journal = journal;
+        this.drainSize = Math.max(1, drainSize);
+        this.offHeap = offHeap;
+        this.fullPolicy = fullPolicy;
+        this.dictionary = dictionary;
+        this.generation = new Generation(0, workerCount, queueCapacity);
+        LOGGER.info("启动异步计数管道, 工作线程数目: {}, 每个线程的队列容量: {}, 堆外: {}, 队列满时: {}",
+                workerCount, generation.queues[0].capacity(), offHeap, fullPolicy);
+    }
+
+    /**
+     * 计数器路径在字典中的编号, 当天和昨天的路径不会被字典删除, 编号可以在当天内一直使用
+     * @param path 计数器路径
+     * @return
+     */
+    public int intern(String path){
+        return dictionary.intern(path);
+    }
+
+    /**
+     * 把增量放入对应工作线程的队列, 队列满时按 FullPolicy 处理
+     * @param path 计数器路径
+     * @param delta 增量
+     * @throws InterruptedException
+     * @throws IOException 写预写日志失败
+     */
+    public void put(String path, long delta) throws InterruptedException, IOException {
+        put(dictionary.intern(path), path, delta);
+    }
+
+    /**
+     * 把增量放入对应工作线程的队列, 调用方已经持有路径的编号, 不需要再按路径查找字典
+     * @param id intern 返回的编号
+     * @param path 计数器路径
+     * @param delta 增量
+     * @throws InterruptedException
+     * @throws IOException 写预写日志失败
+     */
+    public void put(int id, String path, long delta) throws InterruptedException, IOException {
+        long createdAt = System.nanoTime();
+        Generation current = enter();
+        try {
+            int partition = current.partition(path);
+            DeltaRingBuffer queue = current.queues[partition];
+            long journalPosition = journal == null ? -1 : journal.append(path, delta);
+            if (!queue.offer(id, delta, createdAt, journalPosition)) {
+                switch (fullPolicy) {
+                    case DROP:
+                        CounterMetrics.get().droppedDelta(1);
+                        return;
+                    case COALESCE:
+                        LongAdder adder = current.overflows.get(partition).get(id);
+                        if (adder == null) {
+                            adder = current.overflows.get(partition).computeIfAbsent(id, k -> new LongAdder());
+                        }
+                        adder.add(delta);
+                        break;
+                    default:
+                        awaitOffer(queue, id, delta, createdAt, journalPosition);
+                }
+            }
+        }finally {
+            current.putting.decrement();
+        }
+        CounterMetrics.get().enqueue().recordSince(createdAt);
+    }
+
+    /**
+     * 登记正在放入增量, 被替换的工作线程和队列等待登记的放入完成后才停止
+     */
+    private Generation enter(){
+        while (true){
+            Generation current = generation;
+            current.putting.increment();
+            if(!current.retired){
+                return current;
+            }
+            current.putting.decrement();
+            Thread.yield();
+        }
+    }
+
+    private void awaitOffer(DeltaRingBuffer queue, int id, long delta, long createdAt, long journalPosition) throws InterruptedException {
+        while (!queue.offer(id, delta, createdAt, journalPosition)){
+            if(Thread.interrupted()){
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(100_000);
+        }
+    }
+
+    /**
+     * 修改工作线程数目和每个工作线程的队列容量, 和当前相同时不做任何事
+     * 新的工作线程和队列立即接收增量, 旧的工作线程写完剩余的增量后退出
+     * @param workerCount 工作线程数目
+     * @param queueCapacity 每个工作线程的队列容量, 向上取整为2的幂
+     */
+    public synchronized void resize(int workerCount, int queueCapacity){
+        Generation old = generation;
+        if(!running || (old.queues.length == workerCount && old.queueCapacity == queueCapacity)){
+            return;
+        }
+        Generation next = new Generation(old.id + 1, workerCount, queueCapacity);
+        generation = next;
+        old.retired = true;
+        retiring.add(old);
+        while (old.putting.sum() != 0){
+            Thread.yield();
+        }
+        old.stop();
+        LOGGER.info("修改异步计数管道, 工作线程数目: {} -> {}, 每个线程的队列容量: {} -> {}",
+                old.queues.length, workerCount, old.queues[0].capacity(), next.queues[0].capacity());
+    }
+
+    /**
+     * 修改工作线程每次最多取出的增量数目, 工作线程在下一次取出时生效
+     * @param drainSize
+     */
+    public void setDrainSize(int drainSize){
+        int size = Math.max(1, drainSize);
+        if(this.drainSize != size){
+            LOGGER.info("修改异步计数管道每次最多取出的增量数目: {} -> {}", this.drainSize, size);
+            this.drainSize = size;
+        }
+    }
+
+    /**
+     * 每个工作线程队列中等待写入的增量数目, 不包括被替换后还在写入的队列
+     * @return
+     */
+    public int[] getQueueDepths(){
+        DeltaRingBuffer[] queues = generation.queues;
+        int[] depths = new int[queues.length];
+        for(int i=0; i<queues.length; i++){
+            depths[i] = queues[i].size();
+        }
+        return depths;
+    }
+
+    /**
+     * 所有工作线程队列中等待写入的增量总数, 包括溢出表中还没有写入的计数器和被替换后还在写入的队列
+     * @return
+     */
+    public long getPendingCount(){
+        long pending = generation.getPendingCount();
+        for(Generation old : retiring){
+            pending += old.getPendingCount();
+        }
+        return pending;
+    }
+
+    /**
+     * 所有工作线程队列的总容量
+     * @return
+     */
+    public long getCapacity(){
+        long capacity = 0;
+        for(DeltaRingBuffer queue : generation.queues){
+            capacity += queue.capacity();
+        }
+        return capacity;
+    }
+
+    public int getWorkerCount(){
+        return generation.queues.length;
+    }
+
+    /**
+     * 停止接收新的任务, 工作线程把队列中剩余的增量写完后退出
+     */
+    public synchronized void shutdown(){
+        running = false;
+        generation.stop();
+    }
+
+    /**
+     * 停止接收新的任务并等待工作线程把队列中剩余的增量写完
+     * @param timeoutMs 最长等待时间, 毫秒
+     * @return 是否在超时之前写完
+     */
+    public boolean shutdownAndAwait(long timeoutMs){
+        shutdown();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        List<Generation> generations = new ArrayList<>(retiring);
+        generations.add(generation);
+        join:
+        for(Generation current : generations) {
+            for (Thread worker : current.workers) {
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    break join;
+                }
+                try {
+                    worker.join(remain);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break join;
+                }
+            }
+        }
+        long pending = getPendingCount();
+        if(pending > 0){
+            CounterMetrics.get().droppedDelta(pending);
+            LOGGER.error("异步计数管道关闭超时, 还有 {} 个增量没有写入", pending);
+        }
+        return pending == 0;
+    }
+
+    private void drain(Generation current, int index){
+        CounterMetrics metrics = CounterMetrics.get();
+        DeltaRingBuffer queue = current.queues[index];
+        Map<Integer, LongAdder> overflow = current.overflows.get(index);
+        int size = drainSize;
+        int[] ids = new int[size];
+        long[] deltas = new long[size];
+        long[] createdAts = new long[size];
+        long[] journalPositions = new long[size];
+        try {
+            while (current.running || !queue.isEmpty() || hasOverflow(overflow)) {
+                try {
+                    if (size != drainSize) {
+                        size = drainSize;
+                        ids = new int[size];
+                        deltas = new long[size];
+                        createdAts = new long[size];
+                        journalPositions = new long[size];
+                    }
+                    int count = queue.drainTo(ids, deltas, createdAts, journalPositions, size);
+                    if (count == 0 && !hasOverflow(overflow)) {
+                        if (current.running) {
+                            queue.awaitNotEmpty(1, TimeUnit.SECONDS);
+                        }
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    Map<String, Long> merged = new LinkedHashMap<>();
+                    for (int i = 0; i < count; i++) {
+                        metrics.queueWait().record(start - createdAts[i]);
+                        merge(merged, ids[i], deltas[i]);
+                    }
+                    drainOverflow(overflow, merged);
+                    if (merged.isEmpty()) {
+                        continue;
+                    }
+                    sink.accept(merged);
+                    if (journal != null) {
+                        for (int i = 0; i < count; i++) {
+                            journal.markFlushed(journalPositions[i]);
+                        }
+                    }
+                    metrics.flush().recordSince(start);
+                } catch (Throwable e) {
+                    LOGGER.error("执行计数器出错", e);
+                }
+            }
+        } finally {
+            if (current.running) {
+                LOGGER.error("异步计数工作线程 {} 意外退出, 重新启动", current.workerName(index));
+                current.startWorker(index);
+            } else {
+                LOGGER.info("异步计数工作线程 {} 退出", current.workerName(index));
+                if (current.alive.decrementAndGet() == 0) {
+                    retiring.remove(current);
+                }
+            }
+        }
+    }
+
+    private void merge(Map<String, Long> merged, int id, long delta){
+        String path = dictionary.path(id);
+        if(path == null){
+            CounterMetrics.get().droppedDelta(1);
+            LOGGER.error("计数器路径编号 {} 已从字典中删除, 丢弃增量: {}", id, delta);
+            return;
+        }
+        merged.merge(path, delta, Long::sum);
+    }
+
+    private static boolean hasOverflow(Map<Integer, LongAdder> overflow){
+        for(LongAdder adder : overflow.values()){
+            if(adder.sum() != 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取出溢出表中合并的增量, 只扣减已读取到的部分, 并发累加的增量留到下一次
+     */
+    private void drainOverflow(Map<Integer, LongAdder> overflow, Map<String, Long> merged){
+        if(overflow.isEmpty()){
+            return;
+        }
+        for(Map.Entry<Integer, LongAdder> entry : overflow.entrySet()){
+            long sum = entry.getValue().sum();
+            if(sum != 0){
+                entry.getValue().add(-sum);
+                merge(merged, entry.getKey(), sum);
+            }
+        }
+    }
+
+    /**
+     * 一组工作线程和它们的队列, 修改工作线程数目或队列容量时整体替换
+     */
+    private class Generation {
+        private final int id;
+        private final int queueCapacity;
+        private final DeltaRingBuffer[] queues;
+        private final List<Map<Integer, LongAdder>> overflows;
+        private final Thread[] workers;
+        //正在向这些队列放入增量的线程数目
+        private final LongAdder putting = new LongAdder();
+        //还没有退出的工作线程数目
+        private final AtomicInteger alive;
+        private volatile boolean retired;
+        private volatile boolean running = true;
+
+        private Generation(int id, int workerCount, int queueCapacity) {
+            if(workerCount < 1){
+                throw new IllegalArgumentException("工作线程数目必须大于0: "+workerCount);
+            }
+            this.id = id;
+            this.queueCapacity = queueCapacity;
+            this.queues = new DeltaRingBuffer[workerCount];
+            this.overflows = new ArrayList<>(workerCount);
+            this.workers = new Thread[workerCount];
+            this.alive = new AtomicInteger(workerCount);
+            for(int i=0; i<workerCount; i++){
+                queues[i] = new DeltaRingBuffer(queueCapacity, offHeap);
+                overflows.add(new ConcurrentHashMap<>());
+            }
+            for(int i=0; i<workerCount; i++){
+                startWorker(i);
+            }
+        }
+
+        private int partition(String path){
+            return (path.hashCode() & Integer.MAX_VALUE) % queues.length;
+        }
+
+        private String workerName(int index){
+            return id == 0 ? String.valueOf(index) : id + "-" + index;
+        }
+
+        private void startWorker(int index){
+            Thread thread = new Thread(() -> drain(this, index), "counter-drain-worker-" + workerName(index));
+            thread.setDaemon(true);
+            workers[index] = thread;
+            thread.start();
+        }
+
+        private void stop(){
+            running = false;
+            for(DeltaRingBuffer queue : queues){
+                queue.wakeUp();
+            }
+        }
+
+        private long getPendingCount(){
+            long pending = 0;
+            for(DeltaRingBuffer queue : queues){
+                pending += queue.size();
+            }
+            for(Map<Integer, LongAdder> overflow : overflows){
+                for(LongAdder adder : overflow.values()){
+                    if(adder.sum() != 0){
+                        pending++;
+                    }
+                }
+            }
+            return pending;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.apdplat.counter.valve;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 某一天某个apiType在一个维度(产品或电视)上的细分计数
+ *
+ * 由一个 Count-Min Sketch 和计数最多的前K个ID组成, 序列化后保存在一个节点中,
+ * 每个节点定期把本地新增的 sketch 合并进来, 再用合并后的 sketch 重新选出前K个ID
+ * 序列化格式: 版本(int) K(int) 前K个ID的数目(int) [ID(int) 计数(long)]... sketch
+ */
+public class HeavyHitterSketch {
+    private static final int VERSION = 1;
+
+    private final int topK;
+    private final CountMinSketch sketch;
+    private Map<Integer, Long> top;
+
+    public HeavyHitterSketch(int width, int depth, int topK) {
+        this(new CountMinSketch(width, depth), topK, Collections.emptyMap());
+    }
+
+    private HeavyHitterSketch(CountMinSketch sketch, int topK, Map<Integer, Long> top) {
+        this.sketch = sketch;
+        this.topK = topK;
+        this.top = top;
+    }
+
+    /**
+     * 合并其他节点新增的计数
+     * @param delta 新增计数的 sketch
+     * @param candidates 可能进入前K的ID
+     */
+    public void merge(CountMinSketch delta, Collection<Integer> candidates){
+        sketch.merge(delta);
+        Set<Integer> ids = new HashSet<>(top.keySet());
+        ids.addAll(candidates);
+        Map<Integer, Long> estimates = new HashMap<>();
+        for(Integer id : ids){
+            estimates.put(id, sketch.estimate(id));
+        }
+        top = sortAndLimit(estimates, topK);
+    }
+
+    /**
+     * ID的估计计数, 不小于真实值
+     * @param id
+     * @return
+     */
+    public long estimate(int id){
+        return sketch.estimate(id);
+    }
+
+    /**
+     * 计数最多的前K个ID, 按计数从大到小排序
+     * @return
+     */
+    public Map<Integer, Long> getTop(){
+        return Collections.unmodifiableMap(top);
+    }
+
+    /**
+     * 所有ID的计数之和
+     * @return
+     */
+    public long getTotal(){
+        return sketch.total();
+    }
+
+    public CountMinSketch getSketch() {
+        return sketch;
+    }
+
+    public byte[] serialize(){
+        ByteBuffer buffer = ByteBuffer.allocate(12 + top.size() * 12 + sketch.serializedSize());
+        buffer.putInt(VERSION).putInt(topK).putInt(top.size());
+        for(Map.Entry<Integer, Long> entry : top.entrySet()){
+            buffer.putInt(entry.getKey()).putLong(entry.getValue());
+        }
+        sketch.writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * 反序列化, 数据为空时返回新的空 sketch
+     * @param data
+     * @param width 数据为空时使用的列数
+     * @param depth 数据为空时使用的行数
+     * @param topK 数据为空时使用的K
+     * @return
+     */
+    public static HeavyHitterSketch deserialize(byte[] data, int width, int depth, int topK){
+        if(data == null || data.length < 12){
+            return new HeavyHitterSketch(width, depth, topK);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int version = buffer.getInt();
+        if(version != VERSION){
+            throw new IllegalArgumentException("不支持的细分计数格式版本: "+version);
+        }
+        int k = buffer.getInt();
+        int size = buffer.getInt();
+        Map<Integer, Long> top = new LinkedHashMap<>();
+        for(int i=0; i<size; i++){
+            top.put(buffer.getInt(), buffer.getLong());
+        }
+        return new HeavyHitterSketch(CountMinSketch.readFrom(buffer), k, top);
+    }
+
+    /**
+     * 合并两个序列化后的 HeavyHitterSketch
+     * @param data 可以为null
+     * @param other
+     * @return
+     */
+    public static byte[] merge(byte[] data, byte[] other){
+        if(data == null){
+            return other;
+        }
+        HeavyHitterSketch merged = deserialize(data, 1, 1, 1);
+        HeavyHitterSketch sketch = deserialize(other, 1, 1, 1);
+        merged.merge(sketch.getSketch(), sketch.getTop().keySet());
+        return merged.serialize();
+    }
+
+    private static Map<Integer, Long> sortAndLimit(Map<Integer, Long> estimates, int limit){
+        Map<Integer, Long> result = new LinkedHashMap<>();
+        estimates.entrySet()
+                .stream()
+                .sorted((a, b) -> b.getValue().compareTo(a.getValue()))
+                .limit(limit)
+                .forEach(entry -> result.put(entry.getKey(), entry.getValue()));
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package org.apdplat.counter.valve;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+
+/**
+ * 从 flat 布局切换到 tree 布局期间使用的计数器存储
+ *
+ * 写入只写 tree 布局的路径, 读取时返回 tree 布局和 flat 布局两个节点的计数之和,
+ * 还没有迁移的 flat 布局的计数器仍然可以读取, 迁移完成后在 conf.txt 中配置 counter.layout.read.flat=false
+ * 迁移工具把一个节点的计数加到 tree 布局的节点之后、删除 flat 布局的节点之前, 读取到的计数会重复
+ */
+public class LayoutCompatibleCounterStore implements CounterStore {
+    private final CounterStore delegate;
+
+    public LayoutCompatibleCounterStore(CounterStore delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void add(String path, long delta) throws Exception {
+        delegate.add(path, delta);
+    }
+
+    @Override
+    public CompletableFuture<Void> addAsync(String path, long delta) {
+        return delegate.addAsync(path, delta);
+    }
+
+    @Override
+    public void addAll(Map<String, Long> deltas) throws Exception {
+        delegate.addAll(deltas);
+    }
+
+    @Override
+    public long get(String path) throws Exception {
+        String flatPath = Metric.toFlatPath(path);
+        long value = delegate.get(path);
+        return flatPath == null ? value : value + delegate.get(flatPath);
+    }
+
+    @Override
+    public CompletableFuture<Long> getAsync(String path) {
+        String flatPath = Metric.toFlatPath(path);
+        if(flatPath == null){
+            return delegate.getAsync(path);
+        }
+        return delegate.getAsync(path).thenCombine(delegate.getAsync(flatPath), Long::sum);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String parent) {
+        return delegate.listAsync(parent);
+    }
+
+    @Override
+    public boolean watch(String path, Runnable onChange) {
+        return delegate.watch(path, onChange);
+    }
+
+    @Override
+    public byte[] getBytes(String path) throws Exception {
+        String flatPath = Metric.toFlatPath(path);
+        byte[] data = delegate.getBytes(path);
+        if(flatPath == null || !Metric.isSketchNode(path)){
+            return data;
+        }
+        byte[] flatData = delegate.getBytes(flatPath);
+        return flatData == null ? data : HeavyHitterSketch.merge(data, flatData);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytesAsync(String path) {
+        String flatPath = Metric.toFlatPath(path);
+        CompletableFuture<byte[]> data = delegate.getBytesAsync(path);
+        if(flatPath == null || !Metric.isSketchNode(path)){
+            return data;
+        }
+        return data.thenCombine(delegate.getBytesAsync(flatPath),
+                (treeData, flatData) -> flatData == null ? treeData : HeavyHitterSketch.merge(treeData, flatData));
+    }
+
+    @Override
+    public void updateBytes(String path, UnaryOperator<byte[]> update) throws Exception {
+        delegate.updateBytes(path, update);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, NodeCount>> getNodeCountsAsync(String path) {
+        return delegate.getNodeCountsAsync(path);
+    }
+
+    @Override
+    public void delete(String path) throws Exception {
+        delegate.delete(path);
+    }
+
+    @Override
+    public boolean delete(String path, int version) throws Exception {
+        return delegate.delete(path, version);
+    }
+}
@@ -0,0 +1,79 @@
+package org.apdplat.counter.valve;
+
+import java.util.Map;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * API每天调用次数限额的存储
+ *
+ * 内置的实现有 zookeeper 和 memory 两种, 通过 conf.txt 中的 limit.store 选择,
+ * 也可以指定实现了该接口并且有无参构造函数的类的全名
+ */
+public interface LimitStore {
+    /**
+     * 初始化apiType的限制值, 存储中已有限制值时保留已有的值
+     * @param apiType
+     * @param defaultLimit 初始限制值
+     */
+    void init(String apiType, long defaultLimit);
+
+    /**
+     * 所有apiType的限制值
+     * @return key为apiType, value为限制值
+     */
+    Map<String, Long> getLimits();
+
+    /**
+     * 获取限制值
+     * @param apiType
+     * @return 没有限制时为null
+     */
+    Long getLimit(String apiType);
+
+    /**
+     * 修改限制值
+     * @param apiType
+     * @param newLimit
+     * @return 是否成功
+     */
+    boolean setLimit(String apiType, long newLimit);
+
+    /**
+     * 从当天的全局配额中租借一块配额, 保证所有租出的配额总数不超过限制值
+     * @param apiType
+     * @param day 日期, 格式为yyyyMMdd
+     * @param n 至少需要的配额
+     * @param limit 限制值
+     * @param blockSize 根据剩余的全局配额计算本次希望租借的配额
+     * @return 租借到的配额, 剩余的全局配额不足n时返回0
+     * @throws IllegalStateException 访问存储失败
+     */
+    long lease(String apiType, String day, long n, long limit, LongUnaryOperator blockSize);
+
+    /**
+     * 本节点最近一次租借时看到的当天已租出的配额总数, 不访问存储
+     * @param apiType
+     * @param day 日期, 格式为yyyyMMdd
+     * @return 本节点当天还没有租借过时为null
+     */
+    default Long getLastKnownLeased(String apiType, String day){
+        return null;
+    }
+
+    /**
+     * 集群中存活的节点数目, 集群模式的速率限制在这些节点之间平分
+     * 在计数的热路径上调用, 不能阻塞, 第一次调用时在后台把本节点加入集群, 单节点的存储返回1
+     * @return
+     */
+    default int getLiveNodeCount(){
+        return 1;
+    }
+
+    /**
+     * 本节点已知的集群中存活的节点数目, 不访问存储
+     * @return 还没有加入集群时为0, 单节点的存储返回1
+     */
+    default int getKnownLiveNodeCount(){
+        return 1;
+    }
+}
@@ -0,0 +1,201 @@
+package org.apdplat.counter.valve;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * 内存计数器存储
+ *
+ * 基于 ConcurrentHashMap 和 CAS 实现, 无锁, 适用于单节点部署和测试, 进程退出后计数丢失
+ * 和Zookeeper一样每个节点有版本号, 每次修改加一, 支持按版本号删除
+ */
+public class MemoryCounterStore implements CounterStore {
+    private final Map<String, CounterNode> counters = new ConcurrentHashMap<>();
+    private final Map<String, BytesNode> bytes = new ConcurrentHashMap<>();
+    //节点标识, 节点删除后重新创建时重新分配
+    private final AtomicLong nextNodeId = new AtomicLong();
+
+    @Override
+    public void add(String path, long delta) {
+        while (true) {
+            CounterNode node = counters.get(path);
+            if(node == null){
+                node = counters.computeIfAbsent(path, k -> new CounterNode(nextNodeId.incrementAndGet()));
+            }
+            if(node.add(delta)){
+                return;
+            }
+            //节点已经被删除, 在新节点上重试
+            counters.remove(path, node);
+        }
+    }
+
+    @Override
+    public long get(String path) {
+        CounterNode node = counters.get(path);
+        return node == null ? 0 : node.state.get().count;
+    }
+
+    @Override
+    public byte[] getBytes(String path) {
+        BytesNode node = bytes.get(path);
+        return node == null ? null : node.data;
+    }
+
+    @Override
+    public void updateBytes(String path, UnaryOperator<byte[]> update) {
+        bytes.compute(path, (k, v) -> {
+            byte[] data = update.apply(v == null ? null : v.data);
+            if(data == null){
+                return null;
+            }
+            return v == null ? new BytesNode(nextNodeId.incrementAndGet(), data, 0) : new BytesNode(v.id, data, v.version + 1);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<String, NodeCount>> getNodeCountsAsync(String path) {
+        CounterNode counter = counters.get(path);
+        if(counter != null){
+            State state = counter.state.get();
+            if(state != State.DELETED){
+                return CompletableFuture.completedFuture(Collections.singletonMap(path, new NodeCount(counter.id, state.count, state.version)));
+            }
+        }
+        BytesNode node = bytes.get(path);
+        if(node != null){
+            return CompletableFuture.completedFuture(Collections.singletonMap(path, new NodeCount(node.id, 0, node.version)));
+        }
+        return CompletableFuture.completedFuture(Collections.emptyMap());
+    }
+
+    @Override
+    public void delete(String path) {
+        String prefix = path + "/";
+        counters.entrySet().removeIf(entry -> {
+            String key = entry.getKey();
+            if(key.equals(path) || key.startsWith(prefix)){
+                entry.getValue().state.set(State.DELETED);
+                return true;
+            }
+            return false;
+        });
+        bytes.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+    }
+
+    @Override
+    public boolean delete(String path, int version) {
+        if(hasChildren(counters.keySet(), path) || hasChildren(bytes.keySet(), path)){
+            return false;
+        }
+        CounterNode counter = counters.get(path);
+        if(counter != null){
+            State state = counter.state.get();
+            if(state != State.DELETED){
+                if((version != ANY_VERSION && state.version != version) || !counter.state.compareAndSet(state, State.DELETED)){
+                    return false;
+                }
+                counters.remove(path, counter);
+                return true;
+            }
+        }
+        boolean[] deleted = {true};
+        bytes.computeIfPresent(path, (k, v) -> {
+            if(version != ANY_VERSION && v.version != version){
+                deleted[0] = false;
+                return v;
+            }
+            return null;
+        });
+        return deleted[0];
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String parent) {
+        String prefix = parent.endsWith("/") ? parent : parent + "/";
+        Set<String> children = new LinkedHashSet<>();
+        addChildren(counters.keySet(), prefix, children);
+        addChildren(bytes.keySet(), prefix, children);
+        return CompletableFuture.completedFuture(new ArrayList<>(children));
+    }
+
+    private static void addChildren(Set<String> paths, String prefix, Set<String> children){
+        for(String path : paths){
+            if(path.startsWith(prefix)){
+                String rest = path.substring(prefix.length());
+                int index = rest.indexOf('/');
+                children.add(index == -1 ? rest : rest.substring(0, index));
+            }
+        }
+    }
+
+    private static boolean hasChildren(Set<String> paths, String path){
+        String prefix = path + "/";
+        for(String key : paths){
+            if(key.startsWith(prefix)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 计数和版本号放在同一个不可变对象中, 读取和按版本号删除看到的是一致的计数和版本号
+     */
+    private static class State {
+        private static final State DELETED = new State(0, -1);
+
+        private final long count;
+        private final int version;
+
+        private State(long count, int version) {
+            this.count = count;
+            this.version = version;
+        }
+    }
+
+    private static class CounterNode {
+        private final long id;
+        private final AtomicReference<State> state = new AtomicReference<>(new State(0, 0));
+
+        private CounterNode(long id) {
+            this.id = id;
+        }
+
+        /**
+         * @return 节点已经被删除时返回false
+         */
+        private boolean add(long delta){
+            while (true) {
+                State current = state.get();
+                if(current == State.DELETED){
+                    return false;
+                }
+                if(state.compareAndSet(current, new State(current.count + delta, current.version + 1))){
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static class BytesNode {
+        private final long id;
+        private final byte[] data;
+        private final int version;
+
+        private BytesNode(long id, byte[] data, int version) {
+            this.id = id;
+            this.data = data;
+            this.version = version;
+        }
+    }
+}
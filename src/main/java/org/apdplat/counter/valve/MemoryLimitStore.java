@@ -0,0 +1,74 @@
+package org.apdplat.counter.valve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * 内存限额存储, 适用于单节点部署和测试
+ */
+public class MemoryLimitStore implements LimitStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MemoryLimitStore.class);
+
+    private final Map<String, Long> limits = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> leased = new ConcurrentHashMap<>();
+
+    public MemoryLimitStore() {
+    }
+
+    /**
+     * @param limits 初始限制值, key为apiType
+     */
+    public MemoryLimitStore(Map<String, Long> limits) {
+        this.limits.putAll(limits);
+    }
+
+    @Override
+    public void init(String apiType, long defaultLimit) {
+        limits.putIfAbsent(apiType, defaultLimit);
+        LOGGER.info("apiType: {} 最大限制值: {}", apiType, limits.get(apiType));
+    }
+
+    @Override
+    public Map<String, Long> getLimits() {
+        return Collections.unmodifiableMap(limits);
+    }
+
+    @Override
+    public Long getLimit(String apiType) {
+        return limits.get(apiType);
+    }
+
+    @Override
+    public boolean setLimit(String apiType, long newLimit) {
+        limits.put(apiType, newLimit);
+        return true;
+    }
+
+    @Override
+    public long lease(String apiType, String day, long n, long limit, LongUnaryOperator blockSize) {
+        AtomicLong counter = leased.computeIfAbsent(day + "_" + apiType, k -> new AtomicLong());
+        while (true) {
+            long current = counter.get();
+            long available = limit - current;
+            if (available < n) {
+                return 0;
+            }
+            long block = Math.min(Math.max(blockSize.applyAsLong(available), n), available);
+            if (counter.compareAndSet(current, current + block)) {
+                return block;
+            }
+        }
+    }
+
+    @Override
+    public Long getLastKnownLeased(String apiType, String day) {
+        AtomicLong counter = leased.get(day + "_" + apiType);
+        return counter == null ? null : counter.get();
+    }
+}
@@ -0,0 +1,277 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.ConfUtils;
+
+/**
+ * 计数指标
+ *
+ * 计数器路径的格式由 conf.txt 中的 counter.layout 指定
+ * flat: {atomic.counter.zookeeper.prefix}/{指标名称}_{yyyyMMdd}_{apiType}
+ * 按产品和电视细分的成功计数分别在路径后追加 _p_{productId} 和 _t_{tvId}
+ * 细分近似计数模式下, 按产品和电视细分的计数分别保存在路径后追加 _sketch_p 和 _sketch_t 的节点中
+ * tree: {atomic.counter.zookeeper.prefix}/{yyyyMMdd}/{apiType}/{指标}, 指标为枚举名称的小写形式, 如 response_success
+ * 按产品和电视细分的成功计数分别在路径后追加 /p/{productId} 和 /t/{tvId}, 细分近似计数追加 /sketch_p 和 /sketch_t
+ * 每个父节点的子节点数目都很少, 某一天的所有计数器都在同一个子树中
+ */
+public enum Metric {
+    //调用API没有响应的情况
+    NO_RESPONSE("api_call_atomic_counter_zookeeper_no_response"),
+    //调用API有响应, 但是内容错误的情况
+    WRONG_CONTENT("api_call_atomic_counter_zookeeper_wrong_content"),
+    //成功的情况
+    RESPONSE_SUCCESS("api_call_atomic_counter_zookeeper_response_success"),
+    //调用API出现异常的情况, 比如网络中断, 服务中断等等
+    EXCEPTION("api_call_atomic_counter_zookeeper_exception"),
+    //超过配额的情况
+    BEYOND("api_call_atomic_counter_zookeeper_beyond");
+
+    private static final boolean TREE = "tree".equals(ConfUtils.get("counter.layout", "flat").trim());
+
+    private final String nodeName;
+    private final String treeName;
+    private final String prefix;
+
+    Metric(String nodeName) {
+        this.nodeName = nodeName;
+        this.treeName = name().toLowerCase();
+        this.prefix = Zookeeper.getCounterPrefix() + "/" + nodeName;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * tree 布局中的指标节点名称
+     * @return
+     */
+    public String getTreeName() {
+        return treeName;
+    }
+
+    /**
+     * 是否使用 tree 布局
+     * @return
+     */
+    public static boolean isTreeLayout(){
+        return TREE;
+    }
+
+    /**
+     * flat 布局中计数器在 atomic.counter.zookeeper.prefix 下的节点名称
+     * @param day
+     * @param apiType
+     * @return
+     */
+    public String nodeName(String day, String apiType){
+        return nodeName + "_" + day + "_" + apiType;
+    }
+
+    public String path(String day, String apiType){
+        if(TREE){
+            return Zookeeper.getCounterPrefix() + "/" + day + "/" + apiType + "/" + treeName;
+        }
+        return prefix + "_" + day + "_" + apiType;
+    }
+
+    public String productPath(String day, String apiType, Integer productId){
+        return productPrefix(day, apiType) + productId;
+    }
+
+    public String tvPath(String day, String apiType, Integer tvId){
+        return tvPrefix(day, apiType) + tvId;
+    }
+
+    /**
+     * 按产品细分的计数器路径去掉产品ID后的部分
+     * @param day
+     * @param apiType
+     * @return
+     */
+    public String productPrefix(String day, String apiType){
+        return path(day, apiType) + (TREE ? "/p/" : "_p_");
+    }
+
+    /**
+     * 按电视细分的计数器路径去掉电视ID后的部分
+     * @param day
+     * @param apiType
+     * @return
+     */
+    public String tvPrefix(String day, String apiType){
+        return path(day, apiType) + (TREE ? "/t/" : "_t_");
+    }
+
+    /**
+     * 计数器路径相对于 atomic.counter.zookeeper.prefix 的部分, flat 布局中就是节点名称
+     * @param path 计数器路径
+     * @return
+     */
+    public static String relativePath(String path){
+        String counterPrefix = Zookeeper.getCounterPrefix();
+        if(path.length() > counterPrefix.length() && path.startsWith(counterPrefix) && path.charAt(counterPrefix.length()) == '/'){
+            return path.substring(counterPrefix.length() + 1);
+        }
+        return path;
+    }
+
+    /**
+     * 计数器的日期, 支持 flat 和 tree 两种布局
+     * @param path 计数器路径, 或者相对于 atomic.counter.zookeeper.prefix 的路径
+     * @return 不是计数器时返回null
+     */
+    public static String dayOf(String path){
+        String relative = relativePath(path);
+        int slash = relative.indexOf('/');
+        if(slash == -1){
+            return dayOfNodeName(relative);
+        }
+        if(slash == 8 && isDay(relative, 0)){
+            return relative.substring(0, 8);
+        }
+        return null;
+    }
+
+    /**
+     * 计数器的apiType, 支持 flat 和 tree 两种布局
+     * @param path 计数器路径, 或者相对于 atomic.counter.zookeeper.prefix 的路径
+     * @return 不是计数器时返回null
+     */
+    public static String apiTypeOf(String path){
+        String relative = relativePath(path);
+        if(relative.indexOf('/') == -1){
+            String treePath = toTreePath(relative);
+            if(treePath == null){
+                return null;
+            }
+            relative = relativePath(treePath);
+        }
+        String[] segments = relative.split("/");
+        return segments.length >= 3 && isDayNode(segments[0]) ? segments[1] : null;
+    }
+
+    /**
+     * flat 布局的计数器路径转换为 tree 布局的路径
+     * @param path flat 布局的计数器路径或节点名称
+     * @return 不是 flat 布局的计数器时返回null
+     */
+    public static String toTreePath(String path){
+        String relative = relativePath(path);
+        if(relative.indexOf('/') != -1){
+            return null;
+        }
+        for(Metric metric : values()){
+            int start = metric.nodeName.length() + 1;
+            if(relative.length() <= start + 9
+                    || !relative.startsWith(metric.nodeName)
+                    || relative.charAt(start - 1) != '_'
+                    || relative.charAt(start + 8) != '_'
+                    || !isDay(relative, start)){
+                continue;
+            }
+            String day = relative.substring(start, start + 8);
+            String rest = relative.substring(start + 9);
+            String suffix = "";
+            if(rest.endsWith("_sketch_p") || rest.endsWith("_sketch_t")){
+                suffix = "/" + rest.substring(rest.length() - 8);
+                rest = rest.substring(0, rest.length() - 9);
+            }else{
+                int index = Math.max(rest.lastIndexOf("_p_"), rest.lastIndexOf("_t_"));
+                if(index > 0 && index + 3 < rest.length() && isId(rest, index + 3)){
+                    suffix = "/" + rest.charAt(index + 1) + "/" + rest.substring(index + 3);
+                    rest = rest.substring(0, index);
+                }
+            }
+            return Zookeeper.getCounterPrefix() + "/" + day + "/" + rest + "/" + metric.treeName + suffix;
+        }
+        return null;
+    }
+
+    /**
+     * tree 布局的计数器路径转换为 flat 布局的路径
+     * @param path tree 布局的计数器路径, 或者相对于 atomic.counter.zookeeper.prefix 的路径
+     * @return 不是 tree 布局的计数器时返回null
+     */
+    public static String toFlatPath(String path){
+        String[] segments = relativePath(path).split("/");
+        if(segments.length < 3 || segments.length > 5 || !isDayNode(segments[0])){
+            return null;
+        }
+        Metric metric;
+        try {
+            metric = valueOf(segments[2].toUpperCase());
+        }catch (IllegalArgumentException e){
+            return null;
+        }
+        String flat = metric.prefix + "_" + segments[0] + "_" + segments[1];
+        if(segments.length == 4 && isSketchNode(segments[3])){
+            return flat + "_" + segments[3];
+        }
+        if(segments.length == 5 && ("p".equals(segments[3]) || "t".equals(segments[3]))){
+            return flat + "_" + segments[3] + "_" + segments[4];
+        }
+        return segments.length == 3 ? flat : null;
+    }
+
+    private static boolean isId(String text, int start){
+        for(int i=start; i<text.length(); i++){
+            char c = text.charAt(i);
+            if(!Character.isDigit(c) && !(c == '-' && i == start)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 是否是 tree 布局中某一天的目录节点名称
+     * @param nodeName
+     * @return
+     */
+    public static boolean isDayNode(String nodeName){
+        return nodeName.length() == 8 && isDay(nodeName, 0);
+    }
+
+    /**
+     * flat 布局的节点名称中的日期
+     */
+    private static String dayOfNodeName(String nodeName){
+        for(Metric metric : values()){
+            int start = metric.nodeName.length() + 1;
+            if(nodeName.length() > start + 8
+                    && nodeName.startsWith(metric.nodeName)
+                    && nodeName.charAt(start - 1) == '_'
+                    && nodeName.charAt(start + 8) == '_'
+                    && isDay(nodeName, start)){
+                return nodeName.substring(start, start + 8);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDay(String text, int start){
+        for(int i=start; i<start+8; i++){
+            if(!Character.isDigit(text.charAt(i))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 是否是保存细分近似计数的节点
+     * @param path 节点名称或路径
+     * @return
+     */
+    public static boolean isSketchNode(String path){
+        return path.endsWith("sketch_p") || path.endsWith("sketch_t");
+    }
+
+    public String productSketchPath(String day, String apiType){
+        return path(day, apiType) + (TREE ? "/sketch_p" : "_sketch_p");
+    }
+
+    public String tvSketchPath(String day, String apiType){
+        return path(day, apiType) + (TREE ? "/sketch_t" : "_sketch_t");
+    }
+}
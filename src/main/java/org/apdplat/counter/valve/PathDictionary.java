@@ -0,0 +1,141 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 计数器路径字典
+ *
+ * 把计数器路径映射为int编号, 异步队列中只保存编号, 不保存路径字符串
+ * 已有路径的查找不加锁, 新路径在同步块中分配编号, 编号单调递增, 不会重复使用,
+ * 因此队列中还没有写入的旧编号不会对应到其他路径
+ * 路径数目达到 maxSize 时删除前天及更早的计数器路径, 删除后这些编号查不到路径
+ */
+public class PathDictionary {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PathDictionary.class);
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final int maxSize;
+    //编号到路径, 按块分配, 块中的路径全部删除后释放该块
+    private volatile String[][] chunks = new String[16][];
+    private int nextId;
+    //路径数目达到该值时清理, 清理后仍然超过 maxSize 时再增加 maxSize/2 个路径才再次清理
+    private int evictAt;
+
+    /**
+     * @param maxSize 路径数目达到该值时删除前天及更早的计数器路径
+     */
+    public PathDictionary(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        this.evictAt = this.maxSize;
+    }
+
+    /**
+     * 路径的编号, 没有编号时分配一个
+     * @param path 计数器路径
+     * @return
+     */
+    public int intern(String path){
+        Integer id = ids.get(path);
+        if(id != null){
+            return id;
+        }
+        return add(path);
+    }
+
+    /**
+     * 编号对应的路径
+     * @param id intern 的返回值
+     * @return 路径已被删除时为null
+     */
+    public String path(int id){
+        String[][] current = chunks;
+        int chunk = id >>> CHUNK_BITS;
+        if(chunk >= current.length || current[chunk] == null){
+            return null;
+        }
+        return current[chunk][id & (CHUNK_SIZE - 1)];
+    }
+
+    public int size(){
+        return ids.size();
+    }
+
+    private synchronized int add(String path){
+        Integer existing = ids.get(path);
+        if(existing != null){
+            return existing;
+        }
+        if(ids.size() >= evictAt){
+            evict();
+            evictAt = Math.max(maxSize, ids.size() + maxSize / 2);
+        }
+        int id = nextId++;
+        int chunk = id >>> CHUNK_BITS;
+        String[][] current = chunks;
+        if(chunk >= current.length){
+            String[][] grown = new String[current.length * 2][];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            current = grown;
+        }
+        if(current[chunk] == null){
+            current[chunk] = new String[CHUNK_SIZE];
+        }
+        //先写入编号到路径的映射, 再发布编号
+        current[chunk][id & (CHUNK_SIZE - 1)] = path;
+        chunks = current;
+        ids.put(path, id);
+        return id;
+    }
+
+    /**
+     * 删除前天及更早的计数器路径
+     */
+    private void evict(){
+        String cutoff = LocalDate.parse(DayClock.today(), DAY_FORMATTER).minusDays(1).format(DAY_FORMATTER);
+        int before = ids.size();
+        String[][] current = chunks;
+        Iterator<Map.Entry<String, Integer>> iterator = ids.entrySet().iterator();
+        while (iterator.hasNext()){
+            Map.Entry<String, Integer> entry = iterator.next();
+            String day = Metric.dayOf(entry.getKey());
+            if(day != null && day.compareTo(cutoff) < 0){
+                iterator.remove();
+                int id = entry.getValue();
+                current[id >>> CHUNK_BITS][id & (CHUNK_SIZE - 1)] = null;
+            }
+        }
+        //释放已经分配完并且路径全部删除的块
+        int lastFullChunk = nextId >>> CHUNK_BITS;
+        for(int i=0; i<lastFullChunk && i<current.length; i++){
+            if(current[i] != null && isEmpty(current[i])){
+                current[i] = null;
+            }
+        }
+        chunks = current;
+        if(ids.size() >= maxSize){
+            LOGGER.warn("计数器路径字典已有 {} 个路径, 删除 {} 之前的路径后仍然超过 {}", ids.size(), cutoff, maxSize);
+        }else{
+            LOGGER.info("计数器路径字典删除 {} 之前的 {} 个路径", cutoff, before - ids.size());
+        }
+    }
+
+    private static boolean isEmpty(String[] chunk){
+        for(String path : chunk){
+            if(path != null){
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+package org.apdplat.counter.valve;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * 根据剩余配额计算增量合并器的刷新间隔
+ *
+ * 同一个apiType的所有计数器使用相同的刷新间隔, 剩余配额占限制值的比例不低于 farRatio 时为 maxIntervalMs,
+ * 不高于 nearRatio 时为 minIntervalMs, 两者之间按比例线性缩短
+ * 已用配额在后台异步读取, 每个apiType最多每隔 refreshMs 毫秒读取一次, 计算刷新间隔时不访问存储
+ * 没有限制值的apiType和不是计数器的路径使用 maxIntervalMs
+ */
+public class QuotaAwareFlushInterval implements ToLongFunction<String> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuotaAwareFlushInterval.class);
+    private static final String NONE = "";
+
+    private final Function<String, CompletableFuture<Long>> usageReader;
+    private final ToLongFunction<String> limits;
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final double nearRatio;
+    private final double farRatio;
+    private final long refreshMs;
+    private final int maxCacheSize;
+    private final Map<String, String> apiTypes = new ConcurrentHashMap<>();
+    private final Map<String, Usage> usages = new ConcurrentHashMap<>();
+
+    /**
+     * @param usageReader 异步读取apiType当天已用的配额, 失败时返回-1
+     * @param limits apiType当天的限制值, 没有限制时为 Long.MAX_VALUE
+     * @param minIntervalMs 最短刷新间隔, 毫秒
+     * @param maxIntervalMs 最长刷新间隔, 毫秒
+     * @param nearRatio 剩余配额比例不高于该值时使用最短刷新间隔
+     * @param farRatio 剩余配额比例不低于该值时使用最长刷新间隔
+     * @param refreshMs 重新读取已用配额的间隔, 毫秒
+     * @param maxCacheSize 最多缓存的计数器路径数目, 超过时清空
+     */
+    public QuotaAwareFlushInterval(Function<String, CompletableFuture<Long>> usageReader, ToLongFunction<String> limits,
+                                   long minIntervalMs, long maxIntervalMs, double nearRatio, double farRatio,
+                                   long refreshMs, int maxCacheSize) {
+        this.usageReader = usageReader;
+        this.limits = limits;
+        this.minIntervalMs = Math.max(0, minIntervalMs);
+        this.maxIntervalMs = Math.max(this.minIntervalMs, maxIntervalMs);
+        this.nearRatio = Math.max(0, nearRatio);
+        this.farRatio = Math.max(this.nearRatio, farRatio);
+        this.refreshMs = refreshMs;
+        this.maxCacheSize = maxCacheSize;
+        LOGGER.info("按剩余配额调整刷新间隔, 刷新间隔: {}-{} 毫秒, 剩余配额比例: {}-{}, 已用配额读取间隔: {} 毫秒",
+                this.minIntervalMs, this.maxIntervalMs, this.nearRatio, this.farRatio, refreshMs);
+    }
+
+    @Override
+    public long applyAsLong(String path) {
+        String apiType = apiTypes.get(path);
+        if(apiType == null){
+            if(apiTypes.size() >= maxCacheSize){
+                apiTypes.clear();
+            }
+            apiType = Metric.apiTypeOf(path);
+            apiTypes.put(path, apiType == null ? NONE : apiType);
+        }
+        return apiType == null || apiType == NONE ? maxIntervalMs : getInterval(apiType);
+    }
+
+    /**
+     * apiType当前的刷新间隔
+     * @param apiType
+     * @return 毫秒
+     */
+    public long getInterval(String apiType){
+        long limit = limits.applyAsLong(apiType);
+        if(limit == Long.MAX_VALUE){
+            return maxIntervalMs;
+        }
+        if(limit <= 0){
+            return minIntervalMs;
+        }
+        Usage usage = usages.get(apiType);
+        if(usage == null){
+            usage = usages.computeIfAbsent(apiType, k -> new Usage());
+        }
+        usage.refreshIfStale(apiType);
+        if(usage.used < 0){
+            //还没有读取到已用配额, 按接近限制值处理
+            return minIntervalMs;
+        }
+        double remaining = (double) (limit - usage.used) / limit;
+        if(remaining >= farRatio){
+            return maxIntervalMs;
+        }
+        if(remaining <= nearRatio){
+            return minIntervalMs;
+        }
+        return minIntervalMs + (long) ((maxIntervalMs - minIntervalMs) * (remaining - nearRatio) / (farRatio - nearRatio));
+    }
+
+    private class Usage {
+        private final AtomicBoolean reading = new AtomicBoolean();
+        private volatile long used = -1;
+        private volatile long readAt;
+
+        private void refreshIfStale(String apiType){
+            if(System.currentTimeMillis() - readAt < refreshMs || !reading.compareAndSet(false, true)){
+                return;
+            }
+            CompletableFuture<Long> future;
+            try {
+                future = usageReader.apply(apiType);
+            }catch (Throwable e){
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((value, e) -> {
+                if(e == null && value != null && value >= 0){
+                    used = value;
+                }else if(e != null){
+                    LOGGER.error("读取已用配额出错, apiType: "+apiType, e);
+                }
+                readAt = System.currentTimeMillis();
+                reading.set(false);
+            });
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 配额租约
+ *
+ * 每个节点从限额存储中按块租借当天的调用配额, 在本地用无锁的递减完成准入判断,
+ * 本地配额不足时再租借下一块, 剩余的全局配额越少, 每次租借的块越小
+ * 限额存储记录当天已经租出的配额总数, 租借时保证其不超过限制值,
+ * 因此所有节点准入的调用总数不会超过限制值
+ * 节点退出时未使用完的配额不会归还
+ */
+public class QuotaLeaser {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuotaLeaser.class);
+
+    private final LimitStore limitStore;
+    private final long maxBlockSize;
+    private final long minBlockSize;
+    private final long shrinkDivisor;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * @param limitStore 限额存储
+     * @param maxBlockSize 每次租借的最大配额
+     * @param minBlockSize 每次租借的最小配额
+     * @param shrinkDivisor 每次最多租借剩余全局配额的几分之一
+     */
+    public QuotaLeaser(LimitStore limitStore, long maxBlockSize, long minBlockSize, long shrinkDivisor) {
+        this.limitStore = limitStore;
+        this.maxBlockSize = Math.max(1, maxBlockSize);
+        this.minBlockSize = Math.max(1, Math.min(minBlockSize, this.maxBlockSize));
+        this.shrinkDivisor = Math.max(1, shrinkDivisor);
+    }
+
+    /**
+     * 尝试获取n次调用的配额
+     * @param apiType
+     * @param n 调用次数
+     * @param limit 当天的限制值
+     * @return 是否允许调用
+     */
+    public boolean tryAcquire(String apiType, long n, long limit){
+        if(limit == Long.MAX_VALUE){
+            return true;
+        }
+        Lease lease = leases.get(apiType);
+        if(lease == null || lease.isExpired()){
+            lease = leases.compute(apiType, (k, v) -> v == null || v.isExpired() ? new Lease() : v);
+        }
+        if(lease.tryTake(n)){
+            return true;
+        }
+        synchronized (lease){
+            while (true) {
+                if (lease.tryTake(n)) {
+                    return true;
+                }
+                long granted = leaseMore(apiType, lease.day.getName(), n, limit);
+                if (granted <= 0) {
+                    return false;
+                }
+                lease.remaining.addAndGet(granted);
+            }
+        }
+    }
+
+    /**
+     * 本地还未使用的配额
+     * @param apiType
+     * @return
+     */
+    public long getLocalRemaining(String apiType){
+        Lease lease = leases.get(apiType);
+        if(lease == null || lease.isExpired()){
+            return 0;
+        }
+        return lease.remaining.get();
+    }
+
+    private long leaseMore(String apiType, String day, long n, long limit){
+        try {
+            return limitStore.lease(apiType, day, n, limit,
+                    available -> Math.min(maxBlockSize, Math.max(minBlockSize, available / shrinkDivisor)));
+        }catch (RuntimeException e){
+            LOGGER.error("apiType: "+apiType+" 租借配额失败", e);
+            return 0;
+        }
+    }
+
+    private static class Lease {
+        private final DayClock.Day day = DayClock.current();
+        private final AtomicLong remaining = new AtomicLong();
+
+        private boolean isExpired(){
+            return day.isExpired();
+        }
+
+        private boolean tryTake(long n){
+            while (true) {
+                long current = remaining.get();
+                if (current < n) {
+                    return false;
+                }
+                if (remaining.compareAndSet(current, current - n)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.apdplat.counter.valve;
+
+import org.apdplat.counter.util.DayClock;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.IsoFields;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 按日期范围查询计数
+ *
+ * 范围内每天的读取并行发出, 同时进行的读取数目不超过 maxConcurrency
+ * 已经结束的日期的计数不再变化, 读取后缓存; 范围完整覆盖并且已经结束的周和月的合计也缓存,
+ * 重复查询同一段历史数据时不需要访问存储
+ * 读取失败的日期计数为-1, 包含失败日期的合计也为-1, 都不缓存
+ */
+public class RangeQuery {
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    /**
+     * 合计的周期
+     */
+    public enum Period {
+        //按天, 键为yyyyMMdd
+        DAY,
+        //按ISO周, 周一为第一天, 键如2016-W46
+        WEEK,
+        //按月, 键为yyyyMM
+        MONTH;
+
+        public String key(LocalDate date){
+            switch (this){
+                case WEEK:
+                    return date.get(IsoFields.WEEK_BASED_YEAR) + "-W" + String.format("%02d", date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+                case MONTH:
+                    return date.format(MONTH_FORMATTER);
+                default:
+                    return date.format(DAY_FORMATTER);
+            }
+        }
+
+        public LocalDate firstDay(LocalDate date){
+            switch (this){
+                case WEEK:
+                    return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                case MONTH:
+                    return date.withDayOfMonth(1);
+                default:
+                    return date;
+            }
+        }
+
+        public LocalDate lastDay(LocalDate date){
+            switch (this){
+                case WEEK:
+                    return date.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
+                case MONTH:
+                    return date.with(TemporalAdjusters.lastDayOfMonth());
+                default:
+                    return date;
+            }
+        }
+    }
+
+    private final Function<String, CompletableFuture<Long>> reader;
+    private final int maxConcurrency;
+    private final long closedAfterMs;
+    private final int maxCacheSize;
+    private final Map<String, Long> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * @param reader 异步读取计数器, 失败时返回-1
+     * @param maxConcurrency 同时进行的读取的最大数目
+     * @param closedAfterMs 一天结束多久之后计数不再变化, 可以缓存, 毫秒
+     * @param maxCacheSize 最多缓存的计数和合计数目, 超过时清空缓存
+     */
+    public RangeQuery(Function<String, CompletableFuture<Long>> reader, int maxConcurrency, long closedAfterMs, int maxCacheSize) {
+        this.reader = reader;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.closedAfterMs = closedAfterMs;
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    /**
+     * 范围内每天的计数
+     * @param metric 指标
+     * @param apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @return key为日期, 按日期排序
+     */
+    public CompletableFuture<Map<String, Long>> daily(Metric metric, String apiType, String fromDay, String toDay){
+        return rollup(metric, apiType, fromDay, toDay, Period.DAY);
+    }
+
+    /**
+     * 范围内每个周期的合计, 范围两端不完整的周期只合计范围内的日期
+     * @param metric 指标
+     * @param apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @param period 周期
+     * @return key为周期的键, 按时间排序
+     */
+    public CompletableFuture<Map<String, Long>> rollup(Metric metric, String apiType, String fromDay, String toDay, Period period){
+        LocalDate from = LocalDate.parse(fromDay, DAY_FORMATTER);
+        LocalDate to = LocalDate.parse(toDay, DAY_FORMATTER);
+        Map<String, CompletableFuture<Long>> totals = new LinkedHashMap<>();
+        for(LocalDate start = from; !start.isAfter(to); ){
+            LocalDate periodEnd = period.lastDay(start);
+            LocalDate end = periodEnd.isAfter(to) ? to : periodEnd;
+            totals.put(period.key(start), total(metric, apiType, start, end,
+                    period != Period.DAY && start.equals(period.firstDay(start)) && end.equals(periodEnd) ? period : null));
+            start = end.plusDays(1);
+        }
+        return CompletableFuture.allOf(totals.values().toArray(new CompletableFuture<?>[totals.size()])).thenApply(v -> {
+            Map<String, Long> result = new LinkedHashMap<>();
+            totals.forEach((key, total) -> result.put(key, total.join()));
+            return result;
+        });
+    }
+
+    /**
+     * 范围内的合计, 完整的月份使用缓存的月合计
+     * @param metric 指标
+     * @param apiType
+     * @param fromDay 开始日期, 包括, 格式为yyyyMMdd
+     * @param toDay 结束日期, 包括, 格式为yyyyMMdd
+     * @return
+     */
+    public CompletableFuture<Long> total(Metric metric, String apiType, String fromDay, String toDay){
+        return rollup(metric, apiType, fromDay, toDay, Period.MONTH).thenApply(totals -> sum(totals.values()));
+    }
+
+    /**
+     * 连续几天的合计
+     * @param fullPeriod 这几天正好是一个完整的周期时为该周期, 否则为null, 完整并且已经结束的周期缓存合计
+     */
+    private CompletableFuture<Long> total(Metric metric, String apiType, LocalDate from, LocalDate to, Period fullPeriod){
+        String cacheKey = fullPeriod == null ? null : metric.name() + "|" + apiType + "|" + fullPeriod.key(from);
+        if(cacheKey != null){
+            Long cached = cache.get(cacheKey);
+            if(cached != null){
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        List<CompletableFuture<Long>> values = new ArrayList<>();
+        for(LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)){
+            values.add(read(metric.path(day.format(DAY_FORMATTER), apiType), day));
+        }
+        return CompletableFuture.allOf(values.toArray(new CompletableFuture<?>[values.size()])).thenApply(v -> {
+            List<Long> results = new ArrayList<>(values.size());
+            for(CompletableFuture<Long> value : values){
+                results.add(value.join());
+            }
+            long total = sum(results);
+            if(cacheKey != null && total >= 0 && isClosed(to)){
+                put(cacheKey, total);
+            }
+            return total;
+        });
+    }
+
+    private CompletableFuture<Long> read(String path, LocalDate day){
+        Long cached = cache.get(path);
+        if(cached != null){
+            return CompletableFuture.completedFuture(cached);
+        }
+        return limited(() -> reader.apply(path)).thenApply(value -> {
+            if(value >= 0 && isClosed(day)){
+                put(path, value);
+            }
+            return value;
+        });
+    }
+
+    private boolean isClosed(LocalDate day){
+        return System.currentTimeMillis() >= DayClock.Day.of(day).getEndMillis() + closedAfterMs;
+    }
+
+    private void put(String key, long value){
+        if(cache.size() >= maxCacheSize){
+            cache.clear();
+        }
+        cache.put(key, value);
+    }
+
+    private static long sum(Iterable<Long> values){
+        long total = 0;
+        for(long value : values){
+            if(value < 0){
+                return -1;
+            }
+            total += value;
+        }
+        return total;
+    }
+
+    /**
+     * 同时进行的读取超过 maxConcurrency 时排队, 前面的读取完成后再发出
+     */
+    private <T> CompletableFuture<T> limited(Supplier<CompletableFuture<T>> task){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        waiting.add(() -> {
+            CompletableFuture<T> future;
+            try {
+                future = task.get();
+            }catch (Throwable e){
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            future.whenComplete((value, e) -> {
+                inFlight.decrementAndGet();
+                drain();
+                if(e != null){
+                    result.completeExceptionally(e);
+                }else{
+                    result.complete(value);
+                }
+            });
+        });
+        drain();
+        return result;
+    }
+
+    private void drain(){
+        //读取同步完成时会在 next.run() 中再次调用 drain, 由外层的循环继续发出, 避免递归过深
+        if(draining.get()){
+            return;
+        }
+        draining.set(true);
+        try {
+            while (!waiting.isEmpty()) {
+                int current = inFlight.get();
+                if (current >= maxConcurrency) {
+                    return;
+                }
+                if (!inFlight.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+                Runnable next = waiting.poll();
+                if (next == null) {
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                next.run();
+            }
+        }finally {
+            draining.set(false);
+        }
+    }
+}
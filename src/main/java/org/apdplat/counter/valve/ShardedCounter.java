@@ -0,0 +1,147 @@
+package org.apdplat.counter.valve;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.apdplat.counter.metrics.CounterMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 分片计数器
+ *
+ * 每个JVM只写计数器节点下属于自己的子节点 shard_{nodeId}, 用带版本号的 setData 更新,
+ * 不同节点之间没有写竞争, 读取时返回计数器节点本身的值与所有分片值之和
+ * 计数器节点本身的值兼容 DistributedAtomicLong 写入的旧数据
+ */
+public class ShardedCounter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ShardedCounter.class);
+
+    public static final String SHARD_PREFIX = "shard_";
+
+    private final CuratorFramework curatorFramework;
+    private final String nodeId;
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+
+    public ShardedCounter(CuratorFramework curatorFramework, String nodeId) {
+        this.curatorFramework = curatorFramework;
+        this.nodeId = nodeId;
+        LOGGER.info("启用分片计数器, 节点标识: {}", nodeId);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getShardPath(String path){
+        return ZKPaths.makePath(path, SHARD_PREFIX + nodeId);
+    }
+
+    public void add(String path, long delta) throws Exception {
+        String shardPath = getShardPath(path);
+        Shard shard = shards.computeIfAbsent(shardPath, k -> new Shard());
+        synchronized (shard) {
+            while (true) {
+                if (!shard.loaded) {
+                    load(shardPath, shard);
+                }
+                long newValue = shard.value + delta;
+                try {
+                    Stat stat = curatorFramework.setData().withVersion(shard.version).forPath(shardPath, encode(newValue));
+                    shard.value = newValue;
+                    shard.version = stat.getVersion();
+                    return;
+                } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+                    //分片被外部修改或删除, 重新读取后再写
+                    shard.loaded = false;
+                    CounterMetrics.get().casRetry(1);
+                }
+            }
+        }
+    }
+
+    public long get(String path) throws Exception {
+        long value = 0;
+        try {
+            value += decode(curatorFramework.getData().forPath(path));
+            for (String child : curatorFramework.getChildren().forPath(path)) {
+                if (child.startsWith(SHARD_PREFIX)) {
+                    try {
+                        value += decode(curatorFramework.getData().forPath(ZKPaths.makePath(path, child)));
+                    } catch (KeeperException.NoNodeException e) {
+                        //分片已被删除
+                    }
+                }
+            }
+        } catch (KeeperException.NoNodeException e) {
+            //计数器还不存在
+        }
+        return value;
+    }
+
+    private void load(String shardPath, Shard shard) throws Exception {
+        Stat stat = new Stat();
+        try {
+            byte[] data = curatorFramework.getData().storingStatIn(stat).forPath(shardPath);
+            shard.value = decode(data);
+            shard.version = stat.getVersion();
+        } catch (KeeperException.NoNodeException e) {
+            try {
+                curatorFramework.create().creatingParentsIfNeeded().forPath(shardPath, encode(0));
+            } catch (KeeperException.NodeExistsException ex) {
+                //其他线程已经创建
+            }
+            load(shardPath, shard);
+            return;
+        }
+        shard.loaded = true;
+    }
+
+    /**
+     * 与 DistributedAtomicLong 相同的编码方式
+     * @param value
+     * @return
+     */
+    public static byte[] encode(long value){
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    public static long decode(byte[] data){
+        if(data == null || data.length != 8){
+            return 0;
+        }
+        return ByteBuffer.wrap(data).getLong();
+    }
+
+    /**
+     * 获取本节点的标识, 优先使用配置项 counter.node.id, 否则使用主机名
+     * @param configured 配置的节点标识
+     * @return
+     */
+    public static String resolveNodeId(String configured){
+        String nodeId = configured;
+        if(StringUtils.isBlank(nodeId)){
+            try {
+                nodeId = InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                nodeId = UUID.randomUUID().toString();
+                LOGGER.error("获取主机名失败, 使用随机节点标识: "+nodeId+", 重启后将写入新的分片, 请配置 counter.node.id", e);
+            }
+        }
+        return nodeId.trim().replaceAll("[/\\s]", "_");
+    }
+
+    private static class Shard {
+        private boolean loaded;
+        private long value;
+        private int version;
+    }
+}
@@ -0,0 +1,157 @@
+package org.apdplat.counter.valve;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+/**
+ * 滑动窗口速率限制
+ *
+ * 把长度为 windowMs 的窗口分成 bucketCount 个时间桶组成环形数组, 每个桶用一个long同时保存
+ * 桶的序号(高32位)和桶内的调用次数(低32位), 准入判断只需对当前桶做一次CAS, 不加锁
+ * 窗口内除当前桶以外的桶都已经结束不再变化, 所以先求出它们的和, 再在CAS当前桶时检查总数,
+ * 同一时刻准入的调用总数不会超过限制值, 窗口按桶的粒度滑动
+ * 集群模式下每个节点的限制值为 limit / 存活的节点数目
+ */
+public class SlidingWindowLimiter {
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    private final long limit;
+    private final long windowMs;
+    private final long bucketMs;
+    private final int bucketCount;
+    private final IntSupplier nodeCount;
+    private final AtomicLongArray buckets;
+
+    /**
+     * @param limit 窗口内允许的最多调用次数
+     * @param windowMs 窗口长度, 毫秒
+     * @param bucketCount 窗口分成的桶数
+     * @param nodeCount 共享限制值的节点数目, 单节点为 () -> 1
+     */
+    public SlidingWindowLimiter(long limit, long windowMs, int bucketCount, IntSupplier nodeCount) {
+        if(limit < 0 || limit > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("速率限制值必须在0和"+Integer.MAX_VALUE+"之间: "+limit);
+        }
+        this.limit = limit;
+        this.bucketCount = (int)Math.max(1, Math.min(bucketCount, windowMs));
+        this.bucketMs = Math.max(1, windowMs / this.bucketCount);
+        this.windowMs = this.bucketMs * this.bucketCount;
+        this.nodeCount = nodeCount;
+        this.buckets = new AtomicLongArray(this.bucketCount);
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    /**
+     * 本节点在窗口内允许的最多调用次数
+     * @return
+     */
+    public long getLocalLimit(){
+        int nodes = nodeCount.getAsInt();
+        return nodes <= 1 ? limit : Math.max(1, limit / nodes);
+    }
+
+    /**
+     * 尝试在当前窗口内获取n次调用
+     * @param n 调用次数
+     * @return 成功时为当前桶的序号, 用于 release, 失败时为-1
+     */
+    public long tryAcquire(long n){
+        return tryAcquire(n, System.currentTimeMillis());
+    }
+
+    long tryAcquire(long n, long nowMs){
+        long index = nowMs / bucketMs;
+        long localLimit = getLocalLimit();
+        if(n > localLimit){
+            return -1;
+        }
+        long previous = 0;
+        for(long i = index - bucketCount + 1; i < index; i++){
+            previous += count(i);
+        }
+        int slot = slot(index);
+        long epoch = index & COUNT_MASK;
+        while (true) {
+            long value = buckets.get(slot);
+            long current = (value >>> 32) == epoch ? value & COUNT_MASK : 0;
+            if (previous + current + n > localLimit) {
+                return -1;
+            }
+            if (buckets.compareAndSet(slot, value, (epoch << 32) | (current + n))) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * 归还 tryAcquire 获取的调用次数, 桶已经被新的时间段复用时忽略
+     * @param index tryAcquire 的返回值
+     * @param n 调用次数
+     */
+    public void release(long index, long n){
+        if(index < 0){
+            return;
+        }
+        int slot = slot(index);
+        long epoch = index & COUNT_MASK;
+        while (true) {
+            long value = buckets.get(slot);
+            if ((value >>> 32) != epoch) {
+                return;
+            }
+            long current = value & COUNT_MASK;
+            if (buckets.compareAndSet(slot, value, (epoch << 32) | Math.max(0, current - n))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 当前窗口内已经准入的调用次数
+     * @return
+     */
+    public long getCount(){
+        long index = System.currentTimeMillis() / bucketMs;
+        long sum = 0;
+        for(long i = index - bucketCount + 1; i <= index; i++){
+            sum += count(i);
+        }
+        return sum;
+    }
+
+    private long count(long index){
+        long value = buckets.get(slot(index));
+        return (value >>> 32) == (index & COUNT_MASK) ? value & COUNT_MASK : 0;
+    }
+
+    private int slot(long index){
+        return (int)(index % bucketCount);
+    }
+
+    /**
+     * 解析速率限制的时间单位
+     * @param unit s, m 或 h
+     * @return 窗口长度, 毫秒
+     */
+    public static long parseWindow(String unit){
+        switch (unit.trim()){
+            case "s": return TimeUnit.SECONDS.toMillis(1);
+            case "m": return TimeUnit.MINUTES.toMillis(1);
+            case "h": return TimeUnit.HOURS.toMillis(1);
+            default: throw new IllegalArgumentException("不支持的时间单位: "+unit+", 只支持 s, m, h");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return limit + "/" + windowMs + "ms";
+    }
+}
@@ -0,0 +1,46 @@
+package org.apdplat.counter.valve;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 根据配置创建计数器存储和限额存储
+ *
+ * zookeeper: 基于Zookeeper, 适用于分布式部署
+ * memory: 基于内存, 适用于单节点部署和测试
+ * 其他值作为实现类的全名, 该类需要有无参构造函数
+ */
+public class Stores {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Stores.class);
+
+    public static CounterStore createCounterStore(String name){
+        if(StringUtils.isBlank(name) || "zookeeper".equals(name.trim())){
+            return new ZookeeperCounterStore();
+        }
+        if("memory".equals(name.trim())){
+            return new MemoryCounterStore();
+        }
+        return newInstance(name.trim(), CounterStore.class);
+    }
+
+    public static LimitStore createLimitStore(String name){
+        if(StringUtils.isBlank(name) || "zookeeper".equals(name.trim())){
+            return new ZookeeperLimitStore();
+        }
+        if("memory".equals(name.trim())){
+            return new MemoryLimitStore();
+        }
+        return newInstance(name.trim(), LimitStore.class);
+    }
+
+    private static <T> T newInstance(String className, Class<T> type){
+        try {
+            Object store = Class.forName(className).getDeclaredConstructor().newInstance();
+            LOGGER.info("使用自定义的存储: {}", className);
+            return type.cast(store);
+        }catch (Exception e){
+            throw new IllegalArgumentException("无法创建存储: "+className+", 需要实现 "+type.getName()+" 并且有无参构造函数", e);
+        }
+    }
+}
@@ -20,9 +20,8 @@ public class Zookeeper {
 
     private static final int TIMEOUT = ConfUtils.getInt("zookeeper.connection.timeout.ms");
 
-    private static CuratorFramework curatorFramework = null;
-
-    static {
+    private static CuratorFramework createCuratorFramework() {
+        CuratorFramework curatorFramework = null;
         try {
             LOGGER.info("开始初始化ZOOKEEPER: {}", ZK);
             curatorFramework = CuratorFrameworkFactory.newClient(ZK, TIMEOUT, TIMEOUT, new ExponentialBackoffRetry(1000, 300));
@@ -31,6 +30,7 @@ public class Zookeeper {
         }catch (Exception e){
             LOGGER.error("初始化ZOOKEEPER失败: "+ZK, e);
         }
+        return curatorFramework;
     }
 
     public static String getApiCallCountPrefix() {
@@ -41,7 +41,15 @@ public class Zookeeper {
         return COUNTER_PREFIX;
     }
 
+    /**
+     * 第一次调用时才连接Zookeeper, 使用内存存储时不会连接
+     * @return
+     */
     public static CuratorFramework getCuratorFramework() {
-        return curatorFramework;
+        return CuratorFrameworkHolder.CURATOR_FRAMEWORK;
+    }
+
+    private static class CuratorFrameworkHolder {
+        private static final CuratorFramework CURATOR_FRAMEWORK = createCuratorFramework();
     }
 }
@@ -0,0 +1,198 @@
+package org.apdplat.counter.valve;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 基于Curator后台回调的异步读写
+ *
+ * 所有操作立即返回 CompletableFuture, 不阻塞调用线程, 读取时节点不存在分别返回 null、空列表和0
+ */
+public class ZookeeperAsync {
+    private final CuratorFramework curatorFramework;
+
+    public ZookeeperAsync(CuratorFramework curatorFramework) {
+        this.curatorFramework = curatorFramework;
+    }
+
+    public CompletableFuture<byte[]> getData(String path){
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            curatorFramework.getData().inBackground((client, event) -> {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    future.complete(event.getData());
+                } else if (code == KeeperException.Code.NONODE) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(KeeperException.create(code, path));
+                }
+            }).forPath(path);
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 读取节点数据、版本号和创建节点的事务id
+     * @param path
+     * @return 节点不存在时为null
+     */
+    public CompletableFuture<VersionedData> getVersionedData(String path){
+        CompletableFuture<VersionedData> future = new CompletableFuture<>();
+        try {
+            curatorFramework.getData().inBackground((client, event) -> {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    future.complete(new VersionedData(event.getData(), event.getStat().getVersion(), event.getStat().getCzxid()));
+                } else if (code == KeeperException.Code.NONODE) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(KeeperException.create(code, path));
+                }
+            }).forPath(path);
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 创建节点, 父节点不存在时一起创建
+     * @param path
+     * @param data
+     * @return 节点已经存在时为false
+     */
+    public CompletableFuture<Boolean> create(String path, byte[] data){
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        try {
+            curatorFramework.create().creatingParentsIfNeeded().inBackground((client, event) -> {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    future.complete(true);
+                } else if (code == KeeperException.Code.NODEEXISTS) {
+                    future.complete(false);
+                } else {
+                    future.completeExceptionally(KeeperException.create(code, path));
+                }
+            }).forPath(path, data);
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 带版本号写入节点数据
+     * @param path
+     * @param data
+     * @param version 读取时的版本号
+     * @return 版本冲突或节点已被删除时为false
+     */
+    public CompletableFuture<Boolean> setData(String path, byte[] data, int version){
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        try {
+            curatorFramework.setData().withVersion(version).inBackground((client, event) -> {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    future.complete(true);
+                } else if (code == KeeperException.Code.BADVERSION || code == KeeperException.Code.NONODE) {
+                    future.complete(false);
+                } else {
+                    future.completeExceptionally(KeeperException.create(code, path));
+                }
+            }).forPath(path, data);
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public CompletableFuture<List<String>> getChildren(String path){
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        try {
+            curatorFramework.getChildren().inBackground((client, event) -> {
+                KeeperException.Code code = KeeperException.Code.get(event.getResultCode());
+                if (code == KeeperException.Code.OK) {
+                    future.complete(event.getChildren());
+                } else if (code == KeeperException.Code.NONODE) {
+                    future.complete(Collections.emptyList());
+                } else {
+                    future.completeExceptionally(KeeperException.create(code, path));
+                }
+            }).forPath(path);
+        }catch (Exception e){
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 读取计数器的值
+     * @param path 计数器路径
+     * @param sharded 是否汇总分片计数器的所有分片
+     * @return
+     */
+    public CompletableFuture<Long> readCounter(String path, boolean sharded){
+        CompletableFuture<Long> own = getData(path).thenApply(ShardedCounter::decode);
+        if(!sharded){
+            return own;
+        }
+        CompletableFuture<Long> shards = getChildren(path).thenCompose(children -> {
+            List<CompletableFuture<Long>> values = new ArrayList<>();
+            for (String child : children) {
+                if (child.startsWith(ShardedCounter.SHARD_PREFIX)) {
+                    values.add(getData(ZKPaths.makePath(path, child)).thenApply(ShardedCounter::decode));
+                }
+            }
+            return sum(values);
+        });
+        return own.thenCombine(shards, Long::sum);
+    }
+
+    public static CompletableFuture<Long> sum(List<CompletableFuture<Long>> values){
+        return CompletableFuture.allOf(values.toArray(new CompletableFuture<?>[values.size()]))
+                .thenApply(v -> {
+                    long total = 0;
+                    for (CompletableFuture<Long> value : values) {
+                        total += value.join();
+                    }
+                    return total;
+                });
+    }
+
+    public static class VersionedData {
+        private final byte[] data;
+        private final int version;
+        private final long czxid;
+
+        public VersionedData(byte[] data, int version, long czxid) {
+            this.data = data;
+            this.version = version;
+            this.czxid = czxid;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * 创建节点的事务id, 节点删除后重新创建时不同
+         * @return
+         */
+        public long getCzxid() {
+            return czxid;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package org.apdplat.counter.valve;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.atomic.AtomicValue;
+import org.apache.curator.framework.recipes.atomic.DistributedAtomicLong;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.apdplat.counter.metrics.CounterMetrics;
+import org.apdplat.counter.util.ConfUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Zookeeper计数器存储
+ *
+ * 默认用 DistributedAtomicLong 更新计数器节点, 配置 counter.sharded=true 时使用分片计数器,
+ * 配置 async.batch.flush=true 时一批计数用一次Zookeeper multi操作写入
+ */
+public class ZookeeperCounterStore implements CounterStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZookeeperCounterStore.class);
+
+    private final RetryNTimes retryNTimes = new RetryNTimes(10, 10);
+    private final CuratorFramework curatorFramework;
+    private final ZookeeperAsync zookeeperAsync;
+    private final ShardedCounter shardedCounter;
+    private final BatchFlusher batchFlusher;
+    private final Map<String, DistributedAtomicLong> counters = new ConcurrentHashMap<>();
+    private final Map<String, PendingAdd> pendingAdds = new ConcurrentHashMap<>();
+    private final CounterMetrics metrics = CounterMetrics.get();
+
+    public ZookeeperCounterStore() {
+        this(Zookeeper.getCuratorFramework(),
+                ConfUtils.getBoolean("counter.sharded", false),
+                ConfUtils.get("counter.node.id"),
+                ConfUtils.getBoolean("async.batch.flush", false),
+                ConfUtils.getInt("async.batch.flush.size", 100));
+    }
+
+    /**
+     * @param curatorFramework
+     * @param sharded 是否使用分片计数器
+     * @param nodeId 分片计数器的节点标识, 为空时使用主机名
+     * @param batchFlush 是否用multi操作批量写入
+     * @param batchSize 每次multi操作最多包含的计数器数目
+     */
+    public ZookeeperCounterStore(CuratorFramework curatorFramework, boolean sharded, String nodeId, boolean batchFlush, int batchSize) {
+        this.curatorFramework = curatorFramework;
+        this.zookeeperAsync = new ZookeeperAsync(curatorFramework);
+        this.shardedCounter = sharded ? new ShardedCounter(curatorFramework, ShardedCounter.resolveNodeId(nodeId)) : null;
+        this.batchFlusher = batchFlush ? new BatchFlusher(curatorFramework, batchSize) : null;
+    }
+
+    public CuratorFramework getCuratorFramework() {
+        return curatorFramework;
+    }
+
+    public boolean isSharded(){
+        return shardedCounter != null;
+    }
+
+    @Override
+    public void add(String path, long delta) throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (shardedCounter != null) {
+                shardedCounter.add(path, delta);
+                return;
+            }
+            DistributedAtomicLong counter = counters.get(path);
+            if(counter == null) {
+                //只在第一次写入时创建节点, 之后直接更新
+                ZKPaths.mkdirs(curatorFramework.getZookeeperClient().getZooKeeper(), path);
+                counter = counters.computeIfAbsent(path, k -> new DistributedAtomicLong(curatorFramework, k, retryNTimes));
+            }
+            AtomicValue<Long> returnValue = counter.add(delta);
+            while (!returnValue.succeeded()) {
+                metrics.casRetry(returnValue.getStats().getOptimisticTries());
+                returnValue = counter.add(delta);
+            }
+            metrics.casRetry(returnValue.getStats().getOptimisticTries() - 1);
+        }catch (Exception e){
+            metrics.zookeeperError();
+            throw e;
+        }finally {
+            metrics.zookeeperWrite().recordSince(start);
+        }
+    }
+
+    /**
+     * 通过Curator后台操作读取当前值和版本号, 带版本号写入, 版本冲突时重新读取, 节点不存在时连同父节点一起创建,
+     * 整个过程不阻塞调用线程, 与 DistributedAtomicLong 使用相同的数据格式
+     * 同一个计数器同时只有一个写入在进行, 写入期间到达的增量合并后在下一次写入中一起写入,
+     * 避免大量并发写入同一个计数器时互相冲突
+     * 分片计数器只写本节点的分片
+     */
+    @Override
+    public CompletableFuture<Void> addAsync(String path, long delta) {
+        String target = shardedCounter != null ? shardedCounter.getShardPath(path) : path;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        PendingAdd pending = pendingAdds.computeIfAbsent(target, k -> new PendingAdd());
+        boolean idle;
+        synchronized (pending){
+            pending.delta += delta;
+            pending.waiters.add(future);
+            idle = !pending.writing;
+            pending.writing = true;
+        }
+        if(idle){
+            writePending(target, pending);
+        }
+        return future;
+    }
+
+    private void writePending(String path, PendingAdd pending){
+        long delta;
+        List<CompletableFuture<Void>> waiters;
+        synchronized (pending){
+            if(pending.waiters.isEmpty()){
+                pending.writing = false;
+                pendingAdds.remove(path, pending);
+                return;
+            }
+            delta = pending.delta;
+            waiters = pending.waiters;
+            pending.delta = 0;
+            pending.waiters = new ArrayList<>();
+        }
+        long start = System.nanoTime();
+        compareAndAdd(path, delta).whenComplete((v, e) -> {
+            metrics.zookeeperWrite().recordSince(start);
+            if(e != null){
+                metrics.zookeeperError();
+            }
+            for(CompletableFuture<Void> waiter : waiters){
+                if(e == null){
+                    waiter.complete(null);
+                }else{
+                    waiter.completeExceptionally(e);
+                }
+            }
+            writePending(path, pending);
+        });
+    }
+
+    private CompletableFuture<Void> compareAndAdd(String path, long delta){
+        return zookeeperAsync.getVersionedData(path).thenCompose(current -> {
+            if(current == null){
+                return zookeeperAsync.create(path, ShardedCounter.encode(delta));
+            }
+            long value = ShardedCounter.decode(current.getData()) + delta;
+            return zookeeperAsync.setData(path, ShardedCounter.encode(value), current.getVersion());
+        }).thenCompose(written -> {
+            if(written){
+                return CompletableFuture.completedFuture(null);
+            }
+            metrics.casRetry(1);
+            return compareAndAdd(path, delta);
+        });
+    }
+
+    /**
+     * 批量写入失败时只逐个写入还没有提交的计数器, 已经提交的批次不会重复计数
+     * @throws BatchFlusher.PartialFlushException 逐个写入仍然失败, 其中包含已经提交的计数器路径
+     */
+    @Override
+    public void addAll(Map<String, Long> deltas) throws Exception {
+        if(batchFlusher != null && deltas.size() > 1){
+            //分片计数器的分片路径到计数器路径
+            Map<String, String> sources = new HashMap<>();
+            Map<String, Long> targets = deltas;
+            if(shardedCounter != null){
+                targets = new LinkedHashMap<>();
+                for(Map.Entry<String, Long> entry : deltas.entrySet()){
+                    String target = shardedCounter.getShardPath(entry.getKey());
+                    targets.put(target, entry.getValue());
+                    sources.put(target, entry.getKey());
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                batchFlusher.flush(targets);
+                metrics.zookeeperWrite().recordSince(start);
+                return;
+            }catch (BatchFlusher.PartialFlushException e){
+                metrics.zookeeperError();
+                LOGGER.error("批量写入 "+deltas.size()+" 个计数器失败, 已提交 "+e.getCommitted().size()+" 个, 其余的改为逐个写入", e.getCause());
+                Map<String, Long> rest = new LinkedHashMap<>(deltas);
+                Set<String> committed = new HashSet<>();
+                for(String target : e.getCommitted()){
+                    String source = sources.getOrDefault(target, target);
+                    rest.remove(source);
+                    committed.add(source);
+                }
+                addEach(rest, committed);
+                return;
+            }
+        }
+        addEach(deltas, new HashSet<>());
+    }
+
+    /**
+     * 逐个写入
+     * @param deltas key为计数器路径, value为增量
+     * @param committed 已经提交的计数器路径, 写入成功的计数器也加入其中
+     * @throws BatchFlusher.PartialFlushException 某个计数器写入失败
+     */
+    private void addEach(Map<String, Long> deltas, Set<String> committed) throws BatchFlusher.PartialFlushException {
+        for(Map.Entry<String, Long> entry : deltas.entrySet()){
+            try {
+                add(entry.getKey(), entry.getValue());
+            }catch (Exception e){
+                throw new BatchFlusher.PartialFlushException(committed, e);
+            }
+            committed.add(entry.getKey());
+        }
+    }
+
+    /**
+     * 修改批量写入时一次multi操作最多包含的计数器数目, 没有启用批量写入时忽略
+     * @param batchSize
+     */
+    public void setBatchFlushSize(int batchSize){
+        if(batchFlusher != null){
+            batchFlusher.setBatchSize(batchSize);
+        }
+    }
+
+    @Override
+    public long get(String path) throws Exception {
+        long start = System.nanoTime();
+        try {
+            if (shardedCounter != null) {
+                return shardedCounter.get(path);
+            }
+            DistributedAtomicLong dal = new DistributedAtomicLong(curatorFramework, path, retryNTimes);
+            return dal.get().postValue();
+        }catch (Exception e){
+            metrics.zookeeperError();
+            throw e;
+        }finally {
+            metrics.zookeeperRead().recordSince(start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Long> getAsync(String path) {
+        long start = System.nanoTime();
+        return zookeeperAsync.readCounter(path, shardedCounter != null).whenComplete((value, e) -> {
+            metrics.zookeeperRead().recordSince(start);
+            if(e != null){
+                metrics.zookeeperError();
+            }
+        });
+    }
+
+    @Override
+    public boolean delete(String path, int version) throws Exception {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.delete().withVersion(version).forPath(path);
+            return true;
+        }catch (KeeperException.BadVersionException | KeeperException.NotEmptyException e){
+            return false;
+        }catch (KeeperException.NoNodeException e){
+            return true;
+        }catch (Exception e){
+            metrics.zookeeperError();
+            throw e;
+        }finally {
+            counters.remove(path);
+            metrics.zookeeperWrite().recordSince(start);
+        }
+    }
+
+    /**
+     * 节点标识是创建节点的事务id, 分片计数器还读取每个分片节点
+     */
+    @Override
+    public CompletableFuture<Map<String, NodeCount>> getNodeCountsAsync(String path) {
+        long start = System.nanoTime();
+        CompletableFuture<List<String>> children = shardedCounter != null
+                ? zookeeperAsync.getChildren(path)
+                : CompletableFuture.completedFuture(Collections.emptyList());
+        return children.thenCompose(names -> {
+            List<String> paths = new ArrayList<>();
+            paths.add(path);
+            for(String name : names){
+                if(name.startsWith(ShardedCounter.SHARD_PREFIX)){
+                    paths.add(ZKPaths.makePath(path, name));
+                }
+            }
+            List<CompletableFuture<ZookeeperAsync.VersionedData>> reads = new ArrayList<>(paths.size());
+            for(String nodePath : paths){
+                reads.add(zookeeperAsync.getVersionedData(nodePath));
+            }
+            return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[reads.size()])).thenApply(v -> {
+                Map<String, NodeCount> nodes = new LinkedHashMap<>();
+                for(int i=0; i<paths.size(); i++){
+                    ZookeeperAsync.VersionedData data = reads.get(i).join();
+                    //读取子节点之后被删除的分片忽略
+                    if(data != null){
+                        nodes.put(paths.get(i), new NodeCount(data.getCzxid(), ShardedCounter.decode(data.getData()), data.getVersion()));
+                    }
+                }
+                return nodes;
+            });
+        }).whenComplete((nodes, e) -> {
+            metrics.zookeeperRead().recordSince(start);
+            if(e != null){
+                metrics.zookeeperError();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listAsync(String parent) {
+        return zookeeperAsync.getChildren(parent);
+    }
+
+    @Override
+    public byte[] getBytes(String path) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return curatorFramework.getData().forPath(path);
+        }catch (KeeperException.NoNodeException e){
+            return null;
+        }finally {
+            metrics.zookeeperRead().recordSince(start);
+        }
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytesAsync(String path) {
+        long start = System.nanoTime();
+        return zookeeperAsync.getData(path).whenComplete((data, e) -> {
+            metrics.zookeeperRead().recordSince(start);
+            if(e != null){
+                metrics.zookeeperError();
+            }
+        });
+    }
+
+    /**
+     * 读取数据和版本号, 带版本号写入, 版本冲突时重新读取
+     */
+    @Override
+    public void updateBytes(String path, UnaryOperator<byte[]> update) throws Exception {
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Stat stat = new Stat();
+                byte[] data;
+                try {
+                    data = curatorFramework.getData().storingStatIn(stat).forPath(path);
+                } catch (KeeperException.NoNodeException e) {
+                    try {
+                        curatorFramework.create().creatingParentsIfNeeded().forPath(path, update.apply(null));
+                        return;
+                    } catch (KeeperException.NodeExistsException ex) {
+                        metrics.casRetry(1);
+                        continue;
+                    }
+                }
+                try {
+                    curatorFramework.setData().withVersion(stat.getVersion()).forPath(path, update.apply(data));
+                    return;
+                } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
+                    metrics.casRetry(1);
+                }
+            }
+        }catch (Exception e){
+            metrics.zookeeperError();
+            throw e;
+        }finally {
+            metrics.zookeeperWrite().recordSince(start);
+        }
+    }
+
+    /**
+     * 分片计数器的分片是计数器节点的子节点, 一起删除
+     */
+    @Override
+    public void delete(String path) throws Exception {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.delete().deletingChildrenIfNeeded().forPath(path);
+        }catch (KeeperException.NoNodeException e){
+            //节点不存在时忽略
+        }catch (Exception e){
+            metrics.zookeeperError();
+            throw e;
+        }finally {
+            counters.remove(path);
+            metrics.zookeeperWrite().recordSince(start);
+        }
+    }
+
+    /**
+     * 分片计数器的值分布在子节点上, 不支持监听
+     */
+    @Override
+    public boolean watch(String path, Runnable onChange) {
+        if(shardedCounter != null){
+            return false;
+        }
+        try {
+            curatorFramework.checkExists().usingWatcher(new Watcher() {
+                @Override
+                public void process(WatchedEvent event) {
+                    if(event.getType() != Event.EventType.None) {
+                        onChange.run();
+                    }
+                }
+            }).forPath(path);
+            return true;
+        }catch (Exception e){
+            LOGGER.error("监听计数器失败: "+path, e);
+        }
+        return false;
+    }
+
+    private static class PendingAdd {
+        private long delta;
+        private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        private boolean writing;
+    }
+}
@@ -0,0 +1,331 @@
+package org.apdplat.counter.valve;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.nodes.PersistentNode;
+import org.apache.curator.utils.CloseableUtils;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.apdplat.counter.metrics.CounterMetrics;
+import org.apdplat.counter.util.ConfUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Zookeeper限额存储
+ *
+ * 限制值保存在 {api.call.count.prefix}/limit_{apiType} 节点中, 用一个 PathChildrenCache 缓存所有限制值节点,
+ * 节点新建、修改和删除时生成新的不可变快照, 读取限制值时不加锁, 运行时新建的apiType自动生效,
+ * 会话过期重连后 PathChildrenCache 重新读取所有节点
+ * 已租出的配额保存在 {api.call.count.prefix}/quota/leased_{day}_{apiType} 节点中
+ * 每个存活的节点在 {api.call.count.prefix}/members 下有一个临时节点,
+ * 加入集群失败时每隔 cluster.join.retry.interval.ms 毫秒在后台重试, 加入之前存活的节点数目按最近一次已知的值计算
+ */
+public class ZookeeperLimitStore implements LimitStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ZookeeperLimitStore.class);
+
+    private static final String LIMIT_NODE_PREFIX = "limit_";
+
+    private final CuratorFramework curatorFramework;
+    private final String limitPrefix;
+    private final String quotaPrefix;
+    private final String membersPath;
+    private volatile PathChildrenCache members;
+    private volatile int liveNodeCount = 1;
+    //已经开始加入集群, 失败时由后台线程重试
+    private final AtomicBoolean joining = new AtomicBoolean();
+    private final Object joinLock = new Object();
+    private final PathChildrenCache limitCache;
+    private volatile Map<String, Long> limits = Collections.emptyMap();
+    private final Set<String> published = new HashSet<>();
+    //本节点最近一次租借时看到的已租出配额, key为 leased_{day}_{apiType}
+    private final Map<String, Long> lastKnownLeased = new ConcurrentHashMap<>();
+
+    public ZookeeperLimitStore() {
+        this(Zookeeper.getCuratorFramework(), Zookeeper.getApiCallCountPrefix());
+    }
+
+    /**
+     * @param curatorFramework
+     * @param apiCallCountPrefix 限额相关节点的父路径
+     */
+    public ZookeeperLimitStore(CuratorFramework curatorFramework, String apiCallCountPrefix) {
+        this.curatorFramework = curatorFramework;
+        this.limitPrefix = apiCallCountPrefix + "/limit";
+        this.quotaPrefix = apiCallCountPrefix + "/quota";
+        this.membersPath = apiCallCountPrefix + "/members";
+        this.limitCache = new PathChildrenCache(curatorFramework, apiCallCountPrefix, true);
+        this.limitCache.getListenable().addListener((client, event) -> {
+            switch (event.getType()) {
+                case CHILD_ADDED:
+                case CHILD_UPDATED:
+                case CHILD_REMOVED:
+                case INITIALIZED:
+                    refreshLimits();
+                    break;
+                default:
+                    LOGGER.info("限制值缓存连接状态变化: {}", event.getType());
+            }
+        });
+        try {
+            ZKPaths.mkdirs(curatorFramework.getZookeeperClient().getZooKeeper(), apiCallCountPrefix);
+            this.limitCache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+            refreshLimits();
+        }catch (Exception e){
+            LOGGER.error("监听最大限制值失败: "+apiCallCountPrefix, e);
+        }
+    }
+
+    /**
+     * 初始化限制值之前先加入集群, 存储不可用时降级租借配额需要知道存活的节点数目
+     */
+    @Override
+    public void init(String apiType, long defaultLimit) {
+        if(members == null && joining.compareAndSet(false, true) && !joinCluster()){
+            scheduleJoin();
+        }
+        try {
+            String path = limitPrefix + "_" + apiType;
+            try {
+                curatorFramework.create().creatingParentsIfNeeded().forPath(path, String.valueOf(defaultLimit).getBytes());
+                LOGGER.info("成功为apiType: {} 设置初始最大限制值: {}", apiType, defaultLimit);
+                publish(apiType, defaultLimit);
+                return;
+            }catch (KeeperException.NodeExistsException e){
+                //已有限制值
+            }
+            Stat stat = new Stat();
+            String oldLimit = new String(curatorFramework.getData().storingStatIn(stat).forPath(path));
+            if (StringUtils.isBlank(oldLimit)) {
+                curatorFramework.setData().withVersion(stat.getVersion()).forPath(path, String.valueOf(defaultLimit).getBytes());
+                LOGGER.info("成功为apiType: {} 设置初始最大限制值: {}", apiType, defaultLimit);
+                publish(apiType, defaultLimit);
+            } else {
+                LOGGER.info("apiType: {} 旧的最大限制值: {}", apiType, oldLimit);
+                publish(apiType, Long.parseLong(oldLimit.trim()));
+            }
+        } catch (Exception e) {
+            LOGGER.error("初始化最大限制值失败, apiType: "+apiType, e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getLimits() {
+        return limits;
+    }
+
+    @Override
+    public Long getLimit(String apiType) {
+        return limits.get(apiType);
+    }
+
+    @Override
+    public boolean setLimit(String apiType, long newLimit) {
+        try{
+            String path = limitPrefix + "_" + apiType;
+            ZKPaths.mkdirs(curatorFramework.getZookeeperClient().getZooKeeper(), path);
+            curatorFramework.setData().forPath(path, String.valueOf(newLimit).getBytes());
+            return true;
+        }catch (Exception e){
+            LOGGER.error("为apiType: "+apiType+" 指定的最大限制值: "+newLimit+" 非法", e);
+        }
+        return false;
+    }
+
+    @Override
+    public long lease(String apiType, String day, long n, long limit, LongUnaryOperator blockSize) {
+        String node = "leased_" + day + "_" + apiType;
+        String path = ZKPaths.makePath(quotaPrefix, node);
+        try {
+            while (true) {
+                Stat stat = new Stat();
+                byte[] data;
+                try {
+                    data = curatorFramework.getData().storingStatIn(stat).forPath(path);
+                } catch (KeeperException.NoNodeException e) {
+                    try {
+                        curatorFramework.create().creatingParentsIfNeeded().forPath(path, ShardedCounter.encode(0));
+                    } catch (KeeperException.NodeExistsException ex) {
+                        //其他节点已经创建
+                    }
+                    continue;
+                }
+                long leased = ShardedCounter.decode(data);
+                long available = limit - leased;
+                if (available < n) {
+                    LOGGER.debug("apiType: {} 当天的配额已经用完, 限制值: {}, 已租出: {}", apiType, limit, leased);
+                    rememberLeased(node, day, leased);
+                    return 0;
+                }
+                long block = Math.min(Math.max(blockSize.applyAsLong(available), n), available);
+                try {
+                    curatorFramework.setData().withVersion(stat.getVersion()).forPath(path, ShardedCounter.encode(leased + block));
+                    rememberLeased(node, day, leased + block);
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("apiType: {} 租借配额: {}, 已租出: {}, 限制值: {}", apiType, block, leased + block, limit);
+                    }
+                    return block;
+                } catch (KeeperException.BadVersionException e) {
+                    //其他节点同时在租借, 重试
+                    CounterMetrics.get().casRetry(1);
+                }
+            }
+        }catch (Exception e){
+            throw new IllegalStateException("apiType: "+apiType+" 租借配额失败", e);
+        }
+    }
+
+    @Override
+    public Long getLastKnownLeased(String apiType, String day) {
+        return lastKnownLeased.get("leased_" + day + "_" + apiType);
+    }
+
+    /**
+     * 记录最近看到的已租出配额, 只保留当天的记录
+     */
+    private void rememberLeased(String node, String day, long leased){
+        if(lastKnownLeased.put(node, leased) == null){
+            lastKnownLeased.keySet().removeIf(key -> !key.startsWith("leased_" + day + "_"));
+        }
+    }
+
+    /**
+     * 不访问存储, 还没有加入集群时在后台加入, 加入之前返回最近一次已知的节点数目
+     */
+    @Override
+    public int getLiveNodeCount() {
+        if(members == null && joining.compareAndSet(false, true)){
+            scheduleJoin();
+        }
+        return liveNodeCount;
+    }
+
+    @Override
+    public int getKnownLiveNodeCount() {
+        return members == null ? 0 : liveNodeCount;
+    }
+
+    /**
+     * 在后台线程中加入集群, 失败时按固定间隔重试直到成功
+     */
+    private void scheduleJoin(){
+        long interval = ConfUtils.getLong("cluster.join.retry.interval.ms", 5000);
+        ScheduledExecutorService retry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counter-cluster-join");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retry.scheduleWithFixedDelay(() -> {
+            if(joinCluster()){
+                retry.shutdown();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 创建本节点的临时节点, 会话过期后自动重建, 并监听成员节点的变化
+     * 失败时关闭已经启动的临时节点和缓存, 重试时不会留下多余的成员节点
+     * @return 是否已经加入集群
+     */
+    private boolean joinCluster(){
+        synchronized (joinLock) {
+            if (members != null) {
+                return true;
+            }
+            PersistentNode node = null;
+            PathChildrenCache cache = null;
+            try {
+                node = new PersistentNode(curatorFramework, CreateMode.EPHEMERAL_SEQUENTIAL, false,
+                        ZKPaths.makePath(membersPath, "member-"), ShardedCounter.resolveNodeId(ConfUtils.get("counter.node.id")).getBytes());
+                node.start();
+                if (!node.waitForInitialCreate(ConfUtils.getLong("zookeeper.connection.timeout.ms", 3000), TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("创建成员节点超时");
+                }
+                PathChildrenCache current = new PathChildrenCache(curatorFramework, membersPath, false);
+                cache = current;
+                current.getListenable().addListener((client, event) -> {
+                    liveNodeCount = Math.max(1, current.getCurrentData().size());
+                    LOGGER.debug("集群成员变化: {}, 节点数目: {}", event.getType(), liveNodeCount);
+                });
+                current.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+                liveNodeCount = Math.max(1, current.getCurrentData().size());
+                LOGGER.info("加入集群: {}, 当前节点数目: {}", membersPath, liveNodeCount);
+                members = current;
+                return true;
+            } catch (Exception e) {
+                CloseableUtils.closeQuietly(cache);
+                CloseableUtils.closeQuietly(node);
+                LOGGER.error("加入集群失败: " + membersPath + ", 稍后重试", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 用缓存中所有限制值节点生成新的快照
+     */
+    private synchronized void refreshLimits(){
+        Map<String, Long> current = limits;
+        Map<String, Long> next = new HashMap<>();
+        for(ChildData child : limitCache.getCurrentData()){
+            String name = ZKPaths.getNodeFromPath(child.getPath());
+            if(!name.startsWith(LIMIT_NODE_PREFIX) || child.getData() == null){
+                continue;
+            }
+            String apiType = name.substring(LIMIT_NODE_PREFIX.length());
+            String value = new String(child.getData()).trim();
+            if(StringUtils.isBlank(value)){
+                continue;
+            }
+            try {
+                Long limit = Long.parseLong(value);
+                next.put(apiType, limit);
+                if(!limit.equals(current.get(apiType))){
+                    LOGGER.info("最大限制值发生变化, apiType: {}, 原来的最大值: {}, 新的最大值: {}", apiType, current.get(apiType), limit);
+                }
+            }catch (NumberFormatException e){
+                LOGGER.error("apiType: " + apiType + " 的最大限制值: " + value + " 非法", e);
+                if(current.containsKey(apiType)){
+                    next.put(apiType, current.get(apiType));
+                }
+            }
+        }
+        for(Map.Entry<String, Long> entry : current.entrySet()){
+            String apiType = entry.getKey();
+            if(next.containsKey(apiType)){
+                published.remove(apiType);
+            }else if(published.contains(apiType)){
+                next.put(apiType, entry.getValue());
+            }else{
+                LOGGER.info("最大限制值被删除, apiType: {}", apiType);
+            }
+        }
+        limits = Collections.unmodifiableMap(next);
+    }
+
+    /**
+     * 在缓存收到节点变化之前先发布本节点初始化的限制值, 缓存中出现该节点之前保留
+     */
+    private synchronized void publish(String apiType, long limit){
+        published.add(apiType);
+        Map<String, Long> next = new HashMap<>(limits);
+        next.put(apiType, limit);
+        limits = Collections.unmodifiableMap(next);
+    }
+}